@@ -81,6 +81,9 @@ object Key {
     const val TRANSPROXY_PORT = "transproxyPort"
 
     const val CONNECTION_TEST_URL = "connectionTestURL"
+    const val CONNECTION_TEST_CONCURRENCY = "connectionTestConcurrency"
+    const val CONNECTION_TEST_TIMEOUT = "connectionTestTimeout"
+    const val TCP_PING_CONCURRENCY = "tcpPingConcurrency"
     const val PROBE_URL = "probeUrl"
     const val PROBE_INTERVAL = "probeInterval"
 
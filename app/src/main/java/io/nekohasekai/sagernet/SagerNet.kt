@@ -56,12 +56,12 @@ import io.nekohasekai.sagernet.utils.DefaultNetworkListener
 import io.nekohasekai.sagernet.utils.DeviceStorageApp
 import io.nekohasekai.sagernet.utils.PackageCache
 import io.nekohasekai.sagernet.utils.Theme
+import io.nekohasekai.sagernet.utils.UidCache
 import kotlinx.coroutines.DEBUG_PROPERTY_NAME
 import kotlinx.coroutines.DEBUG_PROPERTY_VALUE_ON
 import libcore.Libcore
 import libcore.UidDumper
 import libcore.UidInfo
-import java.net.InetSocketAddress
 import androidx.work.Configuration as WorkConfiguration
 
 class SagerNet : Application(),
@@ -123,30 +123,11 @@ class SagerNet : Application(),
     override fun dumpUid(
         ipProto: Int, srcIp: String, srcPort: Int, destIp: String, destPort: Int
     ): Int {
-        return SagerNet.connectivity.getConnectionOwnerUid(
-            ipProto, InetSocketAddress(srcIp, srcPort), InetSocketAddress(destIp, destPort)
-        )
+        return UidCache.connectionOwner(ipProto, srcIp, srcPort, destIp, destPort)
     }
 
     override fun getUidInfo(uid: Int): UidInfo {
-        PackageCache.awaitLoadSync()
-
-        if (uid <= 1000L) {
-            val uidInfo = UidInfo()
-            uidInfo.label = PackageCache.loadLabel("android")
-            uidInfo.packageName = "android"
-            return uidInfo
-        }
-
-        val packageNames = PackageCache.uidMap[uid.toInt()]
-        if (!packageNames.isNullOrEmpty()) for (packageName in packageNames) {
-            val uidInfo = UidInfo()
-            uidInfo.label = PackageCache.loadLabel(packageName)
-            uidInfo.packageName = packageName
-            return uidInfo
-        }
-
-        error("unknown uid $uid")
+        return UidCache.uidInfo(uid)
     }
 
     fun getPackageInfo(packageName: String) = packageManager.getPackageInfo(
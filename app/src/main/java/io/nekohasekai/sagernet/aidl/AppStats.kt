@@ -35,7 +35,12 @@ data class AppStats(
     var downlink: Long,
     var uplinkTotal: Long,
     var downlinkTotal: Long,
-    var deactivateAt: Int
+    var deactivateAt: Int,
+    // part of the totals the service has already written to the stats table
+    var tcpConnectionsPersisted: Int = 0,
+    var udpConnectionsPersisted: Int = 0,
+    var uplinkPersisted: Long = 0L,
+    var downlinkPersisted: Long = 0L,
 ) : Parcelable {
 
    operator fun plusAssign(stats: StatsEntity) {
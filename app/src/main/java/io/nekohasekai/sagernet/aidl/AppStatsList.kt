@@ -22,7 +22,12 @@ package io.nekohasekai.sagernet.aidl
 import android.os.Parcelable
 import kotlinx.parcelize.Parcelize
 
+/**
+ * @param reset [data] holds every row and replaces what the receiver has, otherwise only the
+ * rows changed since the previous list
+ */
 @Parcelize
 class AppStatsList(
-    var data: List<AppStats>
+    var data: List<AppStats>,
+    var reset: Boolean = false,
 ) : Parcelable
\ No newline at end of file
@@ -0,0 +1,232 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ * Copyright (C) 2021 by Max Lv <max.c.lv@gmail.com>                          *
+ * Copyright (C) 2021 by Mygod Studio <contact-shadowsocks-android@mygod.be>  *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg
+
+import android.os.SystemClock
+import android.util.SparseArray
+import io.nekohasekai.sagernet.database.StatsEntity
+import io.nekohasekai.sagernet.utils.PackageCache
+import libcore.AppStats
+import io.nekohasekai.sagernet.aidl.AppStats as AidlAppStats
+
+/**
+ * Per-UID traffic of the tun device. Rows are keyed by UID and reused across reads, so the
+ * package name is only resolved once, as soon as the package cache is loaded.
+ *
+ * Two consumers share the table: [commit] turns the traffic read since its last call into
+ * rates and returns the rows that changed, and [checkpoint] hands out the totals not yet
+ * written to the stats table. Reads are wrapped in [beginRead], so that either consumer may
+ * read without taking traffic away from the other.
+ */
+class AppStatsTable {
+
+    private class Row(val stats: AidlAppStats) {
+        var resolved = false
+        var read = 0
+        var tcpConnections = 0
+        var udpConnections = 0
+        var tcpConnectionsTotal = 0
+        var udpConnectionsTotal = 0
+        var uplinkTotal = 0L
+        var downlinkTotal = 0L
+        var deactivateAt = 0
+
+        // accumulated over reads until the next commit
+        var uplink = 0L
+        var downlink = 0L
+
+        // part of the totals already written to the stats table
+        var tcpConnectionsPersisted = 0
+        var udpConnectionsPersisted = 0
+        var uplinkPersisted = 0L
+        var downlinkPersisted = 0L
+
+        val pendingBytes get() = uplinkTotal - uplinkPersisted + downlinkTotal - downlinkPersisted
+    }
+
+    private val rows = SparseArray<Row>()
+    private val changed = ArrayList<AidlAppStats>()
+    private var lastCommit = SystemClock.elapsedRealtime()
+    private var read = 0
+
+    @Synchronized
+    fun beginRead() {
+        read++
+    }
+
+    /** Called for every entry of a read, system UIDs are folded into one `android` row. */
+    @Synchronized
+    fun add(stats: AppStats) {
+        val uid = if (stats.uid >= 10000) stats.uid else 1000
+        var row = rows[uid]
+        if (row == null) {
+            row = Row(AidlAppStats("android", uid, 0, 0, 0, 0, 0L, 0L, 0L, 0L, 0))
+            rows.put(uid, row)
+        }
+        // traffic seen before the package cache is loaded is shown as `android` until then
+        if (!row.resolved && (uid == 1000 || PackageCache.isLoaded)) {
+            if (uid != 1000) {
+                row.stats.packageName = PackageCache.uidMap[uid]?.iterator()?.next() ?: "android"
+            }
+            row.resolved = true
+        }
+        row.uplink += stats.uplink
+        row.downlink += stats.downlink
+        if (row.read != read) {
+            row.read = read
+            row.tcpConnections = stats.tcpConn
+            row.udpConnections = stats.udpConn
+            row.tcpConnectionsTotal = stats.tcpConnTotal
+            row.udpConnectionsTotal = stats.udpConnTotal
+            row.uplinkTotal = stats.uplinkTotal
+            row.downlinkTotal = stats.downlinkTotal
+            row.deactivateAt = stats.deactivateAt
+        } else {
+            row.tcpConnections += stats.tcpConn
+            row.udpConnections += stats.udpConn
+            row.tcpConnectionsTotal += stats.tcpConnTotal
+            row.udpConnectionsTotal += stats.udpConnTotal
+            row.uplinkTotal += stats.uplinkTotal
+            row.downlinkTotal += stats.downlinkTotal
+            row.deactivateAt = if (row.deactivateAt == 0 || stats.deactivateAt == 0) {
+                0
+            } else {
+                maxOf(row.deactivateAt, stats.deactivateAt)
+            }
+        }
+    }
+
+    /**
+     * Finish a read for the listeners. Rates are taken over the monotonic time since the
+     * previous commit. The returned list and its records are reused by the next commit, so
+     * they must be sent before that.
+     *
+     * @param all return every row instead of only the changed ones
+     */
+    @Synchronized
+    fun commit(all: Boolean): List<AidlAppStats> {
+        val now = SystemClock.elapsedRealtime()
+        val seconds = (now - lastCommit) / 1000.0
+        lastCommit = now
+        changed.clear()
+        for (index in 0 until rows.size()) {
+            val row = rows.valueAt(index)
+            val uplink = if (seconds > 0) (row.uplink / seconds).toLong() else 0L
+            val downlink = if (seconds > 0) (row.downlink / seconds).toLong() else 0L
+            row.uplink = 0L
+            row.downlink = 0L
+            val stats = row.stats
+            if (stats.tcpConnections != row.tcpConnections ||
+                stats.udpConnections != row.udpConnections ||
+                stats.tcpConnectionsTotal != row.tcpConnectionsTotal ||
+                stats.udpConnectionsTotal != row.udpConnectionsTotal ||
+                stats.uplink != uplink ||
+                stats.downlink != downlink ||
+                stats.uplinkTotal != row.uplinkTotal ||
+                stats.downlinkTotal != row.downlinkTotal ||
+                stats.deactivateAt != row.deactivateAt ||
+                stats.uplinkPersisted != row.uplinkPersisted ||
+                stats.downlinkPersisted != row.downlinkPersisted ||
+                stats.tcpConnectionsPersisted != row.tcpConnectionsPersisted ||
+                stats.udpConnectionsPersisted != row.udpConnectionsPersisted
+            ) {
+                stats.tcpConnections = row.tcpConnections
+                stats.udpConnections = row.udpConnections
+                stats.tcpConnectionsTotal = row.tcpConnectionsTotal
+                stats.udpConnectionsTotal = row.udpConnectionsTotal
+                stats.uplink = uplink
+                stats.downlink = downlink
+                stats.uplinkTotal = row.uplinkTotal
+                stats.downlinkTotal = row.downlinkTotal
+                stats.deactivateAt = row.deactivateAt
+                stats.tcpConnectionsPersisted = row.tcpConnectionsPersisted
+                stats.udpConnectionsPersisted = row.udpConnectionsPersisted
+                stats.uplinkPersisted = row.uplinkPersisted
+                stats.downlinkPersisted = row.downlinkPersisted
+                changed.add(stats)
+            } else if (all) {
+                changed.add(stats)
+            }
+        }
+        return changed
+    }
+
+    /** Bytes counted by the tun device but not yet written to the stats table. */
+    @Synchronized
+    fun pendingBytes(): Long {
+        var bytes = 0L
+        for (index in 0 until rows.size()) bytes += rows.valueAt(index).pendingBytes
+        return bytes
+    }
+
+    /**
+     * Pass the unwritten part of the totals to [write], summed by package. The rows only
+     * count as written once [write] returns, a failed write is retried by the next call.
+     */
+    @Synchronized
+    fun checkpoint(write: (Collection<StatsEntity>) -> Unit) {
+        val deltas = LinkedHashMap<String, StatsEntity>()
+        for (index in 0 until rows.size()) {
+            val row = rows.valueAt(index)
+            val tcpConnections = row.tcpConnectionsTotal - row.tcpConnectionsPersisted
+            val udpConnections = row.udpConnectionsTotal - row.udpConnectionsPersisted
+            val uplink = row.uplinkTotal - row.uplinkPersisted
+            val downlink = row.downlinkTotal - row.downlinkPersisted
+            if (tcpConnections == 0 && udpConnections == 0 && uplink == 0L && downlink == 0L) {
+                continue
+            }
+            val delta = deltas.getOrPut(row.stats.packageName) {
+                StatsEntity(packageName = row.stats.packageName)
+            }
+            delta.tcpConnections += tcpConnections
+            delta.udpConnections += udpConnections
+            delta.uplink += uplink
+            delta.downlink += downlink
+        }
+        if (deltas.isEmpty()) return
+        write(deltas.values)
+        for (index in 0 until rows.size()) {
+            val row = rows.valueAt(index)
+            row.tcpConnectionsPersisted = row.tcpConnectionsTotal
+            row.udpConnectionsPersisted = row.udpConnectionsTotal
+            row.uplinkPersisted = row.uplinkTotal
+            row.downlinkPersisted = row.downlinkTotal
+        }
+    }
+
+    /** The counters of the tun device were reset, and so was the stats table. */
+    @Synchronized
+    fun reset() {
+        for (index in 0 until rows.size()) {
+            val row = rows.valueAt(index)
+            row.tcpConnectionsTotal = 0
+            row.udpConnectionsTotal = 0
+            row.uplinkTotal = 0L
+            row.downlinkTotal = 0L
+            row.tcpConnectionsPersisted = 0
+            row.udpConnectionsPersisted = 0
+            row.uplinkPersisted = 0L
+            row.downlinkPersisted = 0L
+        }
+    }
+
+}
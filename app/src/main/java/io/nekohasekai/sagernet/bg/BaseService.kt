@@ -41,16 +41,12 @@ import io.nekohasekai.sagernet.fmt.Alerts
 import io.nekohasekai.sagernet.fmt.TAG_SOCKS
 import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.plugin.PluginManager
-import io.nekohasekai.sagernet.utils.PackageCache
 import kotlinx.coroutines.*
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
-import libcore.AppStats
 import libcore.Libcore
-import libcore.TrafficListener
 import java.net.UnknownHostException
 import com.github.shadowsocks.plugin.PluginManager as ShadowsocksPluginPluginManager
-import io.nekohasekai.sagernet.aidl.AppStats as AidlAppStats
 
 class BaseService {
 
@@ -85,6 +81,7 @@ class BaseService {
 
         val binder = Binder(this)
         var connectingJob: Job? = null
+        var startupTrace = StartupTrace()
 
         fun changeState(s: State, msg: String? = null) {
             if (state == s && msg == null) return
@@ -95,8 +92,7 @@ class BaseService {
 
     class Binder(private var data: Data? = null) : ISagerNetService.Stub(),
         CoroutineScope,
-        AutoCloseable,
-        TrafficListener {
+        AutoCloseable {
         private val callbacks = object : RemoteCallbackList<ISagerNetServiceCallback>() {
             override fun onCallbackDied(callback: ISagerNetServiceCallback?, cookie: Any?) {
                 super.onCallbackDied(callback, cookie)
@@ -110,8 +106,13 @@ class BaseService {
         private var looper: Job? = null
         private var statsLooper: Job? = null
 
+        // session totals last sent for each outbound profile as (tx, rx), cleared when a
+        // bandwidth listener joins so that it receives every entry once
+        private val trafficSent = HashMap<Long, LongArray>()
+
         override fun getState(): Int = (data?.state ?: State.Idle).ordinal
         override fun getProfileName(): String = data?.proxy?.profile?.displayName() ?: "Idle"
+        override fun getStartupTrace(): String = data?.startupTrace?.toString() ?: ""
 
         override fun registerCallback(cb: ISagerNetServiceCallback) {
             callbacks.register(cb)
@@ -156,16 +157,27 @@ class BaseService {
                     statsOut.downlinkTotal
                 )
                 if (data?.state == State.Connected && bandwidthListeners.isNotEmpty()) {
+                    val changed = outs.values.filter {
+                        val sent = trafficSent[it.proxyEntity.id]
+                        sent == null || sent[0] != it.uplinkTotal || sent[1] != it.downlinkTotal
+                    }
+                    val profileIds = LongArray(changed.size)
+                    val txTotal = LongArray(changed.size)
+                    val rxTotal = LongArray(changed.size)
+                    changed.forEachIndexed { index, it ->
+                        profileIds[index] = it.proxyEntity.id
+                        txTotal[index] = it.uplinkTotal
+                        rxTotal[index] = it.downlinkTotal
+                        trafficSent.getOrPut(it.proxyEntity.id) { LongArray(2) }.apply {
+                            this[0] = it.uplinkTotal
+                            this[1] = it.downlinkTotal
+                        }
+                    }
                     broadcast { item ->
                         if (bandwidthListeners.contains(item.asBinder())) {
                             item.trafficUpdated(proxy.profile.id, stats, true)
-                            outs.forEach { (profileId, stats) ->
-                                item.trafficUpdated(
-                                    profileId, TrafficStats(
-                                        txRateDirect = stats.uplinkTotal,
-                                        rxTotal = stats.downlinkTotal
-                                    ), false
-                                )
+                            if (profileIds.isNotEmpty()) {
+                                item.trafficUpdatedBatch(profileIds, txTotal, rxTotal)
                             }
                         }
                     }
@@ -175,54 +187,34 @@ class BaseService {
 
         }
 
-        val appStats = ArrayList<AppStats>()
-        override fun updateStats(t: AppStats) {
-            appStats.add(t)
-        }
+        // send every row instead of the changed ones on the next tick
+        @Volatile
+        private var statsResync = true
 
         private suspend fun loopStats() {
-            var lastQueryTime = 0L
-            var tun = (data?.proxy?.service as? VpnService)?.tun ?: return
+            val tun = (data?.proxy?.service as? VpnService)?.tun ?: return
             if (!tun.trafficStatsEnabled) return
+            // start the rate window now, traffic read by checkpoints before is dropped
+            (data?.proxy?.service as? VpnService)?.readAppStats()?.commit(false)
+            statsResync = true
 
             while (true) {
                 val delayMs = statsListeners.values.minOrNull()
                 if (delayMs == 0L) return
-                val queryTime = System.currentTimeMillis()
-                val sinceLastQueryInSeconds = ((queryTime - lastQueryTime).toDouble() / 1000).toLong()
-                lastQueryTime = queryTime
 
-                appStats.clear()
-                tun = (data?.proxy?.service as? VpnService)?.tun ?: return
-                tun.readAppTraffics(this)
+                val table = (data?.proxy?.service as? VpnService)?.readAppStats() ?: return
 
-                val statsList = AppStatsList(appStats.map {
-                    val uid = if (it.uid >= 10000) it.uid else 1000
-                    val packageName = if (uid != 1000) {
-                        PackageCache.uidMap[it.uid]?.iterator()?.next() ?: "android"
-                    } else {
-                        "android"
-                    }
-                    AidlAppStats(
-                        packageName,
-                        uid,
-                        it.tcpConn,
-                        it.udpConn,
-                        it.tcpConnTotal,
-                        it.udpConnTotal,
-                        it.uplink / sinceLastQueryInSeconds,
-                        it.downlink / sinceLastQueryInSeconds,
-                        it.uplinkTotal,
-                        it.downlinkTotal,
-                        it.deactivateAt
-                    )
-                })
+                val resync = statsResync
+                statsResync = false
+                val statsList = AppStatsList(table.commit(resync), resync)
                 if (data?.state == State.Connected && statsListeners.isNotEmpty()) {
                     broadcast { item ->
                         if (statsListeners.contains(item.asBinder())) {
                             item.statsUpdated(statsList)
                         }
                     }
+                } else {
+                    statsResync = true
                 }
                 delay(delayMs ?: return)
             }
@@ -234,6 +226,7 @@ class BaseService {
             timeout: Long,
         ) {
             launch {
+                trafficSent.clear()
                 if (bandwidthListeners.isEmpty() and (bandwidthListeners.put(
                         cb.asBinder(), timeout
                     ) == null)
@@ -297,6 +290,7 @@ class BaseService {
 
         override fun startListeningForStats(cb: ISagerNetServiceCallback, timeout: Long) {
             launch {
+                statsResync = true
                 if (statsListeners.isEmpty() and (statsListeners.put(
                         cb.asBinder(), timeout
                     ) == null)
@@ -337,9 +331,19 @@ class BaseService {
 
         override fun resetTrafficStats() {
             runOnDefaultDispatcher {
-                SagerDatabase.statsDao.deleteAll()
-                (data?.proxy?.service as? VpnService)?.tun?.resetAppTraffics()
-                val empty = AppStatsList(emptyList())
+                val service = data?.proxy?.service as? VpnService
+                if (service != null) {
+                    // hold the table so that no checkpoint lands between the resets
+                    synchronized(service.appStatsTable) {
+                        service.tun?.resetAppTraffics()
+                        service.appStatsTable.reset()
+                        SagerDatabase.statsDao.deleteAll()
+                    }
+                } else {
+                    SagerDatabase.statsDao.deleteAll()
+                }
+                statsResync = true
+                val empty = AppStatsList(emptyList(), true)
                 broadcast { item ->
                     if (statsListeners.contains(item.asBinder())) {
                         item.statsUpdated(empty)
@@ -397,7 +401,7 @@ class BaseService {
         }
 
         suspend fun startProcesses() {
-            data.proxy!!.launch()
+            data.startupTrace.phase("core") { data.proxy!!.launch() }
         }
 
         fun startRunner() {
@@ -487,15 +491,26 @@ class BaseService {
                 createNotification(profile.displayName())
             }
 
+            val trace = StartupTrace()
+            data.startupTrace = trace
             data.changeState(State.Connecting)
             runOnMainDispatcher {
                 try {
-                    Executable.killAll()    // clean up old processes
-                    preInit()
-                    try {
-                        proxy.init(data.proxy?.service is VpnService)
-                    } catch (jsonEx: JSONException) {
-                        error(jsonEx.readableMessage.replace("cn.hutool.json.", ""))
+                    trace.phase("cleanup") { Executable.killAll() }    // clean up old processes
+                    val isVpn = this@Interface is VpnService
+                    coroutineScope {
+                        // the config does not depend on what preInit prepares
+                        val config = async(Dispatchers.Default) {
+                            trace.phase("config") {
+                                try {
+                                    proxy.init(isVpn)
+                                } catch (jsonEx: JSONException) {
+                                    error(jsonEx.readableMessage.replace("cn.hutool.json.", ""))
+                                }
+                            }
+                        }
+                        trace.phase("prepare") { preInit() }
+                        config.await()
                     }
                     proxy.processes = GuardedProcessPool {
                         Logs.w(it)
@@ -504,6 +519,8 @@ class BaseService {
                     DataStore.currentProfile = profile.id
                     DataStore.startedProfile = profile.id
                     startProcesses()
+                    trace.finish()
+                    Logs.i("Started in $trace")
                     data.changeState(State.Connected)
                     data.binder.checkLoop()
 
@@ -0,0 +1,142 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg
+
+import android.os.SystemClock
+import io.nekohasekai.sagernet.ktx.Logs
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Answers of the system resolver, shared by every [LocalResolver] of the process.
+ *
+ * Entries live for the TTL reported by the upstream and are dropped least recently used
+ * first once [MAX_ENTRIES] is reached. Lookups of a key already queried upstream wait for
+ * that query instead of sending their own, unless it has been pending for longer than
+ * [QUERY_TIMEOUT]: its waiters then fail and a fresh query is sent. Failures are never cached.
+ */
+object DnsCache {
+
+    const val QUERY_TIMEOUT = 10_000L
+
+    private const val MAX_ENTRIES = 1024
+    private const val METRICS_INTERVAL = 512L
+
+    private class Entry(val value: Any, val storedAt: Long, val expiresAt: Long)
+
+    private class Query(val startedAt: Long) {
+        val callbacks = ArrayList<(Result<Any>, Long) -> Unit>()
+
+        // hands the callbacks out once, to whichever of the answer and the timeout comes first
+        fun take() = callbacks.toList().also { callbacks.clear() }
+    }
+
+    private val entries = object : LinkedHashMap<String, Entry>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?): Boolean {
+            return size > MAX_ENTRIES
+        }
+    }
+    private val inFlight = HashMap<String, Query>()
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val coalesced = AtomicLong()
+    private val upstreamTime = AtomicLong()
+
+    /**
+     * Resolve [key], calling [upstream] only when no live entry or pending query exists.
+     *
+     * [upstream] must eventually call its completion exactly once, with the time to live of
+     * the answer in milliseconds, or 0 to skip caching it. [callback] receives the answer
+     * and its age in milliseconds, on the thread that completed the upstream query or on
+     * the calling thread for cached answers.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> resolve(
+        key: String,
+        upstream: (complete: (Result<T>, Long) -> Unit) -> Unit,
+        callback: (Result<T>, Long) -> Unit
+    ) {
+        val now = SystemClock.elapsedRealtime()
+        val query = Query(now)
+        var lost: List<(Result<Any>, Long) -> Unit>? = null
+        val cached = synchronized(this) {
+            val entry = entries[key]
+            if (entry != null) {
+                if (entry.expiresAt > now) return@synchronized entry
+                entries.remove(key)
+            }
+            val waiting = inFlight[key]
+            if (waiting != null) {
+                if (now - waiting.startedAt < QUERY_TIMEOUT) {
+                    coalesced.incrementAndGet()
+                    waiting.callbacks.add(callback as (Result<Any>, Long) -> Unit)
+                    return
+                }
+                // the upstream never answered, don't let it hold every later lookup
+                lost = waiting.take()
+            }
+            query.callbacks.add(callback as (Result<Any>, Long) -> Unit)
+            inFlight[key] = query
+            null
+        }
+        lost?.let { callbacks ->
+            val timeout = Result.failure<Any>(TimeoutException("dns query for $key timed out"))
+            callbacks.forEach { it(timeout, 0L) }
+        }
+        if (cached != null) {
+            hits.incrementAndGet()
+            callback(Result.success(cached.value as T), now - cached.storedAt)
+            return
+        }
+        val queries = misses.incrementAndGet()
+        val complete = { result: Result<T>, ttl: Long ->
+            val completedAt = SystemClock.elapsedRealtime()
+            upstreamTime.addAndGet(completedAt - now)
+            val waiting = synchronized(this) {
+                val value = result.getOrNull()
+                if (value != null && ttl > 0) {
+                    entries[key] = Entry(value, completedAt, completedAt + ttl)
+                }
+                if (inFlight[key] === query) inFlight.remove(key)
+                query.take()
+            }
+            waiting.forEach { it(result, 0L) }
+            if (queries % METRICS_INTERVAL == 0L) Logs.d(metrics())
+        }
+        try {
+            upstream(complete)
+        } catch (e: Exception) {
+            complete(Result.failure(e), 0L)
+        }
+    }
+
+    fun metrics(): String {
+        val hits = hits.get()
+        val misses = misses.get()
+        val coalesced = coalesced.get()
+        val lookups = hits + misses + coalesced
+        val hitRate = if (lookups > 0) (hits + coalesced) * 100 / lookups else 0
+        val latency = if (misses > 0) upstreamTime.get() / misses else 0
+        return "dns cache: $lookups lookups, $hitRate% served locally " +
+                "($hits cached, $coalesced coalesced), $misses upstream averaging ${latency}ms"
+    }
+
+}
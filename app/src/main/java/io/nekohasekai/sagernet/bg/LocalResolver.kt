@@ -24,15 +24,24 @@ import android.os.Build
 import android.os.CancellationSignal
 import androidx.annotation.RequiresApi
 import cn.hutool.core.lang.Validator
-import io.nekohasekai.sagernet.ktx.tryResume
-import io.nekohasekai.sagernet.ktx.tryResumeWithException
+import io.nekohasekai.sagernet.ktx.dnsCacheKey
+import io.nekohasekai.sagernet.ktx.dnsReply
+import io.nekohasekai.sagernet.ktx.dnsTtl
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.asExecutor
-import kotlinx.coroutines.runBlocking
 import libcore.LocalResolver
 import java.net.InetAddress
 import java.net.UnknownHostException
-import kotlin.coroutines.suspendCoroutine
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * The system resolver does not report TTLs of address lookups,
+ * so their answers are kept for a fixed time.
+ */
+private const val ADDRESS_TTL = 60_000L
+private const val NEGATIVE_TTL = 10_000L
 
 interface LocalResolver : LocalResolver {
 
@@ -43,112 +52,163 @@ interface LocalResolver : LocalResolver {
     }
 
     override fun lookupIP(network: String, domain: String): String {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            return runBlocking {
-                suspendCoroutine { continuation ->
-                    val signal = CancellationSignal()
-                    val callback = object : DnsResolver.Callback<Collection<InetAddress>> {
-                        @Suppress("ThrowableNotThrown")
-                        override fun onAnswer(answer: Collection<InetAddress>, rcode: Int) {
-                            when {
-                                answer.isNotEmpty() -> {
-                                    continuation.tryResume(answer.mapNotNull { it.hostAddress }
-                                        .joinToString(","))
-                                }
-                                rcode == 0 -> {
-                                    continuation.tryResume("")
-                                }
-                                else -> {
-                                    continuation.tryResumeWithException(Exception("rcode $rcode"))
-                                }
-                            }
-                        }
-
-                        override fun onError(error: DnsResolver.DnsException) {
-                            continuation.tryResumeWithException(error)
-                        }
+        return await { lookupIP(network, domain, it) }
+    }
+
+    /**
+     * Non-blocking variant of [lookupIP], [callback] is called on a resolver thread
+     * or, for cached answers, on the calling thread.
+     */
+    fun lookupIP(network: String, domain: String, callback: (Result<String>) -> Unit) {
+        val underlyingNetwork = underlyingNetwork
+        val key = "$underlyingNetwork/$network/${domain.lowercase()}"
+        DnsCache.resolve<String>(key, { complete ->
+            queryIP(underlyingNetwork, network, domain) { result ->
+                complete(result, if (result.getOrNull()?.isEmpty() == true) NEGATIVE_TTL else ADDRESS_TTL)
+            }
+        }) { result, _ -> callback(result) }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    override fun exchange(message: ByteArray): ByteArray {
+        return await { exchange(message, it) }
+    }
+
+    /**
+     * Non-blocking variant of [exchange]. Answers are cached by question and served with
+     * the query ID and TTLs rewritten.
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    fun exchange(message: ByteArray, callback: (Result<ByteArray>) -> Unit) {
+        val underlyingNetwork = underlyingNetwork
+        val question = dnsCacheKey(message)
+        if (question == null) {
+            rawQuery(underlyingNetwork, message, callback)
+            return
+        }
+        DnsCache.resolve<ByteArray>("$underlyingNetwork/$question", { complete ->
+            rawQuery(underlyingNetwork, message) { result ->
+                complete(result, result.getOrNull()?.let { dnsTtl(it) } ?: 0L)
+            }
+        }) { result, age ->
+            callback(result.map { dnsReply(it, message, age) })
+        }
+    }
+
+}
+
+private fun <T> await(query: ((Result<T>) -> Unit) -> Unit): T {
+    val latch = CountDownLatch(1)
+    var answer: Result<T>? = null
+    query {
+        answer = it
+        latch.countDown()
+    }
+    if (!latch.await(DnsCache.QUERY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        throw TimeoutException("dns query timed out")
+    }
+    return answer!!.getOrThrow()
+}
+
+private fun queryIP(
+    underlyingNetwork: Network?, network: String, domain: String, callback: (Result<String>) -> Unit
+) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+        val signal = CancellationSignal()
+        val answerCallback = object : DnsResolver.Callback<Collection<InetAddress>> {
+            override fun onAnswer(answer: Collection<InetAddress>, rcode: Int) {
+                when {
+                    answer.isNotEmpty() -> {
+                        callback(Result.success(answer.mapNotNull { it.hostAddress }
+                            .joinToString(",")))
                     }
-                    val type = when {
-                        network.endsWith("4") -> DnsResolver.TYPE_A
-                        network.endsWith("6") -> DnsResolver.TYPE_AAAA
-                        else -> null
+                    rcode == 0 -> {
+                        callback(Result.success(""))
                     }
-                    if (type != null) {
-                        DnsResolver.getInstance().query(
-                            underlyingNetwork,
-                            domain,
-                            type,
-                            DnsResolver.FLAG_NO_RETRY,
-                            Dispatchers.IO.asExecutor(),
-                            signal,
-                            callback
-                        )
-                    } else {
-                        DnsResolver.getInstance().query(
-                            underlyingNetwork,
-                            domain,
-                            DnsResolver.FLAG_NO_RETRY,
-                            Dispatchers.IO.asExecutor(),
-                            signal,
-                            callback
-                        )
+                    else -> {
+                        callback(Result.failure(Exception("rcode $rcode")))
                     }
                 }
             }
-        } else {
-            val underlyingNetwork = underlyingNetwork ?: error("upstream network not found")
-            val answer = try {
-                underlyingNetwork.getAllByName(domain)
-            } catch (e: UnknownHostException) {
-                return ""
+
+            override fun onError(error: DnsResolver.DnsException) {
+                callback(Result.failure(error))
             }
-            val filtered = mutableListOf<String>()
-            when {
-                network.endsWith("4") -> for (address in answer) {
-                    address.hostAddress?.takeIf { Validator.isIpv4(it) }?.also { filtered.add(it) }
-                }
-                network.endsWith("6") -> for (address in answer) {
-                    address.hostAddress?.takeIf { Validator.isIpv6(it) }?.also { filtered.add(it) }
-                }
-                else -> filtered.addAll(answer.mapNotNull { it.hostAddress })
+        }
+        val type = when {
+            network.endsWith("4") -> DnsResolver.TYPE_A
+            network.endsWith("6") -> DnsResolver.TYPE_AAAA
+            else -> null
+        }
+        if (type != null) {
+            DnsResolver.getInstance().query(
+                underlyingNetwork,
+                domain,
+                type,
+                DnsResolver.FLAG_NO_RETRY,
+                Dispatchers.IO.asExecutor(),
+                signal,
+                answerCallback
+            )
+        } else {
+            DnsResolver.getInstance().query(
+                underlyingNetwork,
+                domain,
+                DnsResolver.FLAG_NO_RETRY,
+                Dispatchers.IO.asExecutor(),
+                signal,
+                answerCallback
+            )
+        }
+    } else {
+        underlyingNetwork ?: error("upstream network not found")
+        val answer = try {
+            underlyingNetwork.getAllByName(domain)
+        } catch (e: UnknownHostException) {
+            callback(Result.success(""))
+            return
+        }
+        val filtered = mutableListOf<String>()
+        when {
+            network.endsWith("4") -> for (address in answer) {
+                address.hostAddress?.takeIf { Validator.isIpv4(it) }?.also { filtered.add(it) }
             }
-            if (filtered.isEmpty()) {
-                return ""
+            network.endsWith("6") -> for (address in answer) {
+                address.hostAddress?.takeIf { Validator.isIpv6(it) }?.also { filtered.add(it) }
             }
-            return filtered.joinToString(",")
+            else -> filtered.addAll(answer.mapNotNull { it.hostAddress })
         }
+        callback(Result.success(filtered.joinToString(",")))
     }
+}
 
-    @RequiresApi(Build.VERSION_CODES.Q)
-    override fun exchange(message: ByteArray): ByteArray {
-        return runBlocking {
-            suspendCoroutine { continuation ->
-                val signal = CancellationSignal()
-                val callback = object : DnsResolver.Callback<ByteArray> {
-                    override fun onAnswer(answer: ByteArray, rcode: Int) {
-                        when {
-                            answer.isNotEmpty() -> {
-                                continuation.tryResume(answer)
-                            }
-                            else -> {
-                                continuation.tryResumeWithException(Exception("rcode $rcode"))
-                            }
-                        }
-                    }
-
-                    override fun onError(error: DnsResolver.DnsException) {
-                        continuation.tryResumeWithException(error)
-                    }
+@RequiresApi(Build.VERSION_CODES.Q)
+private fun rawQuery(
+    underlyingNetwork: Network?, message: ByteArray, callback: (Result<ByteArray>) -> Unit
+) {
+    val signal = CancellationSignal()
+    val answerCallback = object : DnsResolver.Callback<ByteArray> {
+        override fun onAnswer(answer: ByteArray, rcode: Int) {
+            when {
+                answer.isNotEmpty() -> {
+                    callback(Result.success(answer))
+                }
+                else -> {
+                    callback(Result.failure(Exception("rcode $rcode")))
                 }
-                DnsResolver.getInstance().rawQuery(
-                    underlyingNetwork,
-                    message,
-                    DnsResolver.FLAG_NO_RETRY,
-                    Dispatchers.IO.asExecutor(),
-                    signal,
-                    callback
-                )
             }
         }
+
+        override fun onError(error: DnsResolver.DnsException) {
+            callback(Result.failure(error))
+        }
     }
-}
\ No newline at end of file
+    DnsResolver.getInstance().rawQuery(
+        underlyingNetwork,
+        message,
+        DnsResolver.FLAG_NO_RETRY,
+        Dispatchers.IO.asExecutor(),
+        signal,
+        answerCallback
+    )
+}
@@ -48,7 +48,8 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
     interface Callback {
         fun stateChanged(state: BaseService.State, profileName: String?, msg: String?)
         fun trafficUpdated(profileId: Long, stats: TrafficStats, isCurrent: Boolean) {}
-        fun statsUpdated(stats: List<AppStats>) {}
+        fun trafficUpdatedBatch(profileIds: LongArray, txTotal: LongArray, rxTotal: LongArray) {}
+        fun statsUpdated(stats: List<AppStats>, reset: Boolean) {}
         fun observatoryResultsUpdated(groupId: Long) {}
 
         fun profilePersisted(profileId: Long) {}
@@ -84,6 +85,15 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
             }
         }
 
+        override fun trafficUpdatedBatch(
+            profileIds: LongArray, txTotal: LongArray, rxTotal: LongArray
+        ) {
+            val callback = callback ?: return
+            runOnMainDispatcher {
+                callback.trafficUpdatedBatch(profileIds, txTotal, rxTotal)
+            }
+        }
+
         override fun profilePersisted(profileId: Long) {
             val callback = callback ?: return
             runOnMainDispatcher { callback.profilePersisted(profileId) }
@@ -98,7 +108,7 @@ class SagerConnection(private var listenForDeath: Boolean = false) : ServiceConn
 
         override fun statsUpdated(statsList: AppStatsList) {
             val callback = callback ?: return
-            callback.statsUpdated(statsList.data)
+            callback.statsUpdated(statsList.data, statsList.reset)
         }
 
         override fun routeAlert(type: Int, routeName: String) {
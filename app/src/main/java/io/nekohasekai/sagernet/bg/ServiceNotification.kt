@@ -111,6 +111,11 @@ class ServiceNotification(
                 update()
             }
 
+            override fun trafficUpdatedBatch(
+                profileIds: LongArray, txTotal: LongArray, rxTotal: LongArray
+            ) {
+            }
+
             override fun statsUpdated(statsList: AppStatsList?) {
             }
 
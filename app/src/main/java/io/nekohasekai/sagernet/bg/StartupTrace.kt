@@ -0,0 +1,59 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg
+
+import android.os.SystemClock
+
+/**
+ * Durations of the phases of a service start. Phases may overlap, so their sum can exceed
+ * the total.
+ */
+class StartupTrace {
+
+    private val startedAt = SystemClock.elapsedRealtime()
+    private val phases = ArrayList<Pair<String, Long>>()
+    private var total = -1L
+
+    inline fun <T> phase(name: String, block: () -> T): T {
+        val start = SystemClock.elapsedRealtime()
+        try {
+            return block()
+        } finally {
+            record(name, SystemClock.elapsedRealtime() - start)
+        }
+    }
+
+    @Synchronized
+    fun record(name: String, duration: Long) {
+        phases.add(name to duration)
+    }
+
+    @Synchronized
+    fun finish() {
+        total = SystemClock.elapsedRealtime() - startedAt
+    }
+
+    @Synchronized
+    override fun toString(): String {
+        val phases = phases.joinToString(", ") { (name, duration) -> "$name ${duration}ms" }
+        return if (total < 0) phases else "${total}ms ($phases)"
+    }
+
+}
@@ -21,7 +21,6 @@
 
 package io.nekohasekai.sagernet.bg
 
-import android.Manifest
 import android.app.Service
 import android.content.Intent
 import android.content.pm.PackageManager
@@ -29,15 +28,16 @@ import android.net.Network
 import android.net.ProxyInfo
 import android.os.Build
 import android.os.ParcelFileDescriptor
+import android.os.SystemClock
 import android.system.ErrnoException
 import android.system.Os
 import io.nekohasekai.sagernet.*
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.SagerDatabase
-import io.nekohasekai.sagernet.database.StatsEntity
 import io.nekohasekai.sagernet.fmt.LOCALHOST
 import io.nekohasekai.sagernet.fmt.hysteria.HysteriaBean
 import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.listByLineOrComma
 import io.nekohasekai.sagernet.ui.VpnRequestActivity
 import io.nekohasekai.sagernet.utils.DefaultNetworkListener
@@ -45,6 +45,8 @@ import io.nekohasekai.sagernet.utils.PackageCache
 import io.nekohasekai.sagernet.utils.Subnet
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import libcore.*
 import java.io.FileDescriptor
@@ -60,6 +62,9 @@ class VpnService : BaseVpnService(),
         var instance: VpnService? = null
 
         const val DEFAULT_MTU = 1500
+        private const val APP_STATS_POLL_INTERVAL = 5000L
+        private const val APP_STATS_CHECKPOINT_INTERVAL = 60000L
+        private const val APP_STATS_CHECKPOINT_BYTES = 16L * 1024 * 1024
         const val PRIVATE_VLAN4_CLIENT = "172.19.0.1"
         const val PRIVATE_VLAN4_GATEWAY = "172.19.0.2"
         const val PRIVATE_VLAN6_CLIENT = "fdfe:dcba:9876::1"
@@ -67,6 +72,13 @@ class VpnService : BaseVpnService(),
         const val FAKEDNS_VLAN4_CLIENT = "198.18.0.0"
         const val FAKEDNS_VLAN6_CLIENT = "fc00::"
 
+        private val bypassPrivateRoutes by lazy {
+            app.resources.getStringArray(R.array.bypass_private_route).map {
+                val subnet = Subnet.fromString(it)!!
+                subnet.address.hostAddress!! to subnet.prefixSize
+            }
+        }
+
         private fun <T> FileDescriptor.use(block: (FileDescriptor) -> T) = try {
             block(this)
         } finally {
@@ -98,7 +110,7 @@ class VpnService : BaseVpnService(),
             }
 
     override suspend fun startProcesses() {
-        startVpn()
+        data.startupTrace.phase("tun") { startVpn() }
         super.startProcesses()
     }
 
@@ -109,6 +121,8 @@ class VpnService : BaseVpnService(),
         }
         if (::conn.isInitialized) conn.close()
         super.killProcesses()
+        appStatsJob?.cancel()
+        appStatsJob = null
         persistAppStats()
         active = false
         tun?.apply {
@@ -146,6 +160,9 @@ class VpnService : BaseVpnService(),
             underlyingNetwork = it
             SagerNet.reloadNetwork(it)
         }
+        // load what startVpn needs while the config is being built
+        if (DataStore.bypassLan && !DataStore.bypassLanInCoreOnly) bypassPrivateRoutes
+        if (DataStore.proxyApps) PackageCache.awaitLoad()
     }
 
     inner class NullConnectionException : NullPointerException(),
@@ -168,9 +185,8 @@ class VpnService : BaseVpnService(),
         }
 
         if (DataStore.bypassLan && !DataStore.bypassLanInCoreOnly) {
-            resources.getStringArray(R.array.bypass_private_route).forEach {
-                val subnet = Subnet.fromString(it)!!
-                builder.addRoute(subnet.address.hostAddress!!, subnet.prefixSize)
+            for ((address, prefixSize) in bypassPrivateRoutes) {
+                builder.addRoute(address, prefixSize)
             }
             builder.addRoute(PRIVATE_VLAN4_GATEWAY, 32)
             // https://issuetracker.google.com/issues/149636790
@@ -207,15 +223,8 @@ class VpnService : BaseVpnService(),
             var bypass = DataStore.bypass
             val individual = mutableSetOf<String>()
             val allApps by lazy {
-                packageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS).filter {
-                    when (it.packageName) {
-                        packageName -> false
-                        "android" -> true
-                        else -> it.requestedPermissions?.contains(Manifest.permission.INTERNET) == true
-                    }
-                }.map {
-                    it.packageName
-                }
+                PackageCache.awaitLoadSync()
+                PackageCache.installedPackages.keys.filter { it != packageName }
             }
             if (proxyApps) {
                 individual.addAll(DataStore.individual.split('\n').filter { it.isNotEmpty() })
@@ -302,49 +311,59 @@ class VpnService : BaseVpnService(),
         }
 
         tun = Libcore.newTun2ray(config)
+        appStatsTable = AppStatsTable()
+        startAppStatsCheckpoints()
     }
 
-    val appStats = mutableListOf<AppStats>()
+    /** Per-app traffic of [tun], shared by the stats listeners and the checkpoints. */
+    var appStatsTable = AppStatsTable()
+        private set
+    private var appStatsJob: Job? = null
 
     override fun updateStats(stats: AppStats) {
-        appStats.add(stats)
+        appStatsTable.add(stats)
     }
 
-    fun persistAppStats() {
-        if (!DataStore.appTrafficStatistics) return
-        val tun = tun ?: return
-        appStats.clear()
+    /** Read the per-app counters of the tun device into [appStatsTable]. */
+    @Synchronized
+    fun readAppStats(): AppStatsTable? {
+        val tun = tun ?: return null
+        appStatsTable.beginRead()
         tun.readAppTraffics(this)
-        val toUpdate = mutableListOf<StatsEntity>()
-        val all = SagerDatabase.statsDao.all().associateBy { it.packageName }
-        for (stats in appStats) {
-            val packageName = if (stats.uid >= 10000) {
-                PackageCache.uidMap[stats.uid]?.iterator()?.next() ?: "android"
-            } else {
-                "android"
-            }
-            if (!all.containsKey(packageName)) {
-                SagerDatabase.statsDao.create(
-                    StatsEntity(
-                        packageName = packageName,
-                        tcpConnections = stats.tcpConnTotal,
-                        udpConnections = stats.udpConnTotal,
-                        uplink = stats.uplinkTotal,
-                        downlink = stats.downlinkTotal
-                    )
-                )
-            } else {
-                val entity = all[packageName]!!
-                entity.tcpConnections += stats.tcpConnTotal
-                entity.udpConnections += stats.udpConnTotal
-                entity.uplink += stats.uplinkTotal
-                entity.downlink += stats.downlinkTotal
-                toUpdate.add(entity)
+        return appStatsTable
+    }
+
+    /**
+     * Checkpoint per-app traffic every [APP_STATS_CHECKPOINT_INTERVAL], or earlier once
+     * [APP_STATS_CHECKPOINT_BYTES] are pending, so that a killed process loses at most one
+     * interval.
+     */
+    private fun startAppStatsCheckpoints() {
+        if (!DataStore.appTrafficStatistics) return
+        appStatsJob = GlobalScope.launch(Dispatchers.IO) {
+            var lastCheckpoint = SystemClock.elapsedRealtime()
+            while (true) {
+                delay(APP_STATS_POLL_INTERVAL)
+                val table = readAppStats() ?: continue
+                val now = SystemClock.elapsedRealtime()
+                if (now - lastCheckpoint < APP_STATS_CHECKPOINT_INTERVAL &&
+                    table.pendingBytes() < APP_STATS_CHECKPOINT_BYTES
+                ) continue
+                lastCheckpoint = now
+                try {
+                    table.checkpoint { SagerDatabase.statsDao.addAll(it) }
+                } catch (e: Exception) {
+                    Logs.w(e)
+                }
             }
         }
-        if (toUpdate.isNotEmpty()) {
-            SagerDatabase.statsDao.update(toUpdate)
-        }
+    }
+
+    /** Write the per-app traffic not covered by a checkpoint yet. */
+    fun persistAppStats() {
+        if (!DataStore.appTrafficStatistics) return
+        val table = readAppStats() ?: return
+        table.checkpoint { SagerDatabase.statsDao.addAll(it) }
     }
 
     override fun onRevoke() = stopRunner()
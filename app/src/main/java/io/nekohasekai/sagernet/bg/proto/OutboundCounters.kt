@@ -0,0 +1,58 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg.proto
+
+import libcore.V2RayInstance
+
+/**
+ * Traffic counters of a fixed list of outbound tags. Each tag owns two slots of [values],
+ * uplink at `2 * index` and downlink at `2 * index + 1`, which [query] refills in place so
+ * that polling does not allocate.
+ */
+class OutboundCounters(private val tags: Array<String>) {
+
+    val size get() = tags.size
+    val values = LongArray(tags.size * 2)
+
+    fun query(point: V2RayInstance) {
+        for (index in tags.indices) {
+            values[index * 2] = point.queryStats(tags[index], "uplink")
+            values[index * 2 + 1] = point.queryStats(tags[index], "downlink")
+        }
+    }
+
+    fun uplink(index: Int) = values[index * 2]
+    fun downlink(index: Int) = values[index * 2 + 1]
+
+    /** Sum of the uplink counters of the tags in `[from, to)`. */
+    fun uplinkSum(from: Int, to: Int): Long {
+        var sum = 0L
+        for (index in from until to) sum += values[index * 2]
+        return sum
+    }
+
+    /** Sum of the downlink counters of the tags in `[from, to)`. */
+    fun downlinkSum(from: Int, to: Int): Long {
+        var sum = 0L
+        for (index in from until to) sum += values[index * 2 + 1]
+        return sum
+    }
+
+}
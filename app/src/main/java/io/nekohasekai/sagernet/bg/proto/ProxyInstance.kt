@@ -24,6 +24,7 @@ import com.v2ray.core.app.observatory.OutboundStatus
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.bg.BaseService
 import io.nekohasekai.sagernet.database.DataStore
+import io.nekohasekai.sagernet.database.LatencyEntity
 import io.nekohasekai.sagernet.database.ProxyEntity
 import io.nekohasekai.sagernet.database.SagerDatabase
 import io.nekohasekai.sagernet.ktx.Logs
@@ -34,7 +35,8 @@ import kotlinx.coroutines.runBlocking
 import libcore.ObservatoryStatusUpdateListener
 import java.io.IOException
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.concurrent.timerTask
 
 class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) : V2RayInstance(
@@ -42,6 +44,10 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
 ),
     ObservatoryStatusUpdateListener {
 
+    companion object {
+        private const val OBSERVATORY_FLUSH_INTERVAL = 2000L
+    }
+
     lateinit var observatoryJob: Job
 
     override fun init(isVpn: Boolean) {
@@ -58,6 +64,13 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         super.launch()
 
         if (config.observerTag.isNotEmpty()) {
+            updateTimer.value.schedule(timerTask {
+                try {
+                    flushObservatory()
+                } catch (e: Exception) {
+                    Logs.w(e)
+                }
+            }, OBSERVATORY_FLUSH_INTERVAL, OBSERVATORY_FLUSH_INTERVAL)
             v2rayPoint.setStatusUpdateListener(config.observerTag, this)
             observatoryJob = runOnDefaultDispatcher {
                 sendInitStatuses()
@@ -67,8 +80,15 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         SagerNet.started = true
     }
 
+    /**
+     * Warm up the balancer with the latency history, so it does not start from a single
+     * possibly noisy sample. Profiles without history fall back to their last result.
+     */
     fun sendInitStatuses() {
         val time = (System.currentTimeMillis() / 1000) - 300
+        val history = SagerDatabase.latencyDao.getByIds(config.observatoryTags.mapNotNull {
+            it.substringAfter("global-").toLongOrNull()
+        }).associateBy { it.profileId }
         for (observatoryTag in config.observatoryTags) {
             val profileId = observatoryTag.substringAfter("global-")
             if (NumberUtil.isLong(profileId)) {
@@ -79,12 +99,16 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
                     else -> SagerDatabase.proxyDao.getById(id)
                 } ?: continue
 
-                if (profile.status > 0) v2rayPoint.updateStatus(
+                val latency = history[id]?.takeIf { it.size > 0 }
+                val alive = latency?.let { it.successRate >= 0.5f } ?: (profile.status == 1)
+                val delay = latency?.p50?.takeIf { it >= 0 } ?: profile.ping
+
+                if (latency != null || profile.status > 0) v2rayPoint.updateStatus(
                     config.observerTag,
                     OutboundStatus.newBuilder()
                         .setOutboundTag(observatoryTag)
-                        .setAlive(profile.status == 1)
-                        .setDelay(profile.ping.toLong())
+                        .setAlive(alive)
+                        .setDelay(delay.toLong())
                         .setLastErrorReason(profile.error ?: "")
                         .setLastTryTime(time)
                         .setLastSeenTime(time)
@@ -95,8 +119,18 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         }
     }
 
+    private class ObservatoryResult(val status: Int, val ping: Int, val error: String) {
+        fun sameAs(profile: ProxyEntity) =
+            profile.status == status && profile.ping == ping && profile.error == error
+    }
+
+    // observatory results are buffered here and written by flushObservatory()
+    private val observatoryQueue = ConcurrentLinkedQueue<Pair<Long, ObservatoryResult>>()
+    private val observatoryWritten = HashMap<Long, ObservatoryResult>()
+    private val observatoryGroups = HashMap<Long, Long>()
+    private val observatoryReceived = AtomicLong()
+    private var observatoryRowsWritten = 0L
     val updateTimer = lazy { Timer("Observatory Timer") }
-    val updateTasks by lazy { ConcurrentHashMap<Long, TimerTask>() }
 
     @Throws(Exception::class)
     override fun onUpdateObservatoryStatus(statusPb: ByteArray?) {
@@ -106,48 +140,84 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         val status = OutboundStatus.parseFrom(statusPb)
         val profileId = status.outboundTag.substringAfter("global-")
         if (NumberUtil.isLong(profileId)) {
-            val id = profileId.toLong()
-            val profile = when {
+            observatoryReceived.incrementAndGet()
+            observatoryQueue.add(profileId.toLong() to ObservatoryResult(
+                if (status.alive) 1 else 3, status.delay.toInt(), status.lastErrorReason
+            ))
+        } else {
+            Logs.d("Persist skipped on outbound ${status.outboundTag}")
+        }
+    }
+
+    /**
+     * Write buffered observatory results in one transaction: every sample goes to the latency
+     * history, the latest result of each profile to its row if it changed since the last write.
+     * Groups with changed profiles are notified once per flush.
+     */
+    @Synchronized
+    private fun flushObservatory() {
+        if (observatoryQueue.isEmpty()) return
+        val samples = ArrayList<Pair<Long, ObservatoryResult>>()
+        while (true) samples.add(observatoryQueue.poll() ?: break)
+        val latest = LinkedHashMap<Long, ObservatoryResult>()
+        for ((id, result) in samples) latest[id] = result
+
+        val loaded = latest.keys.filter {
+            it != profile.id && !statsOutbounds.containsKey(it) && !observatoryGroups.containsKey(it)
+        }.takeIf { it.isNotEmpty() }?.let { ids ->
+            SagerDatabase.proxyDao.getEntities(ids).associateBy { it.id }
+        } ?: emptyMap()
+
+        val dirty = ArrayList<Pair<Long, ObservatoryResult>>()
+        val updatedGroups = HashSet<Long>()
+        for ((id, result) in latest) {
+            val entity = when {
                 id == profile.id -> profile
                 statsOutbounds.containsKey(id) -> statsOutbounds[id]!!.proxyEntity
-                else -> {
-                    SagerDatabase.proxyDao.getById(id)
-                }
+                else -> loaded[id]
+            }
+            val groupId = entity?.groupId ?: observatoryGroups[id]
+            if (groupId == null) {
+                Logs.d("Profile with id #$id not found")
+                continue
+            }
+            observatoryGroups[id] = groupId
+            val written = observatoryWritten[id]
+            val changed = if (written != null) {
+                written.status != result.status || written.ping != result.ping || written.error != result.error
+            } else {
+                entity == null || !result.sameAs(entity)
             }
+            entity?.apply {
+                status = result.status
+                ping = result.ping
+                error = result.error
+            }
+            observatoryWritten[id] = result
+            if (changed) {
+                dirty.add(id to result)
+                updatedGroups.add(groupId)
+            }
+        }
 
-            if (profile != null) {
-                val newStatus = if (status.alive) 1 else 3
-                val newDelay = status.delay.toInt()
-                val newErrorReason = status.lastErrorReason
-
-                if (profile.status != newStatus || profile.ping != newDelay || profile.error != newErrorReason) {
-                    profile.status = newStatus
-                    profile.ping = newDelay
-                    profile.error = newErrorReason
-
-                    SagerDatabase.proxyDao.updateProxy(profile)
-
-                    Logs.d("Send result for #$profileId ${profile.displayName()}")
-
-                    val groupId = profile.groupId
-                    val task = timerTask {
-                        if (updateTasks[groupId] == this) {
-                            runOnDefaultDispatcher {
-                                service.data.binder.broadcast {
-                                    it.observatoryResultsUpdated(groupId)
-                                }
-                            }
-                            updateTasks.remove(groupId)
-                        }
-                    }
-                    updateTimer.value.schedule(task, 2000L)
-                    updateTasks.put(groupId, task)?.cancel()
+        SagerDatabase.runInTransaction {
+            SagerDatabase.latencyDao.record(samples.mapNotNull { (id, result) ->
+                if (!observatoryGroups.containsKey(id)) return@mapNotNull null
+                id to if (result.status == 1) result.ping else LatencyEntity.FAILURE
+            })
+            for ((id, result) in dirty) {
+                SagerDatabase.proxyDao.updateStatus(id, result.status, result.ping, result.error)
+            }
+        }
+        observatoryRowsWritten += dirty.size
+        Logs.d("Observatory: ${observatoryReceived.get()} updates received, $observatoryRowsWritten rows written")
+
+        if (updatedGroups.isNotEmpty()) runOnDefaultDispatcher {
+            for (groupId in updatedGroups) {
+                service.data.binder.broadcast {
+                    it.observatoryResultsUpdated(groupId)
                 }
-            } else {
-                Logs.d("Profile with id #$profileId not found")
             }
-        } else {
-            Logs.d("Persist skipped on outbound ${status.outboundTag}")
         }
     }
 
@@ -157,7 +227,10 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         persistStats()
         super.close()
 
-        if (updateTimer.isInitialized()) updateTimer.value.cancel()
+        if (updateTimer.isInitialized()) {
+            updateTimer.value.cancel()
+            runCatching { flushObservatory() }.onFailure { Logs.w(it) }
+        }
         if (::observatoryJob.isInitialized) observatoryJob.cancel()
     }
 
@@ -167,43 +240,11 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
         return v2rayPoint.queryStats(tag, direct)
     }
 
-    private val currentTags by lazy {
-        mapOf(* config.outboundTagsCurrent.map {
-            it to config.outboundTagsAll[it]
-        }.toTypedArray())
-    }
-
-    private val statsTags by lazy {
-        mapOf(*  config.outboundTags.toMutableList().apply {
-            removeAll(config.outboundTagsCurrent)
-        }.map {
-            it to config.outboundTagsAll[it]
-        }.toTypedArray())
-    }
-
-    private val interTags by lazy {
-        config.outboundTagsAll.filterKeys { !config.outboundTags.contains(it) }
-    }
-
     class OutboundStats(
         val proxyEntity: ProxyEntity, var uplinkTotal: Long = 0L, var downlinkTotal: Long = 0L
     )
 
     private val statsOutbounds = hashMapOf<Long, OutboundStats>()
-    private fun registerStats(
-        proxyEntity: ProxyEntity, uplink: Long? = null, downlink: Long? = null
-    ) {
-        if (proxyEntity.id == outboundStats.proxyEntity.id) return
-        val stats = statsOutbounds.getOrPut(proxyEntity.id) {
-            OutboundStats(proxyEntity)
-        }
-        if (uplink != null) {
-            stats.uplinkTotal += uplink
-        }
-        if (downlink != null) {
-            stats.downlinkTotal += downlink
-        }
-    }
 
     var uplinkProxy = 0L
     var downlinkProxy = 0L
@@ -211,60 +252,49 @@ class ProxyInstance(profile: ProxyEntity, val service: BaseService.Interface) :
     var downlinkTotalDirect = 0L
 
     private val outboundStats = OutboundStats(profile)
-    fun outboundStats(): Pair<OutboundStats, HashMap<Long, OutboundStats>> {
-        if (!isInitialized()) return outboundStats to statsOutbounds
-        uplinkProxy = 0L
-        downlinkProxy = 0L
-
-        val currentUpLink = currentTags.map { (tag, profile) ->
-            queryStats(tag, "uplink").apply {
-                profile?.also {
-                    registerStats(
-                        it, uplink = this
-                    )
-                }
-            }
+
+    // tags of the current outbound, then other outbounds with their own tags, then
+    // intermediate chain outbounds; slot owners are resolved once, null for untracked tags
+    private var currentEnd = 0
+    private var statsEnd = 0
+    private lateinit var slotOwners: Array<OutboundStats?>
+    private val counters by lazy {
+        val tags = LinkedHashMap<String, ProxyEntity?>()
+        for (tag in config.outboundTagsCurrent) tags[tag] = config.outboundTagsAll[tag]
+        currentEnd = tags.size
+        for (tag in config.outboundTags) {
+            if (!tags.containsKey(tag)) tags[tag] = config.outboundTagsAll[tag]
         }
-        val currentDownLink = currentTags.map { (tag, profile) ->
-            queryStats(tag, "downlink").apply {
-                profile?.also {
-                    registerStats(it, downlink = this)
-                }
+        statsEnd = tags.size
+        for ((tag, proxyEntity) in config.outboundTagsAll) {
+            if (!tags.containsKey(tag)) tags[tag] = proxyEntity
+        }
+        slotOwners = tags.values.map { proxyEntity ->
+            proxyEntity?.takeIf { it.id != outboundStats.proxyEntity.id }?.let {
+                statsOutbounds.getOrPut(it.id) { OutboundStats(it) }
             }
+        }.toTypedArray()
+        OutboundCounters(tags.keys.toTypedArray())
+    }
+
+    fun outboundStats(): Pair<OutboundStats, HashMap<Long, OutboundStats>> {
+        if (!isInitialized()) return outboundStats to statsOutbounds
+        val counters = counters
+        counters.query(v2rayPoint)
+
+        for (index in 0 until counters.size) {
+            val owner = slotOwners[index] ?: continue
+            owner.uplinkTotal += counters.uplink(index)
+            owner.downlinkTotal += counters.downlink(index)
         }
-        uplinkProxy += currentUpLink.fold(0L) { acc, l -> acc + l }
-        downlinkProxy += currentDownLink.fold(0L) { acc, l -> acc + l }
 
+        uplinkProxy = counters.uplinkSum(0, currentEnd)
+        downlinkProxy = counters.downlinkSum(0, currentEnd)
         outboundStats.uplinkTotal += uplinkProxy
         outboundStats.downlinkTotal += downlinkProxy
 
-        if (statsTags.isNotEmpty()) {
-            uplinkProxy += statsTags.map { (tag, profile) ->
-                queryStats(tag, "uplink").apply {
-                    profile?.also {
-                        registerStats(it, uplink = this)
-                    }
-                }
-            }.fold(0L) { acc, l -> acc + l }
-            downlinkProxy += statsTags.map { (tag, profile) ->
-                queryStats(tag, "downlink").apply {
-                    profile?.also {
-                        registerStats(it, downlink = this)
-                    }
-                }
-            }.fold(0L) { acc, l -> acc + l }
-        }
-
-        if (interTags.isNotEmpty()) {
-            interTags.map { (tag, profile) ->
-                queryStats(tag, "uplink").also { registerStats(profile, uplink = it) }
-            }
-            interTags.map { (tag, profile) ->
-                queryStats(tag, "downlink").also {
-                    registerStats(profile, downlink = it)
-                }
-            }
-        }
+        uplinkProxy += counters.uplinkSum(currentEnd, statsEnd)
+        downlinkProxy += counters.downlinkSum(currentEnd, statsEnd)
 
         return outboundStats to statsOutbounds
     }
@@ -0,0 +1,162 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg.test
+
+import android.os.SystemClock
+import io.nekohasekai.sagernet.ktx.Logs
+import io.nekohasekai.sagernet.ktx.fileDescriptor
+import io.nekohasekai.sagernet.ktx.int
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.concurrent.thread
+
+/**
+ * Measures TCP connect time with non-blocking channels, all in-flight probes share a single
+ * selector thread instead of holding a blocked thread each.
+ */
+class TcpPingEngine(private val protect: (Int) -> Unit) : Closeable {
+
+    private class Probe(
+        val channel: SocketChannel,
+        val address: InetSocketAddress,
+        val timeout: Int,
+        val continuation: CancellableContinuation<Int>,
+    ) {
+        var start = 0L
+        var deadline = 0L
+    }
+
+    private val selector = Selector.open()
+    private val queue = ConcurrentLinkedQueue<Probe>()
+    private val active = HashSet<Probe>()
+
+    @Volatile
+    private var closed = false
+
+    init {
+        thread(name = "TCP ping", isDaemon = true) {
+            try {
+                loop()
+            } catch (e: Exception) {
+                Logs.w(e)
+            } finally {
+                shutdown()
+            }
+        }
+    }
+
+    /**
+     * @return connect time in milliseconds
+     */
+    suspend fun ping(address: InetSocketAddress, timeout: Int): Int {
+        return suspendCancellableCoroutine { continuation ->
+            val channel = SocketChannel.open()
+            try {
+                channel.configureBlocking(false)
+                protect(channel.socket().fileDescriptor.int)
+            } catch (e: Exception) {
+                channel.close()
+                throw e
+            }
+            continuation.invokeOnCancellation {
+                runCatching { channel.close() }
+            }
+            val probe = Probe(channel, address, timeout, continuation)
+            queue.add(probe)
+            if (closed && queue.remove(probe)) {
+                // missed by shutdown()
+                channel.close()
+                continuation.resumeWith(Result.failure(IOException("engine closed")))
+                return@suspendCancellableCoroutine
+            }
+            selector.wakeup()
+        }
+    }
+
+    private fun loop() {
+        while (!closed) {
+            val wait = active.minOfOrNull { it.deadline }?.let {
+                (it - SystemClock.elapsedRealtime()).coerceAtLeast(1L)
+            } ?: 0L
+            selector.select(wait)
+
+            val now = SystemClock.elapsedRealtime()
+            val selected = selector.selectedKeys().iterator()
+            while (selected.hasNext()) {
+                val key = selected.next()
+                selected.remove()
+                val probe = key.attachment() as Probe
+                finish(probe, runCatching {
+                    probe.channel.finishConnect()
+                    (now - probe.start).toInt()
+                })
+            }
+
+            while (true) {
+                val probe = queue.poll() ?: break
+                probe.start = SystemClock.elapsedRealtime()
+                probe.deadline = probe.start + probe.timeout
+                try {
+                    if (probe.channel.connect(probe.address)) {
+                        finish(probe, Result.success((SystemClock.elapsedRealtime() - probe.start).toInt()))
+                    } else {
+                        probe.channel.register(selector, SelectionKey.OP_CONNECT, probe)
+                        active.add(probe)
+                    }
+                } catch (e: Exception) {
+                    finish(probe, Result.failure(e))
+                }
+            }
+
+            val expired = SystemClock.elapsedRealtime()
+            active.filter { it.deadline <= expired }.forEach {
+                finish(it, Result.failure(SocketTimeoutException("connect timed out")))
+            }
+        }
+    }
+
+    private fun finish(probe: Probe, result: Result<Int>) {
+        active.remove(probe)
+        runCatching { probe.channel.close() }
+        if (probe.continuation.isActive) probe.continuation.resumeWith(result)
+    }
+
+    private fun shutdown() {
+        closed = true
+        val error = Result.failure<Int>(IOException("engine closed"))
+        active.toList().forEach { finish(it, error) }
+        while (true) finish(queue.poll() ?: break, error)
+        runCatching { selector.close() }
+    }
+
+    override fun close() {
+        closed = true
+        selector.wakeup()
+    }
+
+}
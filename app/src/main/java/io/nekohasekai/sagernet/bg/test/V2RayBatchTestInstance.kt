@@ -0,0 +1,55 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.bg.test
+
+import io.nekohasekai.sagernet.bg.GuardedProcessPool
+import io.nekohasekai.sagernet.bg.proto.V2RayInstance
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.fmt.buildV2RayConfig
+import io.nekohasekai.sagernet.ktx.Logs
+import libcore.Libcore
+
+/**
+ * Test several profiles through one core instance. Every profile gets its own inbound routed
+ * to its outbound chain, so [doTest] can be called concurrently for different profiles.
+ */
+class V2RayBatchTestInstance(
+    val profiles: List<ProxyEntity>, val link: String, val timeout: Int
+) : V2RayInstance(profiles[0]) {
+
+    fun start() {
+        // a crashed plugin only fails the profiles behind it, their tests report the error
+        processes = GuardedProcessPool {
+            Logs.w(it)
+        }
+        init(false)
+        launch()
+        Logs.d(config.config)
+    }
+
+    fun doTest(profile: ProxyEntity): Int {
+        val inbound = config.testInbounds[profile.id] ?: error("profile ${profile.id} not in batch")
+        return Libcore.urlTest(v2rayPoint, inbound, link, timeout)
+    }
+
+    override fun buildConfig() {
+        config = buildV2RayConfig(profile, true, profiles)
+    }
+}
@@ -34,7 +34,9 @@ import io.nekohasekai.sagernet.utils.DirectBoot
 
 object DataStore : OnPreferenceDataStoreChangeListener {
 
-    val configurationStore = RoomPreferenceDataStore(PublicDatabase.kvPairDao)
+    val configurationStore = RoomPreferenceDataStore(
+        PublicDatabase.kvPairDao, PublicDatabase.invalidationTracker
+    )
     val profileCacheStore = RoomPreferenceDataStore(InMemoryDatabase.kvPairDao)
 
     fun init() {
@@ -208,6 +210,9 @@ object DataStore : OnPreferenceDataStoreChangeListener {
     var requireTransproxy by configurationStore.boolean(Key.REQUIRE_TRANSPROXY)
     var transproxyMode by configurationStore.stringToInt(Key.TRANSPROXY_MODE)
     var connectionTestURL by configurationStore.string(Key.CONNECTION_TEST_URL) { CONNECTION_TEST_URL }
+    var connectionTestConcurrency by configurationStore.stringToInt(Key.CONNECTION_TEST_CONCURRENCY) { 6 }
+    var connectionTestTimeout by configurationStore.stringToInt(Key.CONNECTION_TEST_TIMEOUT) { 5000 }
+    var tcpPingConcurrency by configurationStore.stringToInt(Key.TCP_PING_CONCURRENCY) { 128 }
     var alwaysShowAddress by configurationStore.boolean(Key.ALWAYS_SHOW_ADDRESS)
     var showGroupName by configurationStore.boolean(Key.SHOW_GROUP_NAME)
 
@@ -76,6 +76,7 @@ object GroupManager {
     suspend fun clearGroup(groupId: Long) {
         DataStore.selectedProxy = 0L
         SagerDatabase.proxyDao.deleteAll(groupId)
+        SagerDatabase.latencyDao.prune()
         if (DataStore.directBootAware) DirectBoot.clean()
         iterator { groupUpdated(groupId) }
     }
@@ -121,6 +122,7 @@ object GroupManager {
     suspend fun deleteGroup(groupId: Long) {
         SagerDatabase.groupDao.deleteById(groupId)
         SagerDatabase.proxyDao.deleteByGroup(groupId)
+        SagerDatabase.latencyDao.prune()
         iterator { groupRemoved(groupId) }
         SubscriptionUpdater.reconfigureUpdater()
     }
@@ -128,6 +130,7 @@ object GroupManager {
     suspend fun deleteGroup(group: List<ProxyGroup>) {
         SagerDatabase.groupDao.deleteGroup(group)
         SagerDatabase.proxyDao.deleteByGroup(group.map { it.id }.toLongArray())
+        SagerDatabase.latencyDao.prune()
         for (proxyGroup in group) iterator { groupRemoved(proxyGroup.id) }
         SubscriptionUpdater.reconfigureUpdater()
     }
@@ -0,0 +1,110 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.database
+
+import androidx.room.*
+import java.nio.ByteBuffer
+
+/**
+ * Recent latency samples of a profile, kept as a ring buffer of [CAPACITY] delays with the
+ * aggregates refreshed on every sample. A failed test is recorded as [FAILURE].
+ */
+@Entity(tableName = "latency_stats")
+class LatencyEntity(
+    @PrimaryKey var profileId: Long = 0L,
+    var samples: ByteArray = ByteArray(0),
+    var cursor: Int = 0,
+    var total: Long = 0L,
+    var successes: Int = 0,
+    var p50: Int = -1,
+    var p90: Int = -1,
+    var updatedAt: Long = 0L,
+) {
+
+    companion object {
+        const val CAPACITY = 32
+        const val FAILURE = -1
+    }
+
+    /** Number of samples currently held, at most [CAPACITY]. */
+    val size get() = samples.size / 4
+
+    val successRate get() = if (size == 0) 0f else successes.toFloat() / size
+
+    fun add(delay: Int, time: Long = System.currentTimeMillis()) {
+        val buffer = ByteBuffer.wrap(
+            if (size < CAPACITY) samples.copyOf(samples.size + 4) else samples
+        )
+        buffer.putInt(cursor * 4, if (delay >= 0) delay else FAILURE)
+        samples = buffer.array()
+        cursor = (cursor + 1) % CAPACITY
+        total++
+        updatedAt = time
+
+        val delays = IntArray(size) { buffer.getInt(it * 4) }.filter { it != FAILURE }.sorted()
+        successes = delays.size
+        if (delays.isEmpty()) {
+            p50 = -1
+            p90 = -1
+        } else {
+            // nearest rank
+            p50 = delays[(delays.size - 1) / 2]
+            p90 = delays[(delays.size * 9 + 9) / 10 - 1]
+        }
+    }
+
+    @androidx.room.Dao
+    interface Dao {
+
+        @Query("SELECT * FROM latency_stats WHERE profileId = :profileId")
+        fun getById(profileId: Long): LatencyEntity?
+
+        @Query("SELECT * FROM latency_stats WHERE profileId IN (:profileIds)")
+        fun getByIds(profileIds: List<Long>): List<LatencyEntity>
+
+        @Insert(onConflict = OnConflictStrategy.REPLACE)
+        fun put(stats: List<LatencyEntity>)
+
+        /**
+         * Append (profileId, delay) samples in order, a delay below zero records a failure.
+         */
+        @Transaction
+        fun record(samples: List<Pair<Long, Int>>) {
+            if (samples.isEmpty()) return
+            val entities = getByIds(samples.map { it.first }.distinct()).associateByTo(HashMap()) { it.profileId }
+            val time = System.currentTimeMillis()
+            for ((profileId, delay) in samples) {
+                entities.getOrPut(profileId) { LatencyEntity(profileId) }.add(delay, time)
+            }
+            put(entities.values.toList())
+        }
+
+        @Query("DELETE FROM latency_stats WHERE profileId = :profileId")
+        fun deleteById(profileId: Long): Int
+
+        @Query("DELETE FROM latency_stats WHERE profileId NOT IN (SELECT id FROM proxy_entities)")
+        fun prune(): Int
+
+        @Query("DELETE FROM latency_stats")
+        fun reset()
+
+    }
+
+}
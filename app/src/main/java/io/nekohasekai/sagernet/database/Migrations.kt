@@ -88,6 +88,37 @@ object SagerDatabase_Migration_11_12 : Migration(11, 12) {
     }
 }
 
+object SagerDatabase_Migration_26_27 : Migration(26, 27) {
+    override fun migrate(database: SupportSQLiteDatabase) {
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `displayName` TEXT NOT NULL DEFAULT ''""")
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `serverAddress` TEXT NOT NULL DEFAULT ''""")
+        database.execSQL("""ALTER TABLE `proxy_entities` ADD `serverPort` INTEGER NOT NULL DEFAULT 0""")
+        database.execSQL("""CREATE INDEX IF NOT EXISTS `index_proxy_entities_groupId_displayName` ON `proxy_entities` (`groupId`, `displayName`)""")
+
+        // backfill the new columns from the stored beans
+        val update = database.compileStatement("""UPDATE `proxy_entities` SET `displayName` = ?, `serverAddress` = ?, `serverPort` = ? WHERE `id` = ?""")
+        database.query("""SELECT * FROM `proxy_entities`""").use { cursor ->
+            val idIndex = cursor.getColumnIndexOrThrow("id")
+            val typeIndex = cursor.getColumnIndexOrThrow("type")
+            val beanIndexes = cursor.columnNames.indices.filter { cursor.getColumnName(it).endsWith("Bean") }
+            while (cursor.moveToNext()) {
+                val data = beanIndexes.firstNotNullOfOrNull { index ->
+                    cursor.getBlob(index)?.takeIf { it.isNotEmpty() }
+                } ?: continue
+                val bean = ProxyEntity(type = cursor.getInt(typeIndex)).apply {
+                    putByteArray(data)
+                }.requireBean()
+                update.bindString(1, bean.displayName())
+                update.bindString(2, bean.serverAddress ?: "")
+                update.bindLong(3, (bean.serverPort ?: 0).toLong())
+                update.bindLong(4, cursor.getLong(idIndex))
+                update.executeUpdateDelete()
+                update.clearBindings()
+            }
+        }
+    }
+}
+
 @DeleteTable(
     tableName = "KeyValuePair"
 )
@@ -107,4 +138,10 @@ class SagerDatabase_Migration_14_15 : AutoMigrationSpec
         columnName = "mieru2Bean"
     )
 )
-class SagerDatabase_Migration_22_23 : AutoMigrationSpec
\ No newline at end of file
+class SagerDatabase_Migration_22_23 : AutoMigrationSpec
+
+object SagerDatabase_Migration_27_28 : Migration(27, 28) {
+    override fun migrate(database: SupportSQLiteDatabase) {
+        database.execSQL("""CREATE TABLE IF NOT EXISTS `latency_stats` (`profileId` INTEGER NOT NULL, `samples` BLOB NOT NULL, `cursor` INTEGER NOT NULL, `total` INTEGER NOT NULL, `successes` INTEGER NOT NULL, `p50` INTEGER NOT NULL, `p90` INTEGER NOT NULL, `updatedAt` INTEGER NOT NULL, PRIMARY KEY(`profileId`))""")
+    }
+}
@@ -20,6 +20,7 @@
 package io.nekohasekai.sagernet.database
 
 import android.database.sqlite.SQLiteCantOpenDatabaseException
+import io.nekohasekai.sagernet.GroupOrder
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.aidl.TrafficStats
 import io.nekohasekai.sagernet.fmt.AbstractBean
@@ -37,7 +38,9 @@ object ProfileManager {
     interface Listener {
         suspend fun onAdd(profile: ProxyEntity)
         suspend fun onUpdated(profileId: Long, trafficStats: TrafficStats)
+        suspend fun onUpdated(trafficStats: Map<Long, TrafficStats>)
         suspend fun onUpdated(profile: ProxyEntity)
+        suspend fun onUpdated(groupId: Long, profiles: List<ProxyEntity>)
         suspend fun onRemoved(groupId: Long, profileId: Long)
     }
 
@@ -111,14 +114,34 @@ object ProfileManager {
     }
 
     suspend fun updateProfile(profiles: List<ProxyEntity>) {
+        if (profiles.isEmpty()) return
         SagerDatabase.proxyDao.updateProxy(profiles)
-        profiles.forEach {
-            iterator { onUpdated(it) }
+        if (profiles.size == 1) {
+            iterator { onUpdated(profiles[0]) }
+            return
         }
+        for ((groupId, updated) in profiles.groupBy { it.groupId }) {
+            iterator { onUpdated(groupId, updated) }
+        }
+    }
+
+    /**
+     * Feed finished test results into the latency history, profiles that could not be tested
+     * are skipped.
+     */
+    fun recordLatency(profiles: List<ProxyEntity>) {
+        SagerDatabase.latencyDao.record(profiles.mapNotNull {
+            when (it.status) {
+                1 -> it.id to it.ping
+                2, 3 -> it.id to LatencyEntity.FAILURE
+                else -> null
+            }
+        })
     }
 
     suspend fun deleteProfile(groupId: Long, profileId: Long) {
         if (SagerDatabase.proxyDao.deleteById(profileId) == 0) return
+        SagerDatabase.latencyDao.deleteById(profileId)
         if (DataStore.selectedProxy == profileId) {
             if (DataStore.directBootAware) DirectBoot.clean()
             DataStore.selectedProxy = 0L
@@ -131,6 +154,7 @@ object ProfileManager {
 
     suspend fun deleteProfile2(groupId: Long, profileId: Long) {
         if (SagerDatabase.proxyDao.deleteById(profileId) == 0) return
+        SagerDatabase.latencyDao.deleteById(profileId)
         if (DataStore.selectedProxy == profileId) {
             DataStore.selectedProxy = 0L
         }
@@ -160,6 +184,31 @@ object ProfileManager {
         }
     }
 
+    /**
+     * Profiles of a group in display order, filtered by [search] against the
+     * name, address and type columns.
+     */
+    fun getProfileSummaries(
+        groupId: Long, order: Int, search: String = ""
+    ): List<ProxyEntity.Summary> {
+        val query = search.lowercase()
+        val pattern = if (query.isEmpty()) "" else "%" + query.replace("\\", "\\\\")
+            .replace("%", "\\%")
+            .replace("_", "\\_") + "%"
+        val types = if (query.isEmpty()) listOf() else ProxyEntity.typesMatching(query)
+        return when (order) {
+            GroupOrder.BY_NAME -> SagerDatabase.proxyDao.getSummariesByGroupOrderByName(
+                groupId, pattern, types
+            )
+            GroupOrder.BY_DELAY -> SagerDatabase.proxyDao.getSummariesByGroupOrderByDelay(
+                groupId, pattern, types
+            )
+            else -> SagerDatabase.proxyDao.getSummariesByGroup(
+                groupId, pattern, types
+            )
+        }
+    }
+
     suspend fun postUpdate(profileId: Long) {
         postUpdate(getProfile(profileId) ?: return)
     }
@@ -172,6 +221,10 @@ object ProfileManager {
         iterator { onUpdated(profileId, stats) }
     }
 
+    suspend fun postTrafficUpdated(stats: Map<Long, TrafficStats>) {
+        iterator { onUpdated(stats) }
+    }
+
     suspend fun createRule(rule: RuleEntity, post: Boolean = true): RuleEntity {
         rule.userOrder = SagerDatabase.rulesDao.nextOrder() ?: 1
         rule.id = SagerDatabase.rulesDao.createRule(rule)
@@ -82,11 +82,13 @@ import io.nekohasekai.sagernet.ktx.Logs
 import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.applyDefaultValues
 import io.nekohasekai.sagernet.ui.profile.*
+import java.util.Objects
 
 @Entity(
-    tableName = "proxy_entities", indices = [Index("groupId", name = "groupId")]
+    tableName = "proxy_entities",
+    indices = [Index("groupId", name = "groupId"), Index("groupId", "displayName")]
 )
-data class ProxyEntity(
+class ProxyEntity(
     @PrimaryKey(autoGenerate = true) var id: Long = 0L,
     var groupId: Long = 0L,
     var type: Int = 0,
@@ -96,32 +98,256 @@ data class ProxyEntity(
     var status: Int = 0,
     var ping: Int = 0,
     var uuid: String = "",
-    var error: String? = null,
-    var socksBean: SOCKSBean? = null,
-    var httpBean: HttpBean? = null,
-    var ssBean: ShadowsocksBean? = null,
-    var ssrBean: ShadowsocksRBean? = null,
-    var vmessBean: VMessBean? = null,
-    var vlessBean: VLESSBean? = null,
-    var trojanBean: TrojanBean? = null,
-    var trojanGoBean: TrojanGoBean? = null,
-    var naiveBean: NaiveBean? = null,
-    var brookBean: BrookBean? = null,
-    var hysteriaBean: HysteriaBean? = null,
-    var hysteria2Bean: Hysteria2Bean? = null,
-    var mieruBean: MieruBean? = null,
-    var tuicBean: TuicBean? = null,
-    var tuic5Bean: Tuic5Bean? = null,
-    var shadowtlsBean: ShadowTLSBean? = null,
-    var sshBean: SSHBean? = null,
-    var wgBean: WireGuardBean? = null,
-    var juicityBean: JuicityBean? = null,
-    var http3Bean: Http3Bean? = null,
-    var configBean: ConfigBean? = null,
-    var chainBean: ChainBean? = null,
-    var balancerBean: BalancerBean? = null
+    var error: String? = null
 ) : Serializable() {
 
+    // Bean columns keep the raw Kryo blob and only decode it on first access,
+    // so loading a group does not deserialize every profile up front. The blob and the
+    // decoded bean are swapped under the entity lock, as profiles are shared across threads.
+
+    @ColumnInfo(name = "socksBean")
+    var socksBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_SOCKS)
+        set(value) {
+            field = null
+            setBeanData(TYPE_SOCKS, value)
+        }
+
+    @ColumnInfo(name = "httpBean")
+    var httpBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_HTTP)
+        set(value) {
+            field = null
+            setBeanData(TYPE_HTTP, value)
+        }
+
+    @ColumnInfo(name = "ssBean")
+    var ssBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_SS)
+        set(value) {
+            field = null
+            setBeanData(TYPE_SS, value)
+        }
+
+    @ColumnInfo(name = "ssrBean")
+    var ssrBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_SSR)
+        set(value) {
+            field = null
+            setBeanData(TYPE_SSR, value)
+        }
+
+    @ColumnInfo(name = "vmessBean")
+    var vmessBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_VMESS)
+        set(value) {
+            field = null
+            setBeanData(TYPE_VMESS, value)
+        }
+
+    @ColumnInfo(name = "vlessBean")
+    var vlessBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_VLESS)
+        set(value) {
+            field = null
+            setBeanData(TYPE_VLESS, value)
+        }
+
+    @ColumnInfo(name = "trojanBean")
+    var trojanBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_TROJAN)
+        set(value) {
+            field = null
+            setBeanData(TYPE_TROJAN, value)
+        }
+
+    @ColumnInfo(name = "trojanGoBean")
+    var trojanGoBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_TROJAN_GO)
+        set(value) {
+            field = null
+            setBeanData(TYPE_TROJAN_GO, value)
+        }
+
+    @ColumnInfo(name = "naiveBean")
+    var naiveBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_NAIVE)
+        set(value) {
+            field = null
+            setBeanData(TYPE_NAIVE, value)
+        }
+
+    @ColumnInfo(name = "brookBean")
+    var brookBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_BROOK)
+        set(value) {
+            field = null
+            setBeanData(TYPE_BROOK, value)
+        }
+
+    @ColumnInfo(name = "hysteriaBean")
+    var hysteriaBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_HYSTERIA)
+        set(value) {
+            field = null
+            setBeanData(TYPE_HYSTERIA, value)
+        }
+
+    @ColumnInfo(name = "hysteria2Bean")
+    var hysteria2BeanData: ByteArray? = null
+        get() = getBeanData(TYPE_HYSTERIA2)
+        set(value) {
+            field = null
+            setBeanData(TYPE_HYSTERIA2, value)
+        }
+
+    @ColumnInfo(name = "mieruBean")
+    var mieruBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_MIERU)
+        set(value) {
+            field = null
+            setBeanData(TYPE_MIERU, value)
+        }
+
+    @ColumnInfo(name = "tuicBean")
+    var tuicBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_TUIC)
+        set(value) {
+            field = null
+            setBeanData(TYPE_TUIC, value)
+        }
+
+    @ColumnInfo(name = "tuic5Bean")
+    var tuic5BeanData: ByteArray? = null
+        get() = getBeanData(TYPE_TUIC5)
+        set(value) {
+            field = null
+            setBeanData(TYPE_TUIC5, value)
+        }
+
+    @ColumnInfo(name = "shadowtlsBean")
+    var shadowtlsBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_SHADOWTLS)
+        set(value) {
+            field = null
+            setBeanData(TYPE_SHADOWTLS, value)
+        }
+
+    @ColumnInfo(name = "sshBean")
+    var sshBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_SSH)
+        set(value) {
+            field = null
+            setBeanData(TYPE_SSH, value)
+        }
+
+    @ColumnInfo(name = "wgBean")
+    var wgBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_WG)
+        set(value) {
+            field = null
+            setBeanData(TYPE_WG, value)
+        }
+
+    @ColumnInfo(name = "juicityBean")
+    var juicityBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_JUICITY)
+        set(value) {
+            field = null
+            setBeanData(TYPE_JUICITY, value)
+        }
+
+    @ColumnInfo(name = "http3Bean")
+    var http3BeanData: ByteArray? = null
+        get() = getBeanData(TYPE_HTTP3)
+        set(value) {
+            field = null
+            setBeanData(TYPE_HTTP3, value)
+        }
+
+    @ColumnInfo(name = "configBean")
+    var configBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_CONFIG)
+        set(value) {
+            field = null
+            setBeanData(TYPE_CONFIG, value)
+        }
+
+    @ColumnInfo(name = "chainBean")
+    var chainBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_CHAIN)
+        set(value) {
+            field = null
+            setBeanData(TYPE_CHAIN, value)
+        }
+
+    @ColumnInfo(name = "balancerBean")
+    var balancerBeanData: ByteArray? = null
+        get() = getBeanData(TYPE_BALANCER)
+        set(value) {
+            field = null
+            setBeanData(TYPE_BALANCER, value)
+        }
+
+    @Ignore
+    @Transient
+    @Volatile
+    private var beanData: ByteArray? = null
+
+    @Ignore
+    @Transient
+    @Volatile
+    private var bean: AbstractBean? = null
+
+    // Denormalized from the bean so that list screens can search and sort in SQL.
+
+    @ColumnInfo(name = "displayName", defaultValue = "")
+    var profileName: String = ""
+        get() = summarySource()?.displayName() ?: field
+        set(value) {
+            field = value
+            summaryLoaded = value.isNotEmpty()
+        }
+
+    @ColumnInfo(defaultValue = "")
+    var serverAddress: String = ""
+        get() = summarySource()?.serverAddress ?: field
+
+    @ColumnInfo(defaultValue = "0")
+    var serverPort: Int = 0
+        get() = summarySource()?.serverPort ?: field
+
+    @Ignore
+    @Transient
+    private var summaryLoaded = false
+
+    // the stored columns are only trusted while the bean is still undecoded
+    private fun summarySource() = if (summaryLoaded && bean == null) null else requireBean()
+
+    val socksBean: SOCKSBean? get() = beanOf(TYPE_SOCKS)
+    val httpBean: HttpBean? get() = beanOf(TYPE_HTTP)
+    val ssBean: ShadowsocksBean? get() = beanOf(TYPE_SS)
+    val ssrBean: ShadowsocksRBean? get() = beanOf(TYPE_SSR)
+    val vmessBean: VMessBean? get() = beanOf(TYPE_VMESS)
+    val vlessBean: VLESSBean? get() = beanOf(TYPE_VLESS)
+    val trojanBean: TrojanBean? get() = beanOf(TYPE_TROJAN)
+    val trojanGoBean: TrojanGoBean? get() = beanOf(TYPE_TROJAN_GO)
+    val naiveBean: NaiveBean? get() = beanOf(TYPE_NAIVE)
+    val brookBean: BrookBean? get() = beanOf(TYPE_BROOK)
+    val hysteriaBean: HysteriaBean? get() = beanOf(TYPE_HYSTERIA)
+    val hysteria2Bean: Hysteria2Bean? get() = beanOf(TYPE_HYSTERIA2)
+    val mieruBean: MieruBean? get() = beanOf(TYPE_MIERU)
+    val tuicBean: TuicBean? get() = beanOf(TYPE_TUIC)
+    val tuic5Bean: Tuic5Bean? get() = beanOf(TYPE_TUIC5)
+    val shadowtlsBean: ShadowTLSBean? get() = beanOf(TYPE_SHADOWTLS)
+    val sshBean: SSHBean? get() = beanOf(TYPE_SSH)
+    val wgBean: WireGuardBean? get() = beanOf(TYPE_WG)
+    val juicityBean: JuicityBean? get() = beanOf(TYPE_JUICITY)
+    val http3Bean: Http3Bean? get() = beanOf(TYPE_HTTP3)
+    val configBean: ConfigBean? get() = beanOf(TYPE_CONFIG)
+    val chainBean: ChainBean? get() = beanOf(TYPE_CHAIN)
+    val balancerBean: BalancerBean? get() = beanOf(TYPE_BALANCER)
+
     companion object {
         const val TYPE_SOCKS = 0
         const val TYPE_HTTP = 1
@@ -154,6 +380,50 @@ data class ProxyEntity(
 
         private val placeHolderBean = SOCKSBean().applyDefaultValues()
 
+        const val SUMMARY_COLUMNS = "id, type, userOrder, status, ping, displayName, serverAddress, serverPort"
+
+        const val SEARCH_CONDITION = """(:search = '' OR displayName LIKE :search ESCAPE '\'
+            OR serverAddress LIKE :search ESCAPE '\'
+            OR (serverAddress || ':' || serverPort) LIKE :search ESCAPE '\'
+            OR type IN (:searchTypes))"""
+
+        private val typeNames by lazy {
+            mapOf(
+                TYPE_SOCKS to listOf("SOCKS4", "SOCKS4A", "SOCKS5"),
+                TYPE_HTTP to listOf("HTTP", "HTTPS"),
+                TYPE_SS to listOf("Shadowsocks", "Shadowsocks 2022"),
+                TYPE_SSR to listOf("ShadowsocksR"),
+                TYPE_VMESS to listOf("VMess"),
+                TYPE_VLESS to listOf("VLESS"),
+                TYPE_TROJAN to listOf("Trojan"),
+                TYPE_TROJAN_GO to listOf("Trojan-Go"),
+                TYPE_NAIVE to listOf("Naïve"),
+                TYPE_BROOK to listOf("Brook"),
+                TYPE_HYSTERIA to listOf("Hysteria"),
+                TYPE_HYSTERIA2 to listOf("Hysteria2"),
+                TYPE_SSH to listOf("SSH"),
+                TYPE_WG to listOf("WireGuard"),
+                TYPE_MIERU to listOf("Mieru"),
+                TYPE_TUIC to listOf("TUIC"),
+                TYPE_TUIC5 to listOf("TUIC v5"),
+                TYPE_SHADOWTLS to listOf("ShadowTLS"),
+                TYPE_JUICITY to listOf("Juicity"),
+                TYPE_HTTP3 to listOf("HTTP3"),
+                TYPE_CHAIN to listOf(chainName),
+                TYPE_CONFIG to listOf(configName),
+                TYPE_BALANCER to listOf(balancerName)
+            )
+        }
+
+        /**
+         * Types whose display type may contain the lowercase query.
+         */
+        fun typesMatching(lowercaseQuery: String): List<Int> {
+            return typeNames.filterValues { names ->
+                names.any { it.lowercase().contains(lowercaseQuery) }
+            }.keys.toList()
+        }
+
         @JvmField
         val CREATOR = object : CREATOR<ProxyEntity>() {
 
@@ -192,7 +462,7 @@ data class ProxyEntity(
         output.writeString(uuid)
         output.writeString(error)
 
-        val data = KryoConverters.serialize(requireBean())
+        val data = getBeanData(type) ?: KryoConverters.serialize(requireBean())
         output.writeVarInt(data.size, true)
         output.writeBytes(data)
 
@@ -218,35 +488,91 @@ data class ProxyEntity(
     }
 
 
+    @Synchronized
     fun putByteArray(byteArray: ByteArray) {
-        when (type) {
-            TYPE_SOCKS -> socksBean = KryoConverters.socksDeserialize(byteArray)
-            TYPE_HTTP -> httpBean = KryoConverters.httpDeserialize(byteArray)
-            TYPE_SS -> ssBean = KryoConverters.shadowsocksDeserialize(byteArray)
-            TYPE_SSR -> ssrBean = KryoConverters.shadowsocksRDeserialize(byteArray)
-            TYPE_VMESS -> vmessBean = KryoConverters.vmessDeserialize(byteArray)
-            TYPE_VLESS -> vlessBean = KryoConverters.vlessDeserialize(byteArray)
-            TYPE_TROJAN -> trojanBean = KryoConverters.trojanDeserialize(byteArray)
-            TYPE_TROJAN_GO -> trojanGoBean = KryoConverters.trojanGoDeserialize(byteArray)
-            TYPE_NAIVE -> naiveBean = KryoConverters.naiveDeserialize(byteArray)
-            TYPE_BROOK -> brookBean = KryoConverters.brookDeserialize(byteArray)
-            TYPE_HYSTERIA -> hysteriaBean = KryoConverters.hysteriaDeserialize(byteArray)
-            TYPE_HYSTERIA2 -> hysteria2Bean = KryoConverters.hysteria2Deserialize(byteArray)
-            TYPE_SSH -> sshBean = KryoConverters.sshDeserialize(byteArray)
-            TYPE_WG -> wgBean = KryoConverters.wireguardDeserialize(byteArray)
-            TYPE_MIERU -> mieruBean = KryoConverters.mieruDeserialize(byteArray)
-            TYPE_TUIC -> tuicBean = KryoConverters.tuicDeserialize(byteArray)
-            TYPE_TUIC5 -> tuic5Bean = KryoConverters.tuic5Deserialize(byteArray)
-            TYPE_SHADOWTLS -> shadowtlsBean = KryoConverters.shadowtlsDeserialize(byteArray)
-            TYPE_JUICITY -> juicityBean = KryoConverters.juicityDeserialize(byteArray)
-            TYPE_HTTP3 -> http3Bean = KryoConverters.http3Deserialize(byteArray)
-
-            TYPE_CONFIG -> configBean = KryoConverters.configDeserialize(byteArray)
-            TYPE_CHAIN -> chainBean = KryoConverters.chainDeserialize(byteArray)
-            TYPE_BALANCER -> balancerBean = KryoConverters.balancerBeanDeserialize(byteArray)
+        beanData = byteArray.takeIf { it.isNotEmpty() }
+        bean = null
+    }
+
+    @Synchronized
+    private fun getBeanData(columnType: Int): ByteArray? {
+        if (columnType != type) return null
+        return bean?.let {
+            // editors change the decoded bean in place before saving the profile
+            it.invalidateContentFingerprint()
+            KryoConverters.serialize(it)
+        } ?: beanData
+    }
+
+    private fun setBeanData(columnType: Int, data: ByteArray?) {
+        if (columnType != type || data == null) return
+        putByteArray(data)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T : AbstractBean> beanOf(columnType: Int): T? {
+        if (columnType != type) return null
+        return decodeBean() as T?
+    }
+
+    @Synchronized
+    private fun decodeBean(): AbstractBean? {
+        bean?.let { return it }
+        val byteArray = beanData ?: return null
+        return when (type) {
+            TYPE_SOCKS -> KryoConverters.socksDeserialize(byteArray)
+            TYPE_HTTP -> KryoConverters.httpDeserialize(byteArray)
+            TYPE_SS -> KryoConverters.shadowsocksDeserialize(byteArray)
+            TYPE_SSR -> KryoConverters.shadowsocksRDeserialize(byteArray)
+            TYPE_VMESS -> KryoConverters.vmessDeserialize(byteArray)
+            TYPE_VLESS -> KryoConverters.vlessDeserialize(byteArray)
+            TYPE_TROJAN -> KryoConverters.trojanDeserialize(byteArray)
+            TYPE_TROJAN_GO -> KryoConverters.trojanGoDeserialize(byteArray)
+            TYPE_NAIVE -> KryoConverters.naiveDeserialize(byteArray)
+            TYPE_BROOK -> KryoConverters.brookDeserialize(byteArray)
+            TYPE_HYSTERIA -> KryoConverters.hysteriaDeserialize(byteArray)
+            TYPE_HYSTERIA2 -> KryoConverters.hysteria2Deserialize(byteArray)
+            TYPE_MIERU -> KryoConverters.mieruDeserialize(byteArray)
+            TYPE_TUIC -> KryoConverters.tuicDeserialize(byteArray)
+            TYPE_TUIC5 -> KryoConverters.tuic5Deserialize(byteArray)
+            TYPE_SHADOWTLS -> KryoConverters.shadowtlsDeserialize(byteArray)
+            TYPE_SSH -> KryoConverters.sshDeserialize(byteArray)
+            TYPE_WG -> KryoConverters.wireguardDeserialize(byteArray)
+            TYPE_JUICITY -> KryoConverters.juicityDeserialize(byteArray)
+            TYPE_HTTP3 -> KryoConverters.http3Deserialize(byteArray)
+
+            TYPE_CONFIG -> KryoConverters.configDeserialize(byteArray)
+            TYPE_CHAIN -> KryoConverters.chainDeserialize(byteArray)
+            TYPE_BALANCER -> KryoConverters.balancerBeanDeserialize(byteArray)
+            else -> null
+        }?.also {
+            bean = it
+            beanData = null
         }
     }
 
+    // Not a data class: the generated members would only see the constructor columns and
+    // ignore the bean, which lives outside of them.
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is ProxyEntity) return false
+        return id == other.id && groupId == other.groupId && type == other.type &&
+                userOrder == other.userOrder && tx == other.tx && rx == other.rx &&
+                status == other.status && ping == other.ping && uuid == other.uuid &&
+                error == other.error && decodeBean() == other.decodeBean()
+    }
+
+    override fun hashCode(): Int {
+        return Objects.hash(id, groupId, type, userOrder, tx, rx, status, ping, uuid, error, decodeBean())
+    }
+
+    override fun toString(): String {
+        return "ProxyEntity(id=$id, groupId=$groupId, type=$type, userOrder=$userOrder, " +
+                "tx=$tx, rx=$rx, status=$status, ping=$ping, uuid=$uuid, error=$error, " +
+                "bean=${decodeBean()})"
+    }
+
     fun displayType() = when (type) {
         TYPE_SOCKS -> socksBean!!.protocolName()
         TYPE_HTTP -> if (httpBean!!.security == "tls") "HTTPS" else "HTTP"
@@ -275,37 +601,11 @@ data class ProxyEntity(
         else -> "Invalid"
     }
 
-    fun displayName() = requireBean().displayName()
+    fun displayName() = profileName
     fun displayAddress() = requireBean().displayAddress()
 
     fun requireBean(): AbstractBean {
-        return when (type) {
-            TYPE_SOCKS -> socksBean
-            TYPE_HTTP -> httpBean
-            TYPE_SS -> ssBean
-            TYPE_SSR -> ssrBean
-            TYPE_VMESS -> vmessBean
-            TYPE_VLESS -> vlessBean
-            TYPE_TROJAN -> trojanBean
-            TYPE_TROJAN_GO -> trojanGoBean
-            TYPE_NAIVE -> naiveBean
-            TYPE_BROOK -> brookBean
-            TYPE_HYSTERIA -> hysteriaBean
-            TYPE_HYSTERIA2 -> hysteria2Bean
-            TYPE_SSH -> sshBean
-            TYPE_WG -> wgBean
-            TYPE_MIERU -> mieruBean
-            TYPE_TUIC -> tuicBean
-            TYPE_TUIC5 -> tuic5Bean
-            TYPE_SHADOWTLS -> shadowtlsBean
-            TYPE_JUICITY -> juicityBean
-            TYPE_HTTP3 -> http3Bean
-
-            TYPE_CONFIG -> configBean
-            TYPE_CHAIN -> chainBean
-            TYPE_BALANCER -> balancerBean
-            else -> null
-        } ?: SOCKSBean().applyDefaultValues()
+        return decodeBean() ?: SOCKSBean().applyDefaultValues()
     }
 
     fun canExportBackup(): Boolean {
@@ -443,127 +743,41 @@ data class ProxyEntity(
     }
 
     fun putBean(bean: AbstractBean): ProxyEntity {
-        socksBean = null
-        httpBean = null
-        ssBean = null
-        ssrBean = null
-        vmessBean = null
-        vlessBean = null
-        trojanBean = null
-        trojanGoBean = null
-        naiveBean = null
-        brookBean = null
-        hysteriaBean = null
-        hysteria2Bean = null
-        sshBean = null
-        wgBean = null
-        mieruBean = null
-        tuicBean = null
-        tuic5Bean = null
-        shadowtlsBean = null
-        juicityBean = null
-        http3Bean = null
-
-        configBean = null
-        chainBean = null
-        balancerBean = null
-
-        when (bean) {
-            is SOCKSBean -> {
-                type = TYPE_SOCKS
-                socksBean = bean
-            }
-            is HttpBean -> {
-                type = TYPE_HTTP
-                httpBean = bean
-            }
-            is ShadowsocksBean -> {
-                type = TYPE_SS
-                ssBean = bean
-            }
-            is ShadowsocksRBean -> {
-                type = TYPE_SSR
-                ssrBean = bean
-            }
-            is VMessBean -> {
-                type = TYPE_VMESS
-                vmessBean = bean
-            }
-            is VLESSBean -> {
-                type = TYPE_VLESS
-                vlessBean = bean
-            }
-            is TrojanBean -> {
-                type = TYPE_TROJAN
-                trojanBean = bean
-            }
-            is TrojanGoBean -> {
-                type = TYPE_TROJAN_GO
-                trojanGoBean = bean
-            }
-            is NaiveBean -> {
-                type = TYPE_NAIVE
-                naiveBean = bean
-            }
-            is BrookBean -> {
-                type = TYPE_BROOK
-                brookBean = bean
-            }
-            is HysteriaBean -> {
-                type = TYPE_HYSTERIA
-                hysteriaBean = bean
-            }
-            is Hysteria2Bean -> {
-                type = TYPE_HYSTERIA2
-                hysteria2Bean = bean
-            }
-            is SSHBean -> {
-                type = TYPE_SSH
-                sshBean = bean
-            }
-            is WireGuardBean -> {
-                type = TYPE_WG
-                wgBean = bean
-            }
-            is MieruBean -> {
-                type = TYPE_MIERU
-                mieruBean = bean
-            }
-            is TuicBean -> {
-                type = TYPE_TUIC
-                tuicBean = bean
-            }
-            is Tuic5Bean -> {
-                type = TYPE_TUIC5
-                tuic5Bean = bean
-            }
-            is ShadowTLSBean -> {
-                type = TYPE_SHADOWTLS
-                shadowtlsBean = bean
-            }
-            is JuicityBean -> {
-                type = TYPE_JUICITY
-                juicityBean = bean
-            }
-            is Http3Bean -> {
-                type = TYPE_HTTP3
-                http3Bean = bean
-            }
-
-            is ConfigBean -> {
-                type = TYPE_CONFIG
-                configBean = bean
-            }
-            is ChainBean -> {
-                type = TYPE_CHAIN
-                chainBean = bean
-            }
-            is BalancerBean -> {
-                type = TYPE_BALANCER
-                balancerBean = bean
-            }
+        type = when (bean) {
+            is SOCKSBean -> TYPE_SOCKS
+            is HttpBean -> TYPE_HTTP
+            is ShadowsocksBean -> TYPE_SS
+            is ShadowsocksRBean -> TYPE_SSR
+            is VMessBean -> TYPE_VMESS
+            is VLESSBean -> TYPE_VLESS
+            is TrojanBean -> TYPE_TROJAN
+            is TrojanGoBean -> TYPE_TROJAN_GO
+            is NaiveBean -> TYPE_NAIVE
+            is BrookBean -> TYPE_BROOK
+            is HysteriaBean -> TYPE_HYSTERIA
+            is Hysteria2Bean -> TYPE_HYSTERIA2
+            is MieruBean -> TYPE_MIERU
+            is TuicBean -> TYPE_TUIC
+            is Tuic5Bean -> TYPE_TUIC5
+            is ShadowTLSBean -> TYPE_SHADOWTLS
+            is SSHBean -> TYPE_SSH
+            is WireGuardBean -> TYPE_WG
+            is JuicityBean -> TYPE_JUICITY
+            is Http3Bean -> TYPE_HTTP3
+
+            is ConfigBean -> TYPE_CONFIG
+            is ChainBean -> TYPE_CHAIN
+            is BalancerBean -> TYPE_BALANCER
             else -> error("Undefined type $type")
         }
+        bean.invalidateContentFingerprint()
+        synchronized(this) {
+            this.bean = bean
+            beanData = null
+        }
+        profileName = bean.displayName()
+        serverAddress = bean.serverAddress ?: ""
+        serverPort = bean.serverPort ?: 0
         return this
     }
 
@@ -603,6 +817,20 @@ data class ProxyEntity(
         }
     }
 
+    /**
+     * Lightweight projection for list screens, read without touching the bean columns.
+     */
+    data class Summary(
+        val id: Long,
+        val type: Int,
+        val userOrder: Long,
+        val status: Int,
+        val ping: Int,
+        @ColumnInfo(name = "displayName") val name: String,
+        val serverAddress: String,
+        val serverPort: Int,
+    )
+
     @androidx.room.Dao
     interface Dao {
 
@@ -615,6 +843,21 @@ data class ProxyEntity(
         @Query("SELECT * FROM proxy_entities WHERE groupId = :groupId ORDER BY userOrder")
         fun getByGroup(groupId: Long): List<ProxyEntity>
 
+        @Query("SELECT $SUMMARY_COLUMNS FROM proxy_entities WHERE groupId = :groupId AND $SEARCH_CONDITION ORDER BY userOrder")
+        fun getSummariesByGroup(
+            groupId: Long, search: String, searchTypes: List<Int>
+        ): List<Summary>
+
+        @Query("SELECT $SUMMARY_COLUMNS FROM proxy_entities WHERE groupId = :groupId AND $SEARCH_CONDITION ORDER BY displayName, userOrder")
+        fun getSummariesByGroupOrderByName(
+            groupId: Long, search: String, searchTypes: List<Int>
+        ): List<Summary>
+
+        @Query("SELECT $SUMMARY_COLUMNS FROM proxy_entities WHERE groupId = :groupId AND $SEARCH_CONDITION ORDER BY CASE WHEN status IN (2, 3) THEN 1 ELSE 0 END, COALESCE((SELECT p50 FROM latency_stats WHERE profileId = proxy_entities.id AND p50 >= 0), CASE WHEN status = 1 THEN ping ELSE 114514 END), userOrder")
+        fun getSummariesByGroupOrderByDelay(
+            groupId: Long, search: String, searchTypes: List<Int>
+        ): List<Summary>
+
         @Query("SELECT * FROM proxy_entities WHERE id in (:proxyIds)")
         fun getEntities(proxyIds: List<Long>): List<ProxyEntity>
 
@@ -651,9 +894,26 @@ data class ProxyEntity(
         @Insert
         fun addProxy(proxy: ProxyEntity): Long
 
+        @Query("UPDATE proxy_entities SET status = :status, ping = :ping, error = :error WHERE id = :id")
+        fun updateStatus(id: Long, status: Int, ping: Int, error: String?): Int
+
         @Insert
         fun insert(proxies: List<ProxyEntity>)
 
+        /**
+         * Apply a subscription diff in one transaction, so readers never observe a half-updated
+         * group and SQLite commits once instead of once per row.
+         */
+        @Transaction
+        fun applyUpdate(
+            toInsert: List<ProxyEntity>, toUpdate: List<ProxyEntity>, toDelete: List<ProxyEntity>
+        ): Int {
+            if (toInsert.isNotEmpty()) insert(toInsert)
+            val updated = if (toUpdate.isEmpty()) 0 else updateProxy(toUpdate)
+            val deleted = if (toDelete.isEmpty()) 0 else deleteProxy(toDelete)
+            return toInsert.size + updated + deleted
+        }
+
         @Query("DELETE FROM proxy_entities WHERE groupId = :groupId")
         fun deleteAll(groupId: Long): Int
 
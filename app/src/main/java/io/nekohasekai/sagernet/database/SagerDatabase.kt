@@ -26,10 +26,11 @@ import io.nekohasekai.sagernet.fmt.KryoConverters
 import io.nekohasekai.sagernet.fmt.gson.GsonConverters
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
+import java.util.concurrent.Callable
 
 @Database(
-    entities = [ProxyGroup::class, ProxyEntity::class, RuleEntity::class, StatsEntity::class, AssetEntity::class],
-    version = 26,
+    entities = [ProxyGroup::class, ProxyEntity::class, RuleEntity::class, StatsEntity::class, AssetEntity::class, LatencyEntity::class],
+    version = 28,
     autoMigrations = [AutoMigration(
         from = 12,
         to = 14,
@@ -93,7 +94,9 @@ abstract class SagerDatabase : RoomDatabase() {
                     SagerDatabase_Migration_8_9,
                     SagerDatabase_Migration_9_10,
                     SagerDatabase_Migration_10_11,
-                    SagerDatabase_Migration_11_12
+                    SagerDatabase_Migration_11_12,
+                    SagerDatabase_Migration_26_27,
+                    SagerDatabase_Migration_27_28
                 )
                 .fallbackToDestructiveMigrationOnDowngrade()
                 .allowMainThreadQueries()
@@ -107,6 +110,10 @@ abstract class SagerDatabase : RoomDatabase() {
         val rulesDao get() = instance.rulesDao()
         val statsDao get() = instance.statsDao()
         val assetDao get() = instance.assetDao()
+        val latencyDao get() = instance.latencyDao()
+        val invalidationTracker get() = instance.invalidationTracker
+
+        fun <T> runInTransaction(block: () -> T): T = instance.runInTransaction(Callable(block))
 
     }
 
@@ -115,5 +122,6 @@ abstract class SagerDatabase : RoomDatabase() {
     abstract fun rulesDao(): RuleEntity.Dao
     abstract fun statsDao(): StatsEntity.Dao
     abstract fun assetDao(): AssetEntity.Dao
+    abstract fun latencyDao(): LatencyEntity.Dao
 
 }
@@ -74,6 +74,34 @@ class StatsEntity(
         @Update
         fun update(stats: List<StatsEntity>)
 
+        @Query("UPDATE stats SET tcpConnections = tcpConnections + :tcpConnections, udpConnections = udpConnections + :udpConnections, uplink = uplink + :uplink, downlink = downlink + :downlink WHERE packageName = :packageName")
+        fun add(
+            packageName: String, tcpConnections: Int, udpConnections: Int, uplink: Long, downlink: Long
+        ): Int
+
+        /** Add the counters of [deltas] to the rows of their packages, creating missing rows. */
+        @Transaction
+        fun addAll(deltas: Collection<StatsEntity>) {
+            for (delta in deltas) {
+                if (add(
+                        delta.packageName,
+                        delta.tcpConnections,
+                        delta.udpConnections,
+                        delta.uplink,
+                        delta.downlink
+                    ) == 0
+                ) {
+                    create(StatsEntity(
+                        packageName = delta.packageName,
+                        tcpConnections = delta.tcpConnections,
+                        udpConnections = delta.udpConnections,
+                        uplink = delta.uplink,
+                        downlink = delta.downlink
+                    ))
+                }
+            }
+        }
+
         @Query("DELETE FROM stats")
         fun deleteAll()
 
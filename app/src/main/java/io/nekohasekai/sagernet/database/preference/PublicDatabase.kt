@@ -46,6 +46,7 @@ abstract class PublicDatabase : RoomDatabase() {
         }
 
         val kvPairDao get() = instance.keyValuePairDao()
+        val invalidationTracker get() = instance.invalidationTracker
     }
 
     abstract fun keyValuePairDao(): KeyValuePair.Dao
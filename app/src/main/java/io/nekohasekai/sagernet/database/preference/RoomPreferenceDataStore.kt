@@ -22,18 +22,90 @@
 package io.nekohasekai.sagernet.database.preference
 
 import androidx.preference.PreferenceDataStore
-
+import androidx.room.InvalidationTracker
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Preferences are served from an in-memory snapshot of the whole table, loaded once and
+ * updated on every write. Changes made by other processes (or straight through the DAO)
+ * arrive via [invalidationTracker] and drop the snapshot, which is then reloaded lazily.
+ *
+ * The tracker also reports this instance's own writes. Notifications are coalesced and
+ * cannot tell those apart from a remote write made at the same time, so every one of them
+ * drops the snapshot.
+ */
 @Suppress("MemberVisibilityCanBePrivate", "unused")
-open class RoomPreferenceDataStore(private val kvPairDao: KeyValuePair.Dao) :
-    PreferenceDataStore() {
+open class RoomPreferenceDataStore(
+    private val kvPairDao: KeyValuePair.Dao,
+    invalidationTracker: InvalidationTracker? = null,
+) : PreferenceDataStore() {
+
+    @Volatile
+    private var snapshot: ConcurrentHashMap<String, Any>? = null
+
+    @Volatile
+    private var version = 0
+
+    init {
+        invalidationTracker?.addObserver(object : InvalidationTracker.Observer("KeyValuePair") {
+            override fun onInvalidated(tables: Set<String>) {
+                synchronized(this@RoomPreferenceDataStore) {
+                    version++
+                    snapshot = null
+                }
+            }
+        })
+    }
+
+    private fun values(): Map<String, Any> {
+        snapshot?.let { return it }
+        val loadVersion = version
+        val values = ConcurrentHashMap<String, Any>()
+        for (pair in kvPairDao.all()) {
+            values[pair.key] = pair.typedValue() ?: continue
+        }
+        synchronized(this) {
+            // a write or invalidation raced with the load, serve it once but don't keep it
+            if (version == loadVersion) snapshot = values
+        }
+        return values
+    }
+
+    @Suppress("DEPRECATION")
+    private fun KeyValuePair.typedValue(): Any? = when (valueType) {
+        KeyValuePair.TYPE_BOOLEAN -> boolean
+        KeyValuePair.TYPE_FLOAT -> float
+        KeyValuePair.TYPE_INT, KeyValuePair.TYPE_LONG -> long
+        KeyValuePair.TYPE_STRING -> string
+        KeyValuePair.TYPE_STRING_SET -> stringSet
+        else -> null
+    }
+
+    private fun write(pair: KeyValuePair, value: Any) {
+        kvPairDao.put(pair)
+        synchronized(this) {
+            version++
+            snapshot?.put(pair.key, value)
+        }
+        fireChangeListener(pair.key)
+    }
 
-    fun getBoolean(key: String) = kvPairDao[key]?.boolean
-    fun getFloat(key: String) = kvPairDao[key]?.float
-    fun getInt(key: String) = kvPairDao[key]?.long?.toInt()
-    fun getLong(key: String) = kvPairDao[key]?.long
-    fun getString(key: String) = kvPairDao[key]?.string
-    fun getStringSet(key: String) = kvPairDao[key]?.stringSet
-    fun reset() = kvPairDao.reset()
+    fun getBoolean(key: String) = values()[key] as? Boolean
+    fun getFloat(key: String) = values()[key] as? Float
+    fun getInt(key: String) = (values()[key] as? Long)?.toInt()
+    fun getLong(key: String) = values()[key] as? Long
+    fun getString(key: String) = values()[key] as? String
+
+    @Suppress("UNCHECKED_CAST")
+    fun getStringSet(key: String) = (values()[key] as? Set<String>)?.let { HashSet(it) }
+
+    fun reset() {
+        kvPairDao.reset()
+        synchronized(this) {
+            version++
+            snapshot = ConcurrentHashMap()
+        }
+    }
 
     override fun getBoolean(key: String, defValue: Boolean) = getBoolean(key) ?: defValue
     override fun getFloat(key: String, defValue: Float) = getFloat(key) ?: defValue
@@ -54,38 +126,36 @@ open class RoomPreferenceDataStore(private val kvPairDao: KeyValuePair.Dao) :
 
     fun putLong(key: String, value: Long?) = if (value == null) remove(key) else putLong(key, value)
     override fun putBoolean(key: String, value: Boolean) {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value), value)
     }
 
     override fun putFloat(key: String, value: Float) {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value), value)
     }
 
     override fun putInt(key: String, value: Int) {
-        kvPairDao.put(KeyValuePair(key).put(value.toLong()))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value.toLong()), value.toLong())
     }
 
     override fun putLong(key: String, value: Long) {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value), value)
     }
 
     override fun putString(key: String, value: String?) = if (value == null) remove(key) else {
-        kvPairDao.put(KeyValuePair(key).put(value))
-        fireChangeListener(key)
+        write(KeyValuePair(key).put(value), value)
     }
 
     override fun putStringSet(key: String, values: MutableSet<String>?) =
         if (values == null) remove(key) else {
-            kvPairDao.put(KeyValuePair(key).put(values))
-            fireChangeListener(key)
+            write(KeyValuePair(key).put(values), HashSet(values))
         }
 
     fun remove(key: String) {
         kvPairDao.delete(key)
+        synchronized(this) {
+            version++
+            snapshot?.remove(key)
+        }
         fireChangeListener(key)
     }
 
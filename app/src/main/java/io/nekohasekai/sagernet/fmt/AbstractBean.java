@@ -27,7 +27,6 @@ import com.esotericsoftware.kryo.io.ByteBufferOutput;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import cn.hutool.core.clone.Cloneable;
@@ -93,17 +92,41 @@ public abstract class AbstractBean extends Serializable implements Cloneable<Abs
         if (profileId == null) profileId = "";
         if (group == null) group = "";
         if (tags == null) tags = new ArrayList<>();
+
+        invalidateContentFingerprint();
     }
 
+    private transient volatile long contentFingerprint;
+    private transient volatile boolean hasContentFingerprint;
+
+    /**
+     * 64-bit hash of the serialized bean without its name, used by hashCode, to reject
+     * unequal beans early in equals and as the config cache key of the profile. Cached until
+     * the bean is deserialized, initialized, receives feature settings, gets its address
+     * rewritten by a subscription update, is put into a profile or is saved with it.
+     */
+    public long contentFingerprint() {
+        if (!hasContentFingerprint) {
+            contentFingerprint = KryoConverters.fingerprint(this);
+            hasContentFingerprint = true;
+        }
+        return contentFingerprint;
+    }
 
-    private transient boolean serializeWithoutName;
+    public void invalidateContentFingerprint() {
+        hasContentFingerprint = false;
+    }
 
     @Override
     public void serializeToBuffer(@NonNull ByteBufferOutput output) {
+        serializeToBuffer(output, true);
+    }
+
+    void serializeToBuffer(@NonNull ByteBufferOutput output, boolean withName) {
         serialize(output);
 
         output.writeInt(1);
-        if (!serializeWithoutName) {
+        if (withName) {
             output.writeString(name);
         }
         output.writeInt(extraType);
@@ -118,6 +141,7 @@ public abstract class AbstractBean extends Serializable implements Cloneable<Abs
 
     @Override
     public void deserializeFromBuffer(@NonNull ByteBufferInput input) {
+        invalidateContentFingerprint();
         deserialize(input);
 
         int extraVersion = input.readInt();
@@ -154,24 +178,15 @@ public abstract class AbstractBean extends Serializable implements Cloneable<Abs
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        try {
-            serializeWithoutName = true;
-            ((AbstractBean) o).serializeWithoutName = true;
-            return Arrays.equals(KryoConverters.serialize(this), KryoConverters.serialize((AbstractBean) o));
-        } finally {
-            serializeWithoutName = false;
-            ((AbstractBean) o).serializeWithoutName = false;
-        }
+        AbstractBean other = (AbstractBean) o;
+        if (contentFingerprint() != other.contentFingerprint()) return false;
+        return KryoConverters.contentEquals(this, other);
     }
 
     @Override
     public int hashCode() {
-        try {
-            serializeWithoutName = true;
-            return Arrays.hashCode(KryoConverters.serialize(this));
-        } finally {
-            serializeWithoutName = false;
-        }
+        long fingerprint = contentFingerprint();
+        return (int) (fingerprint ^ (fingerprint >>> 32));
     }
 
     @NotNull
@@ -180,7 +195,15 @@ public abstract class AbstractBean extends Serializable implements Cloneable<Abs
         return getClass().getSimpleName() + " " + JSONUtil.formatJsonStr(GsonsKt.getGson().toJson(this));
     }
 
-    public void applyFeatureSettings(AbstractBean other) {
+    /**
+     * Copy the client side settings of this bean to a fresh one of the same profile.
+     */
+    public final void applyFeatureSettings(AbstractBean other) {
+        copyFeatureSettings(other);
+        other.invalidateContentFingerprint();
+    }
+
+    protected void copyFeatureSettings(AbstractBean other) {
     }
 
 }
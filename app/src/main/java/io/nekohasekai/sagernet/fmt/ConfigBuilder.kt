@@ -25,10 +25,11 @@ import android.net.Uri
 import android.os.Build
 import android.provider.Settings
 import cn.hutool.core.codec.Base64
-import cn.hutool.json.JSONArray
 import cn.hutool.json.JSONObject
 import com.github.shadowsocks.plugin.PluginConfiguration
 import com.github.shadowsocks.plugin.PluginManager
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
 import com.google.gson.JsonSyntaxException
 import io.nekohasekai.sagernet.IPv6Mode
 import io.nekohasekai.sagernet.Key
@@ -132,6 +133,8 @@ const val TAG_DNS_OUT = "dns-out"
 
 const val TAG_DNS_DIRECT = "dns-direct"
 
+const val TAG_TEST = "test"
+
 const val LOCALHOST = "127.0.0.1"
 
 class V2rayBuildResult(
@@ -149,12 +152,17 @@ class V2rayBuildResult(
     var observatoryTags: Set<String>,
     val dumpUid: Boolean,
     val alerts: List<Pair<Int, String>>,
+    val testInbounds: Map<Long, String> = emptyMap(),
 ) {
     data class IndexEntity(var isBalancer: Boolean, var chain: LinkedHashMap<Int, ProxyEntity>)
 }
 
+/**
+ * @param batchTest profiles to test together with [proxy] in one core instance, each reachable
+ * through its own inbound listed in [V2rayBuildResult.testInbounds]. Requires [forTest].
+ */
 fun buildV2RayConfig(
-    proxy: ProxyEntity, forTest: Boolean = false
+    proxy: ProxyEntity, forTest: Boolean = false, batchTest: List<ProxyEntity> = emptyList()
 ): V2rayBuildResult {
 
     val outboundTags = ArrayList<String>()
@@ -196,7 +204,7 @@ fun buildV2RayConfig(
         }
 
         val list = mutableListOf(this)
-        SagerDatabase.groupDao.getById(groupId)?.let { group ->
+        ConfigFragments.group(groupId)?.let { group ->
             group.frontProxy.takeIf { it > 0L }?.let { id ->
                 SagerDatabase.proxyDao.getById(id)?.let {
                     list.add(it)
@@ -212,15 +220,20 @@ fun buildV2RayConfig(
     }
 
     val proxies = proxy.resolveChain()
-    val extraRules = if (forTest) listOf() else SagerDatabase.rulesDao.enabledRules()
-    val extraProxies = if (forTest) mapOf() else SagerDatabase.proxyDao.getEntities(extraRules.mapNotNull { rule ->
-        rule.outbound.takeIf { it > 0 && it != proxy.id }
-    }.toHashSet().toList()).associate {
+    val extraRules = if (forTest) listOf() else ConfigFragments.enabledRules()
+    fun List<ProxyEntity>.associateChains() = associate {
         (it.id to ((it.type == ProxyEntity.TYPE_BALANCER) to lazy {
             it.balancerBean
         })) to it.resolveChain()
     }
 
+    val extraProxies = if (forTest) {
+        batchTest.filter { it.id != proxy.id }.associateChains()
+    } else SagerDatabase.proxyDao.getEntities(extraRules.mapNotNull { fragment ->
+        fragment.rule.outbound.takeIf { it > 0 && it != proxy.id }
+    }.toHashSet().toList()).associateChains()
+    val testInbounds = LinkedHashMap<Long, String>()
+
     val allowAccess = DataStore.allowAccess
     val bind = if (!forTest && allowAccess) "0.0.0.0" else LOCALHOST
 
@@ -252,36 +265,22 @@ fun buildV2RayConfig(
         else -> "PreferIPv4"
     }
 
+    // what the outbound of a profile is built from besides its bean
+    val outboundSettings = listOf(
+        outboundDomainStrategy,
+        DataStore.shadowsocks2022Implementation,
+        DataStore.enableFragment,
+        DataStore.fragmentLength,
+        DataStore.fragmentInterval,
+        DataStore.hysteriaEnablePortHopping
+    )
+
     var dumpUid = false
     val alerts = mutableListOf<Pair<Int, String>>()
 
     lateinit var result: V2rayBuildResult
     V2RayConfig().apply {
 
-        dns = DnsObject().apply {
-            if (DataStore.hosts.isNotEmpty()) {
-                hosts = mutableMapOf()
-                for (singleLine in DataStore.hosts.listByLine()) {
-                    val key = singleLine.substringBefore(" ")
-                    val values = singleLine.substringAfter(" ").split("\\s+".toRegex()).toMutableList()
-                    if (hosts.contains(key) && hosts[key] != null) {
-                        if (hosts[key]!!.valueX.isNotEmpty()) {
-                            values.add(hosts[key]!!.valueX)
-                        } else if (hosts[key]!!.valueY.size > 0) {
-                            values.addAll(hosts[key]!!.valueY)
-                        }
-                    }
-                    if (values.size > 1) {
-                        hosts[key] = DnsObject.StringOrListObject().apply { valueY = values }
-                    } else if (values.size == 1) {
-                        hosts[key] = DnsObject.StringOrListObject().apply { valueX = values[0] }
-                    }
-                }
-            }
-            servers = mutableListOf()
-            fallbackStrategy = "disabledIfAnyMatch"
-        }
-
         log = LogObject().apply {
             loglevel = if (DataStore.enableLog) "debug" else "error"
         }
@@ -487,8 +486,6 @@ fun buildV2RayConfig(
                         }
                     }
 
-                    var currentDomainStrategy = outboundDomainStrategy
-
                     if (proxyEntity.needExternal()) {
                         val localPort = mkPort()
                         chainMap[localPort] = proxyEntity
@@ -513,132 +510,109 @@ fun buildV2RayConfig(
                                     })
                             }
                         }
+                        currentOutbound.domainStrategy = outboundDomainStrategy
                     } else {
-                        currentOutbound.apply {
-                            if (bean is StandardV2RayBean) {
-                                if (bean is VMessBean) {
-                                    protocol = "vmess"
-                                    settings = LazyOutboundConfigurationObject(this,
-                                        VMessOutboundConfigurationObject().apply {
-                                            vnext = listOf(VMessOutboundConfigurationObject.ServerObject()
-                                                .apply {
-                                                    address = bean.serverAddress
-                                                    port = bean.serverPort
-                                                    users = listOf(VMessOutboundConfigurationObject.ServerObject.UserObject()
-                                                        .apply {
-                                                            id = bean.uuidOrGenerate()
-                                                            if (bean.alterId > 0) {
-                                                                alterId = bean.alterId
-                                                            }
-                                                            security = bean.encryption.takeIf { it.isNotEmpty() }
-                                                                ?: "auto"
-                                                            experiments = ""
-                                                            if (bean.experimentalAuthenticatedLength) {
-                                                                experiments += "AuthenticatedLength"
-                                                            }
-                                                            if (bean.experimentalNoTerminationSignal) {
-                                                                if (experiments != "") {
-                                                                    experiments += "|"
+                        // plugin paths depend on what is installed, so those are built every time
+                        val outboundKey = if (bean is ShadowsocksBean && bean.plugin.isNotEmpty()) null else listOf(
+                            bean.javaClass, bean.contentFingerprint(), bean.finalAddress, bean.finalPort, outboundSettings
+                        )
+                        currentOutbound = ConfigFragments.outbound(outboundKey) {
+                            var currentDomainStrategy = outboundDomainStrategy
+                            OutboundObject().apply {
+                                if (bean is StandardV2RayBean) {
+                                    if (bean is VMessBean) {
+                                        protocol = "vmess"
+                                        settings = LazyOutboundConfigurationObject(this,
+                                            VMessOutboundConfigurationObject().apply {
+                                                vnext = listOf(VMessOutboundConfigurationObject.ServerObject()
+                                                    .apply {
+                                                        address = bean.serverAddress
+                                                        port = bean.serverPort
+                                                        users = listOf(VMessOutboundConfigurationObject.ServerObject.UserObject()
+                                                            .apply {
+                                                                id = bean.uuidOrGenerate()
+                                                                if (bean.alterId > 0) {
+                                                                    alterId = bean.alterId
                                                                 }
-                                                                experiments += "NoTerminationSignal"
-                                                            }
-                                                            if (experiments.isEmpty()) experiments = null
-                                                        })
-                                                })
-                                            when (bean.packetEncoding) {
-                                                "packet" -> {
-                                                    packetEncoding = "packet"
-                                                }
-                                                "xudp" -> {
-                                                    packetEncoding = "xudp"
-                                                }
-                                            }
-                                        })
-                                } else if (bean is VLESSBean) {
-                                    protocol = "vless"
-                                    settings = LazyOutboundConfigurationObject(this,
-                                        VLESSOutboundConfigurationObject().apply {
-                                            vnext = listOf(VLESSOutboundConfigurationObject.ServerObject()
-                                                .apply {
-                                                    address = bean.serverAddress
-                                                    port = bean.serverPort
-                                                    users = listOf(VLESSOutboundConfigurationObject.ServerObject.UserObject()
-                                                        .apply {
-                                                            id = bean.uuidOrGenerate()
-                                                            encryption = bean.encryption
-                                                            if (bean.flow.isNotEmpty()) {
-                                                                flow = bean.flow
-                                                            }
-                                                        })
-                                                })
-                                            when (bean.packetEncoding) {
-                                                "packet" -> {
-                                                    packetEncoding = "packet"
-                                                }
-                                                "xudp" -> {
-                                                    packetEncoding = "xudp"
+                                                                security = bean.encryption.takeIf { it.isNotEmpty() }
+                                                                    ?: "auto"
+                                                                experiments = ""
+                                                                if (bean.experimentalAuthenticatedLength) {
+                                                                    experiments += "AuthenticatedLength"
+                                                                }
+                                                                if (bean.experimentalNoTerminationSignal) {
+                                                                    if (experiments != "") {
+                                                                        experiments += "|"
+                                                                    }
+                                                                    experiments += "NoTerminationSignal"
+                                                                }
+                                                                if (experiments.isEmpty()) experiments = null
+                                                            })
+                                                    })
+                                                when (bean.packetEncoding) {
+                                                    "packet" -> {
+                                                        packetEncoding = "packet"
+                                                    }
+                                                    "xudp" -> {
+                                                        packetEncoding = "xudp"
+                                                    }
                                                 }
-                                            }
-                                        })
-                                } else if (bean is TrojanBean) {
-                                    protocol = "trojan"
-                                    settings = LazyOutboundConfigurationObject(this,
-                                        TrojanOutboundConfigurationObject().apply {
-                                            servers = listOf(TrojanOutboundConfigurationObject.ServerObject()
-                                                .apply {
-                                                    address = bean.serverAddress
-                                                    port = bean.serverPort
-                                                    password = bean.password
-                                                })
-                                        })
-                                } else if (bean is ShadowsocksBean) {
-                                    if (bean.method.startsWith("2022-blake3-") && DataStore.shadowsocks2022Implementation == Shadowsocks2022Implementation.V2FLY_V2RAY_CORE) {
-                                        protocol = "shadowsocks2022"
+                                            })
+                                    } else if (bean is VLESSBean) {
+                                        protocol = "vless"
                                         settings = LazyOutboundConfigurationObject(this,
-                                            Shadowsocks_2022OutboundConfigurationObject().apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                method = bean.method
-                                                val keys = bean.password.split(":")
-                                                if (keys.size == 1) {
-                                                    psk = keys[0]
-                                                }
-                                                if (keys.size > 1) {
-                                                    ipsk = mutableListOf()
-                                                    for (i in 0..(keys.size - 2)) {
-                                                        ipsk.add(keys[i])
+                                            VLESSOutboundConfigurationObject().apply {
+                                                vnext = listOf(VLESSOutboundConfigurationObject.ServerObject()
+                                                    .apply {
+                                                        address = bean.serverAddress
+                                                        port = bean.serverPort
+                                                        users = listOf(VLESSOutboundConfigurationObject.ServerObject.UserObject()
+                                                            .apply {
+                                                                id = bean.uuidOrGenerate()
+                                                                encryption = bean.encryption
+                                                                if (bean.flow.isNotEmpty()) {
+                                                                    flow = bean.flow
+                                                                }
+                                                            })
+                                                    })
+                                                when (bean.packetEncoding) {
+                                                    "packet" -> {
+                                                        packetEncoding = "packet"
                                                     }
-                                                    psk = keys[keys.size - 1]
-                                                }
-                                                if (bean.plugin.isNotEmpty()) {
-                                                    val pluginConfiguration = PluginConfiguration(bean.plugin)
-                                                    try {
-                                                        PluginManager.init(pluginConfiguration)?.let { (path, opts, _) ->
-                                                            plugin = path
-                                                            pluginOpts = opts.toString()
-                                                        }
-                                                    } catch (e: PluginManager.PluginNotFoundException) {
-                                                        if (e.plugin in arrayOf("v2ray-plugin", "obfs-local")) {
-                                                            plugin = e.plugin
-                                                            pluginOpts = pluginConfiguration.getOptions().toString()
-                                                        } else {
-                                                            throw e
-                                                        }
+                                                    "xudp" -> {
+                                                        packetEncoding = "xudp"
                                                     }
                                                 }
-                                            }
-                                        )
-                                    } else {
-                                        protocol = "shadowsocks"
+                                            })
+                                    } else if (bean is TrojanBean) {
+                                        protocol = "trojan"
                                         settings = LazyOutboundConfigurationObject(this,
-                                            ShadowsocksOutboundConfigurationObject().apply {
-                                                servers = listOf(ShadowsocksOutboundConfigurationObject.ServerObject().apply {
+                                            TrojanOutboundConfigurationObject().apply {
+                                                servers = listOf(TrojanOutboundConfigurationObject.ServerObject()
+                                                    .apply {
+                                                        address = bean.serverAddress
+                                                        port = bean.serverPort
+                                                        password = bean.password
+                                                    })
+                                            })
+                                    } else if (bean is ShadowsocksBean) {
+                                        if (bean.method.startsWith("2022-blake3-") && DataStore.shadowsocks2022Implementation == Shadowsocks2022Implementation.V2FLY_V2RAY_CORE) {
+                                            protocol = "shadowsocks2022"
+                                            settings = LazyOutboundConfigurationObject(this,
+                                                Shadowsocks_2022OutboundConfigurationObject().apply {
                                                     address = bean.serverAddress
                                                     port = bean.serverPort
-                                                    password = bean.password
-                                                        method = bean.method
-                                                    if (!bean.method.startsWith("2022-blake3-") && bean.experimentReducedIvHeadEntropy) {
-                                                        experimentReducedIvHeadEntropy = bean.experimentReducedIvHeadEntropy
+                                                    method = bean.method
+                                                    val keys = bean.password.split(":")
+                                                    if (keys.size == 1) {
+                                                        psk = keys[0]
+                                                    }
+                                                    if (keys.size > 1) {
+                                                        ipsk = mutableListOf()
+                                                        for (i in 0..(keys.size - 2)) {
+                                                            ipsk.add(keys[i])
+                                                        }
+                                                        psk = keys[keys.size - 1]
                                                     }
                                                     if (bean.plugin.isNotEmpty()) {
                                                         val pluginConfiguration = PluginConfiguration(bean.plugin)
@@ -656,530 +630,562 @@ fun buildV2RayConfig(
                                                             }
                                                         }
                                                     }
-                                                })
-                                            }
-                                        )
-                                    }
-                                } else if (bean is SOCKSBean) {
-                                    protocol = "socks"
-                                    settings = LazyOutboundConfigurationObject(this,
-                                        SocksOutboundConfigurationObject().apply {
-                                            servers = listOf(SocksOutboundConfigurationObject.ServerObject().apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                if (!bean.username.isNullOrEmpty() || !bean.password.isNullOrEmpty()) {
-                                                    users = listOf(SocksOutboundConfigurationObject.ServerObject.UserObject().apply {
-                                                        if (!bean.username.isNullOrEmpty()) {
-                                                            user = bean.username
-                                                        }
-                                                        user = bean.username
-                                                        if (!bean.password.isNullOrEmpty() && bean.protocolName() == "SOCKS5") {
-                                                            pass = bean.password
-                                                        }
-                                                    })
                                                 }
-                                            })
-                                            version = bean.protocolVersionName()
-                                        }
-                                    )
-                                } else if (bean is HttpBean) {
-                                    protocol = "http"
-                                    settings = LazyOutboundConfigurationObject(this,
-                                        HTTPOutboundConfigurationObject().apply {
-                                            servers = listOf(HTTPOutboundConfigurationObject.ServerObject().apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                if (!bean.username.isNullOrEmpty() || !bean.password.isNullOrEmpty()) {
-                                                    users = listOf(HTTPInboundConfigurationObject.AccountObject().apply {
-                                                        if (!bean.username.isNullOrEmpty()) {
-                                                            user = bean.username
+                                            )
+                                        } else {
+                                            protocol = "shadowsocks"
+                                            settings = LazyOutboundConfigurationObject(this,
+                                                ShadowsocksOutboundConfigurationObject().apply {
+                                                    servers = listOf(ShadowsocksOutboundConfigurationObject.ServerObject().apply {
+                                                        address = bean.serverAddress
+                                                        port = bean.serverPort
+                                                        password = bean.password
+                                                            method = bean.method
+                                                        if (!bean.method.startsWith("2022-blake3-") && bean.experimentReducedIvHeadEntropy) {
+                                                            experimentReducedIvHeadEntropy = bean.experimentReducedIvHeadEntropy
                                                         }
-                                                        if (!bean.password.isNullOrEmpty()) {
-                                                            pass = bean.password
+                                                        if (bean.plugin.isNotEmpty()) {
+                                                            val pluginConfiguration = PluginConfiguration(bean.plugin)
+                                                            try {
+                                                                PluginManager.init(pluginConfiguration)?.let { (path, opts, _) ->
+                                                                    plugin = path
+                                                                    pluginOpts = opts.toString()
+                                                                }
+                                                            } catch (e: PluginManager.PluginNotFoundException) {
+                                                                if (e.plugin in arrayOf("v2ray-plugin", "obfs-local")) {
+                                                                    plugin = e.plugin
+                                                                    pluginOpts = pluginConfiguration.getOptions().toString()
+                                                                } else {
+                                                                    throw e
+                                                                }
+                                                            }
                                                         }
                                                     })
                                                 }
-                                            })
+                                            )
                                         }
-                                    )
-                                }
-
-                                streamSettings = StreamSettingsObject().apply {
-                                    network = bean.type
-                                    if (bean.security.isNotEmpty()) {
-                                        security = bean.security
+                                    } else if (bean is SOCKSBean) {
+                                        protocol = "socks"
+                                        settings = LazyOutboundConfigurationObject(this,
+                                            SocksOutboundConfigurationObject().apply {
+                                                servers = listOf(SocksOutboundConfigurationObject.ServerObject().apply {
+                                                    address = bean.serverAddress
+                                                    port = bean.serverPort
+                                                    if (!bean.username.isNullOrEmpty() || !bean.password.isNullOrEmpty()) {
+                                                        users = listOf(SocksOutboundConfigurationObject.ServerObject.UserObject().apply {
+                                                            if (!bean.username.isNullOrEmpty()) {
+                                                                user = bean.username
+                                                            }
+                                                            user = bean.username
+                                                            if (!bean.password.isNullOrEmpty() && bean.protocolName() == "SOCKS5") {
+                                                                pass = bean.password
+                                                            }
+                                                        })
+                                                    }
+                                                })
+                                                version = bean.protocolVersionName()
+                                            }
+                                        )
+                                    } else if (bean is HttpBean) {
+                                        protocol = "http"
+                                        settings = LazyOutboundConfigurationObject(this,
+                                            HTTPOutboundConfigurationObject().apply {
+                                                servers = listOf(HTTPOutboundConfigurationObject.ServerObject().apply {
+                                                    address = bean.serverAddress
+                                                    port = bean.serverPort
+                                                    if (!bean.username.isNullOrEmpty() || !bean.password.isNullOrEmpty()) {
+                                                        users = listOf(HTTPInboundConfigurationObject.AccountObject().apply {
+                                                            if (!bean.username.isNullOrEmpty()) {
+                                                                user = bean.username
+                                                            }
+                                                            if (!bean.password.isNullOrEmpty()) {
+                                                                pass = bean.password
+                                                            }
+                                                        })
+                                                    }
+                                                })
+                                            }
+                                        )
                                     }
-                                    when (security) {
-                                        "tls" -> {
-                                            tlsSettings = TLSObject().apply {
-                                                if (bean.sni.isNotEmpty()) {
-                                                    serverName = bean.sni
-                                                }
 
-                                                if (bean.alpn.isNotEmpty()) {
-                                                    alpn = bean.alpn.listByLineOrComma()
-                                                }
+                                    streamSettings = StreamSettingsObject().apply {
+                                        network = bean.type
+                                        if (bean.security.isNotEmpty()) {
+                                            security = bean.security
+                                        }
+                                        when (security) {
+                                            "tls" -> {
+                                                tlsSettings = TLSObject().apply {
+                                                    if (bean.sni.isNotEmpty()) {
+                                                        serverName = bean.sni
+                                                    }
 
-                                                if (bean.certificates.isNotEmpty()) {
-                                                    disableSystemRoot = true
-                                                    certificates = listOf(TLSObject.CertificateObject()
-                                                        .apply {
-                                                            usage = "verify"
-                                                            certificate = bean.certificates.split(
-                                                                "\n"
-                                                            ).filter { it.isNotEmpty() }
-                                                        })
-                                                }
+                                                    if (bean.alpn.isNotEmpty()) {
+                                                        alpn = bean.alpn.listByLineOrComma()
+                                                    }
 
-                                                if (bean.pinnedPeerCertificateChainSha256.isNotEmpty()) {
-                                                    pinnedPeerCertificateChainSha256 = bean.pinnedPeerCertificateChainSha256.listByLineOrComma()
-                                                }
+                                                    if (bean.certificates.isNotEmpty()) {
+                                                        disableSystemRoot = true
+                                                        certificates = listOf(TLSObject.CertificateObject()
+                                                            .apply {
+                                                                usage = "verify"
+                                                                certificate = bean.certificates.split(
+                                                                    "\n"
+                                                                ).filter { it.isNotEmpty() }
+                                                            })
+                                                    }
 
-                                                if (bean.allowInsecure) {
-                                                    allowInsecure = true
-                                                }
-                                                if (bean.utlsFingerprint.isNotEmpty()) {
-                                                    fingerprint = bean.utlsFingerprint
-                                                }
-                                                if (bean.echConfig.isNotEmpty()) {
-                                                    echConfig = bean.echConfig
-                                                }
-                                                if (bean.echDohServer.isNotEmpty()) {
-                                                    echDohServer = bean.echDohServer
+                                                    if (bean.pinnedPeerCertificateChainSha256.isNotEmpty()) {
+                                                        pinnedPeerCertificateChainSha256 = bean.pinnedPeerCertificateChainSha256.listByLineOrComma()
+                                                    }
+
+                                                    if (bean.allowInsecure) {
+                                                        allowInsecure = true
+                                                    }
+                                                    if (bean.utlsFingerprint.isNotEmpty()) {
+                                                        fingerprint = bean.utlsFingerprint
+                                                    }
+                                                    if (bean.echConfig.isNotEmpty()) {
+                                                        echConfig = bean.echConfig
+                                                    }
+                                                    if (bean.echDohServer.isNotEmpty()) {
+                                                        echDohServer = bean.echDohServer
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "reality" -> {
-                                            realitySettings = RealityObject().apply {
-                                                if (bean.sni.isNotEmpty()) {
-                                                    serverName = bean.sni
-                                                }
-                                                if (bean.realityPublicKey.isNotEmpty()) {
-                                                    publicKey = bean.realityPublicKey
-                                                }
-                                                if (bean.realityShortId.isNotEmpty()) {
-                                                    shortId = bean.realityShortId
-                                                }
-                                                if (bean.realityFingerprint.isNotEmpty()) {
-                                                    fingerprint = bean.realityFingerprint
+                                            "reality" -> {
+                                                realitySettings = RealityObject().apply {
+                                                    if (bean.sni.isNotEmpty()) {
+                                                        serverName = bean.sni
+                                                    }
+                                                    if (bean.realityPublicKey.isNotEmpty()) {
+                                                        publicKey = bean.realityPublicKey
+                                                    }
+                                                    if (bean.realityShortId.isNotEmpty()) {
+                                                        shortId = bean.realityShortId
+                                                    }
+                                                    if (bean.realityFingerprint.isNotEmpty()) {
+                                                        fingerprint = bean.realityFingerprint
+                                                    }
                                                 }
                                             }
                                         }
-                                    }
 
-                                    when (network) {
-                                        "tcp" -> {
-                                            tcpSettings = TcpObject().apply {
-                                                if (bean.headerType == "http") {
-                                                    header = TcpObject.HeaderObject().apply {
-                                                        type = "http"
-                                                        if (bean.host.isNotEmpty() || bean.path.isNotEmpty()) {
-                                                            request = TcpObject.HeaderObject.HTTPRequestObject()
-                                                                .apply {
-                                                                    headers = mutableMapOf()
-                                                                    if (bean.host.isNotEmpty()) {
-                                                                        headers["Host"] = TcpObject.HeaderObject.StringOrListObject()
-                                                                            .apply {
-                                                                                valueY = bean.host.listByLineOrComma()
-                                                                            }
+                                        when (network) {
+                                            "tcp" -> {
+                                                tcpSettings = TcpObject().apply {
+                                                    if (bean.headerType == "http") {
+                                                        header = TcpObject.HeaderObject().apply {
+                                                            type = "http"
+                                                            if (bean.host.isNotEmpty() || bean.path.isNotEmpty()) {
+                                                                request = TcpObject.HeaderObject.HTTPRequestObject()
+                                                                    .apply {
+                                                                        headers = mutableMapOf()
+                                                                        if (bean.host.isNotEmpty()) {
+                                                                            headers["Host"] = TcpObject.HeaderObject.StringOrListObject()
+                                                                                .apply {
+                                                                                    valueY = bean.host.listByLineOrComma()
+                                                                                }
+                                                                        }
+                                                                        if (bean.path.isNotEmpty()) {
+                                                                            path = bean.path.listByLineOrComma()
+                                                                        }
                                                                     }
-                                                                    if (bean.path.isNotEmpty()) {
-                                                                        path = bean.path.listByLineOrComma()
-                                                                    }
-                                                                }
+                                                            }
                                                         }
                                                     }
                                                 }
                                             }
-                                        }
-                                        "kcp" -> {
-                                            kcpSettings = KcpObject().apply {
-                                                mtu = 1350
-                                                tti = 50
-                                                uplinkCapacity = 12
-                                                downlinkCapacity = 100
-                                                congestion = false
-                                                readBufferSize = 1
-                                                writeBufferSize = 1
-                                                header = KcpObject.HeaderObject().apply {
-                                                    type = bean.headerType
-                                                }
-                                                if (bean.mKcpSeed.isNotEmpty()) {
-                                                    seed = bean.mKcpSeed
+                                            "kcp" -> {
+                                                kcpSettings = KcpObject().apply {
+                                                    mtu = 1350
+                                                    tti = 50
+                                                    uplinkCapacity = 12
+                                                    downlinkCapacity = 100
+                                                    congestion = false
+                                                    readBufferSize = 1
+                                                    writeBufferSize = 1
+                                                    header = KcpObject.HeaderObject().apply {
+                                                        type = bean.headerType
+                                                    }
+                                                    if (bean.mKcpSeed.isNotEmpty()) {
+                                                        seed = bean.mKcpSeed
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "ws" -> {
-                                            wsSettings = WebSocketObject().apply {
-                                                headers = mutableMapOf()
+                                            "ws" -> {
+                                                wsSettings = WebSocketObject().apply {
+                                                    headers = mutableMapOf()
 
-                                                if (bean.host.isNotEmpty()) {
-                                                    headers["Host"] = bean.host
-                                                }
+                                                    if (bean.host.isNotEmpty()) {
+                                                        headers["Host"] = bean.host
+                                                    }
 
-                                                path = bean.path.takeIf { it.isNotEmpty() } ?: "/"
+                                                    path = bean.path.takeIf { it.isNotEmpty() } ?: "/"
 
-                                                if (bean.maxEarlyData > 0) {
-                                                    maxEarlyData = bean.maxEarlyData
-                                                }
+                                                    if (bean.maxEarlyData > 0) {
+                                                        maxEarlyData = bean.maxEarlyData
+                                                    }
 
-                                                if (bean.earlyDataHeaderName.isNotEmpty()) {
-                                                    earlyDataHeaderName = bean.earlyDataHeaderName
-                                                }
+                                                    if (bean.earlyDataHeaderName.isNotEmpty()) {
+                                                        earlyDataHeaderName = bean.earlyDataHeaderName
+                                                    }
 
-                                                if (bean.wsUseBrowserForwarder) {
-                                                    useBrowserForwarding = true
-                                                    requireWs = true
+                                                    if (bean.wsUseBrowserForwarder) {
+                                                        useBrowserForwarding = true
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "http" -> {
-                                            network = "http"
+                                            "http" -> {
+                                                network = "http"
 
-                                            httpSettings = HttpObject().apply {
-                                                if (bean.host.isNotEmpty()) {
-                                                    host = bean.host.listByLineOrComma()
-                                                }
-                                                if (bean.path.isNotEmpty()) {
-                                                    path = bean.path
+                                                httpSettings = HttpObject().apply {
+                                                    if (bean.host.isNotEmpty()) {
+                                                        host = bean.host.listByLineOrComma()
+                                                    }
+                                                    if (bean.path.isNotEmpty()) {
+                                                        path = bean.path
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "quic" -> {
-                                            quicSettings = QuicObject().apply {
-                                                security = bean.quicSecurity.takeIf { it.isNotEmpty() }
-                                                    ?: "none"
-                                                key = bean.quicKey
-                                                header = QuicObject.HeaderObject().apply {
-                                                    type = bean.headerType.takeIf { it.isNotEmpty() }
+                                            "quic" -> {
+                                                quicSettings = QuicObject().apply {
+                                                    security = bean.quicSecurity.takeIf { it.isNotEmpty() }
                                                         ?: "none"
+                                                    key = bean.quicKey
+                                                    header = QuicObject.HeaderObject().apply {
+                                                        type = bean.headerType.takeIf { it.isNotEmpty() }
+                                                            ?: "none"
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "grpc" -> {
-                                            grpcSettings = GrpcObject().apply {
-                                                serviceName = bean.grpcServiceName
-                                            }
-                                        }
-                                        "meek" -> {
-                                            meekSettings = MeekObject().apply {
-                                                if (bean.meekUrl.isNotEmpty()) {
-                                                    url = bean.meekUrl
+                                            "grpc" -> {
+                                                grpcSettings = GrpcObject().apply {
+                                                    serviceName = bean.grpcServiceName
                                                 }
                                             }
-                                        }
-                                        "httpupgrade" -> {
-                                            httpupgradeSettings = HTTPUpgradeObject().apply {
-                                                if (bean.host.isNotEmpty()) {
-                                                    host = bean.host
-                                                }
-                                                if (bean.path.isNotEmpty()) {
-                                                    path = bean.path
-                                                }
-                                                if (bean.maxEarlyData > 0) {
-                                                    maxEarlyData = bean.maxEarlyData
-                                                }
-                                                if (bean.earlyDataHeaderName.isNotEmpty()) {
-                                                    earlyDataHeaderName = bean.earlyDataHeaderName
+                                            "meek" -> {
+                                                meekSettings = MeekObject().apply {
+                                                    if (bean.meekUrl.isNotEmpty()) {
+                                                        url = bean.meekUrl
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "splithttp" -> {
-                                            splithttpSettings = SplitHTTPObject().apply {
-                                                if (bean.host.isNotEmpty()) {
-                                                    host = bean.host
-                                                }
-                                                if (bean.path.isNotEmpty()) {
-                                                    path = bean.path
-                                                }
-                                                if (bean.splithttpMode != "auto") {
-                                                    mode = bean.splithttpMode
+                                            "httpupgrade" -> {
+                                                httpupgradeSettings = HTTPUpgradeObject().apply {
+                                                    if (bean.host.isNotEmpty()) {
+                                                        host = bean.host
+                                                    }
+                                                    if (bean.path.isNotEmpty()) {
+                                                        path = bean.path
+                                                    }
+                                                    if (bean.maxEarlyData > 0) {
+                                                        maxEarlyData = bean.maxEarlyData
+                                                    }
+                                                    if (bean.earlyDataHeaderName.isNotEmpty()) {
+                                                        earlyDataHeaderName = bean.earlyDataHeaderName
+                                                    }
                                                 }
-                                                if (bean.splithttpExtra.isNotEmpty()) {
-                                                    JSONObject(bean.splithttpExtra).also { extra ->
-                                                        // fuck RPRX `extra`
-                                                        extra.getInteger("scMaxEachPostBytes")?.also {
-                                                            scMaxEachPostBytes = it.toString()
-                                                        } ?: extra.getString("scMaxEachPostBytes")?.also {
-                                                            scMaxEachPostBytes = it
-                                                        }
-                                                        extra.getInteger("scMinPostsIntervalMs")?.also {
-                                                            scMinPostsIntervalMs = it.toString()
-                                                        } ?: extra.getString("scMinPostsIntervalMs")?.also {
-                                                            scMinPostsIntervalMs = it
-                                                        }
-                                                        extra.getInteger("xPaddingBytes")?.also {
-                                                            xPaddingBytes = it.toString()
-                                                        } ?: extra.getString("xPaddingBytes")?.also {
-                                                            xPaddingBytes = it
-                                                        }
-                                                        extra.getBoolean("noGRPCHeader")?.also {
-                                                            noGRPCHeader = it
-                                                        }
-                                                        @Suppress("UNCHECKED_CAST")
-                                                        (extra.getAny("headers") as? Map<String, String>)?.also {
-                                                            headers = it
+                                            }
+                                            "splithttp" -> {
+                                                splithttpSettings = SplitHTTPObject().apply {
+                                                    if (bean.host.isNotEmpty()) {
+                                                        host = bean.host
+                                                    }
+                                                    if (bean.path.isNotEmpty()) {
+                                                        path = bean.path
+                                                    }
+                                                    if (bean.splithttpMode != "auto") {
+                                                        mode = bean.splithttpMode
+                                                    }
+                                                    if (bean.splithttpExtra.isNotEmpty()) {
+                                                        JSONObject(bean.splithttpExtra).also { extra ->
+                                                            // fuck RPRX `extra`
+                                                            extra.getInteger("scMaxEachPostBytes")?.also {
+                                                                scMaxEachPostBytes = it.toString()
+                                                            } ?: extra.getString("scMaxEachPostBytes")?.also {
+                                                                scMaxEachPostBytes = it
+                                                            }
+                                                            extra.getInteger("scMinPostsIntervalMs")?.also {
+                                                                scMinPostsIntervalMs = it.toString()
+                                                            } ?: extra.getString("scMinPostsIntervalMs")?.also {
+                                                                scMinPostsIntervalMs = it
+                                                            }
+                                                            extra.getInteger("xPaddingBytes")?.also {
+                                                                xPaddingBytes = it.toString()
+                                                            } ?: extra.getString("xPaddingBytes")?.also {
+                                                                xPaddingBytes = it
+                                                            }
+                                                            extra.getBoolean("noGRPCHeader")?.also {
+                                                                noGRPCHeader = it
+                                                            }
+                                                            @Suppress("UNCHECKED_CAST")
+                                                            (extra.getAny("headers") as? Map<String, String>)?.also {
+                                                                headers = it
+                                                            }
                                                         }
                                                     }
-                                                }
-                                                if (bean.shUseBrowserForwarder) {
-                                                    useBrowserForwarding = true
-                                                    requireSh = true
+                                                    if (bean.shUseBrowserForwarder) {
+                                                        useBrowserForwarding = true
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "hysteria2" -> {
-                                            hy2Settings = Hysteria2Object().apply {
-                                                if (bean.hy2Password.isNotEmpty()) {
-                                                    password = bean.hy2Password
-                                                }
-                                                congestion = Hysteria2Object.CongestionObject().apply {
-                                                    down_mbps = bean.hy2DownMbps
-                                                    up_mbps = bean.hy2UpMbps
+                                            "hysteria2" -> {
+                                                hy2Settings = Hysteria2Object().apply {
+                                                    if (bean.hy2Password.isNotEmpty()) {
+                                                        password = bean.hy2Password
+                                                    }
+                                                    congestion = Hysteria2Object.CongestionObject().apply {
+                                                        down_mbps = bean.hy2DownMbps
+                                                        up_mbps = bean.hy2UpMbps
+                                                    }
                                                 }
                                             }
-                                        }
-                                        "mekya" -> {
-                                            mekyaSettings = MekyaObject().apply {
-                                                kcp = KcpObject().apply {
-                                                    mtu = 1350
-                                                    tti = 50
-                                                    uplinkCapacity = 12
-                                                    downlinkCapacity = 100
-                                                    congestion = false
-                                                    readBufferSize = 1
-                                                    writeBufferSize = 1
-                                                    header = KcpObject.HeaderObject().apply {
-                                                        type = bean.mekyaKcpHeaderType
+                                            "mekya" -> {
+                                                mekyaSettings = MekyaObject().apply {
+                                                    kcp = KcpObject().apply {
+                                                        mtu = 1350
+                                                        tti = 50
+                                                        uplinkCapacity = 12
+                                                        downlinkCapacity = 100
+                                                        congestion = false
+                                                        readBufferSize = 1
+                                                        writeBufferSize = 1
+                                                        header = KcpObject.HeaderObject().apply {
+                                                            type = bean.mekyaKcpHeaderType
+                                                        }
+                                                        if (bean.mKcpSeed.isNotEmpty()) {
+                                                            seed = bean.mekyaKcpSeed
+                                                        }
                                                     }
-                                                    if (bean.mKcpSeed.isNotEmpty()) {
-                                                        seed = bean.mekyaKcpSeed
+                                                    if (bean.mekyaUrl.isNotEmpty()) {
+                                                        url = bean.mekyaUrl
                                                     }
+                                                    // magic values from https://github.com/v2fly/v2ray-core/pull/3120
+                                                    maxWriteDelay = 80
+                                                    maxRequestSize = 96000
+                                                    pollingIntervalInitial = 200
+                                                    h2PoolSize = 8
                                                 }
-                                                if (bean.mekyaUrl.isNotEmpty()) {
-                                                    url = bean.mekyaUrl
-                                                }
-                                                // magic values from https://github.com/v2fly/v2ray-core/pull/3120
-                                                maxWriteDelay = 80
-                                                maxRequestSize = 96000
-                                                pollingIntervalInitial = 200
-                                                h2PoolSize = 8
                                             }
                                         }
-                                    }
-                                    if (DataStore.enableFragment && bean.canTCPing()
-                                        && (security == "tls" || security == "reality")
-                                        && !(bean is ShadowsocksBean && bean.plugin.isNotEmpty()
-                                        && !(network == "ws" && bean.wsUseBrowserForwarder)
-                                        && !(network == "splithttp" && bean.shUseBrowserForwarder))
-                                    ) {
-                                        sockopt = StreamSettingsObject.SockoptObject().apply {
-                                            if (DataStore.enableFragment) {
-                                                fragment = StreamSettingsObject.SockoptObject.FragmentObject().apply {
-                                                    packets = "tlshello"
-                                                    length = DataStore.fragmentLength
-                                                    interval = DataStore.fragmentInterval
+                                        if (DataStore.enableFragment && bean.canTCPing()
+                                            && (security == "tls" || security == "reality")
+                                            && !(bean is ShadowsocksBean && bean.plugin.isNotEmpty()
+                                            && !(network == "ws" && bean.wsUseBrowserForwarder)
+                                            && !(network == "splithttp" && bean.shUseBrowserForwarder))
+                                        ) {
+                                            sockopt = StreamSettingsObject.SockoptObject().apply {
+                                                if (DataStore.enableFragment) {
+                                                    fragment = StreamSettingsObject.SockoptObject.FragmentObject().apply {
+                                                        packets = "tlshello"
+                                                        length = DataStore.fragmentLength
+                                                        interval = DataStore.fragmentInterval
+                                                    }
                                                 }
                                             }
                                         }
                                     }
-                                }
-                            } else if (bean is ShadowsocksRBean) {
-                                protocol = "shadowsocks"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    ShadowsocksOutboundConfigurationObject().apply {
-                                        servers = listOf(ShadowsocksOutboundConfigurationObject.ServerObject().apply {
-                                                address = bean.serverAddress
-                                                port = bean.serverPort
-                                                method = bean.method
-                                                password = bean.password
+                                } else if (bean is ShadowsocksRBean) {
+                                    protocol = "shadowsocks"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        ShadowsocksOutboundConfigurationObject().apply {
+                                            servers = listOf(ShadowsocksOutboundConfigurationObject.ServerObject().apply {
+                                                    address = bean.serverAddress
+                                                    port = bean.serverPort
+                                                    method = bean.method
+                                                    password = bean.password
+                                                }
+                                            )
+                                            plugin = "shadowsocksr"
+                                            pluginArgs = listOf(
+                                                "--obfs=${bean.obfs}",
+                                                "--obfs-param=${bean.obfsParam}",
+                                                "--protocol=${bean.protocol}",
+                                                "--protocol-param=${bean.protocolParam}"
+                                            )
+                                        }
+                                    )
+                                } else if (bean is WireGuardBean) {
+                                    protocol = "wireguard"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        WireGuardOutboundConfigurationObject().apply {
+                                            address = bean.localAddress.listByLineOrComma()
+                                            secretKey = bean.privateKey
+                                            mtu = bean.mtu
+                                            val values = bean.reserved.listByLineOrComma()
+                                            if (values.size == 3) {
+                                                val reserved0 = values[0].toIntOrNull()
+                                                val reserved1 = values[1].toIntOrNull()
+                                                val reserved2 = values[2].toIntOrNull()
+                                                if (reserved0 != null && reserved1 != null && reserved2 != null) {
+                                                    reserved = listOf(reserved0, reserved1, reserved2)
+                                                }
+                                            } else {
+                                                val array = Base64.decode(bean.reserved)
+                                                if (array.size == 3) {
+                                                    reserved = listOf(array[0].toUByte().toInt(), array[1].toUByte().toInt(), array[2].toUByte().toInt())
+                                                }
                                             }
-                                        )
-                                        plugin = "shadowsocksr"
-                                        pluginArgs = listOf(
-                                            "--obfs=${bean.obfs}",
-                                            "--obfs-param=${bean.obfsParam}",
-                                            "--protocol=${bean.protocol}",
-                                            "--protocol-param=${bean.protocolParam}"
-                                        )
+                                            peers = listOf(WireGuardOutboundConfigurationObject.WireGuardPeerObject().apply {
+                                                publicKey = bean.peerPublicKey
+                                                if (bean.peerPreSharedKey.isNotEmpty()) {
+                                                    preSharedKey = bean.peerPreSharedKey
+                                                }
+                                                endpoint = joinHostPort(bean.serverAddress, bean.serverPort)
+                                            })
+                                        })
+                                    if (currentDomainStrategy == "AsIs") {
+                                        currentDomainStrategy = "UseIP"
                                     }
-                                )
-                            } else if (bean is WireGuardBean) {
-                                protocol = "wireguard"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    WireGuardOutboundConfigurationObject().apply {
-                                        address = bean.localAddress.listByLineOrComma()
-                                        secretKey = bean.privateKey
-                                        mtu = bean.mtu
-                                        val values = bean.reserved.listByLineOrComma()
-                                        if (values.size == 3) {
-                                            val reserved0 = values[0].toIntOrNull()
-                                            val reserved1 = values[1].toIntOrNull()
-                                            val reserved2 = values[2].toIntOrNull()
-                                            if (reserved0 != null && reserved1 != null && reserved2 != null) {
-                                                reserved = listOf(reserved0, reserved1, reserved2)
-                                            }
-                                        } else {
-                                            val array = Base64.decode(bean.reserved)
-                                            if (array.size == 3) {
-                                                reserved = listOf(array[0].toUByte().toInt(), array[1].toUByte().toInt(), array[2].toUByte().toInt())
+                                } else if (bean is SSHBean) {
+                                    protocol = "ssh"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        SSHOutbountConfigurationObject().apply {
+                                            address = bean.finalAddress
+                                            port = bean.finalPort
+                                            user = bean.username
+                                            when (bean.authType) {
+                                                SSHBean.AUTH_TYPE_PRIVATE_KEY -> {
+                                                    privateKey = bean.privateKey
+                                                    password = bean.privateKeyPassphrase
+                                                }
+                                                SSHBean.AUTH_TYPE_PASSWORD -> {
+                                                    password = bean.password
+                                                }
                                             }
+                                            publicKey = bean.publicKey
+                                        })
+                                } else if (bean is Hysteria2Bean) {
+                                    protocol = "hysteria2"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        Hysteria2OutboundConfigurationObject().apply {
+                                            servers = listOf(Hysteria2OutboundConfigurationObject.ServerObject().apply {
+                                                address = bean.serverAddress
+                                                port = bean.serverPorts.toHysteriaPort()
+                                            })
                                         }
-                                        peers = listOf(WireGuardOutboundConfigurationObject.WireGuardPeerObject().apply {
-                                            publicKey = bean.peerPublicKey
-                                            if (bean.peerPreSharedKey.isNotEmpty()) {
-                                                preSharedKey = bean.peerPreSharedKey
+                                    )
+                                    streamSettings = StreamSettingsObject().apply {
+                                        network = "hysteria2"
+                                        security = "tls"
+                                        hy2Settings = Hysteria2Object().apply {
+                                            use_udp_extension = true
+                                            if (bean.auth.isNotEmpty()) {
+                                                password = bean.auth
                                             }
-                                            endpoint = joinHostPort(bean.serverAddress, bean.serverPort)
-                                        })
-                                    })
-                                if (currentDomainStrategy == "AsIs") {
-                                    currentDomainStrategy = "UseIP"
-                                }
-                            } else if (bean is SSHBean) {
-                                protocol = "ssh"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    SSHOutbountConfigurationObject().apply {
-                                        address = bean.finalAddress
-                                        port = bean.finalPort
-                                        user = bean.username
-                                        when (bean.authType) {
-                                            SSHBean.AUTH_TYPE_PRIVATE_KEY -> {
-                                                privateKey = bean.privateKey
-                                                password = bean.privateKeyPassphrase
+                                            congestion = Hysteria2Object.CongestionObject().apply {
+                                                down_mbps = bean.downloadMbps
+                                                up_mbps = bean.uploadMbps
                                             }
-                                            SSHBean.AUTH_TYPE_PASSWORD -> {
-                                                password = bean.password
+                                            if (bean.obfs.isNotEmpty()) {
+                                                obfs = Hysteria2Object.OBFSObject().apply {
+                                                    type = "salamander"
+                                                    password = bean.obfs
+                                                }
                                             }
-                                        }
-                                        publicKey = bean.publicKey
-                                    })
-                            } else if (bean is Hysteria2Bean) {
-                                protocol = "hysteria2"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    Hysteria2OutboundConfigurationObject().apply {
-                                        servers = listOf(Hysteria2OutboundConfigurationObject.ServerObject().apply {
-                                            address = bean.serverAddress
-                                            port = bean.serverPorts.toHysteriaPort()
-                                        })
-                                    }
-                                )
-                                streamSettings = StreamSettingsObject().apply {
-                                    network = "hysteria2"
-                                    security = "tls"
-                                    hy2Settings = Hysteria2Object().apply {
-                                        use_udp_extension = true
-                                        if (bean.auth.isNotEmpty()) {
-                                            password = bean.auth
-                                        }
-                                        congestion = Hysteria2Object.CongestionObject().apply {
-                                            down_mbps = bean.downloadMbps
-                                            up_mbps = bean.uploadMbps
-                                        }
-                                        if (bean.obfs.isNotEmpty()) {
-                                            obfs = Hysteria2Object.OBFSObject().apply {
-                                                type = "salamander"
-                                                password = bean.obfs
+                                            if (bean.serverPorts.isValidHysteriaMultiPort() && DataStore.hysteriaEnablePortHopping) {
+                                                hopPorts = bean.serverPorts
+                                                hopInterval = bean.hopInterval
                                             }
                                         }
-                                        if (bean.serverPorts.isValidHysteriaMultiPort() && DataStore.hysteriaEnablePortHopping) {
-                                            hopPorts = bean.serverPorts
-                                            hopInterval = bean.hopInterval
-                                        }
-                                    }
-                                    tlsSettings = TLSObject().apply {
-                                        if (bean.sni.isNotEmpty()) {
-                                            serverName = bean.sni
-                                        }
-                                        if (bean.allowInsecure) {
-                                            allowInsecure = true
-                                        }
-                                        if (bean.caText.isNotEmpty()) {
-                                            disableSystemRoot = true
-                                            certificates = listOf(TLSObject.CertificateObject().apply {
-                                                usage = "verify"
-                                                certificate = bean.caText.split("\n").filter { it.isNotEmpty() }
-                                            })
-                                        }
-                                    }
-                                }
-                            } else if (bean is Tuic5Bean) {
-                                protocol = "tuic"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    V2RayConfig.TUICOutboundConfigurationObject().apply {
-                                        address = bean.serverAddress
-                                        port = bean.serverPort
-                                        uuid = bean.uuid
-                                        password = bean.password
-                                        congestionControl = bean.congestionControl
-                                        udpRelayMode = bean.udpRelayMode
-                                        if (bean.zeroRTTHandshake) zeroRTTHandshake = bean.zeroRTTHandshake
-                                        if (bean.sni.isNotEmpty()) serverName = bean.sni
-                                        if (bean.alpn.isNotEmpty())  alpn = bean.alpn.listByLineOrComma()
-                                        if (bean.caText.isNotEmpty()) {
-                                            certificate = bean.caText.split("\n").filter { it.isNotEmpty() }
-                                        }
-                                        if (bean.disableSNI) disableSNI = bean.disableSNI
-                                        if (bean.allowInsecure) allowInsecure = bean.allowInsecure
-                                    }
-                                )
-                            } else if (bean is Http3Bean) {
-                                protocol = "http3"
-                                settings = LazyOutboundConfigurationObject(this,
-                                    V2RayConfig.HTTP3OutboundConfigurationObject().apply {
-                                        address = bean.serverAddress
-                                        port = bean.serverPort
-                                        if (bean.username.isNotEmpty()) username = bean.username
-                                        if (bean.password.isNotEmpty()) password = bean.password
                                         tlsSettings = TLSObject().apply {
                                             if (bean.sni.isNotEmpty()) {
                                                 serverName = bean.sni
                                             }
-                                            if (bean.certificates.isNotEmpty()) {
-                                                disableSystemRoot = true
-                                                certificates = listOf(TLSObject.CertificateObject()
-                                                    .apply {
-                                                        usage = "verify"
-                                                        certificate = bean.certificates.split(
-                                                            "\n"
-                                                        ).filter { it.isNotEmpty() }
-                                                    })
-                                            }
-                                            if (bean.pinnedPeerCertificateChainSha256.isNotEmpty()) {
-                                                pinnedPeerCertificateChainSha256 = bean.pinnedPeerCertificateChainSha256.listByLineOrComma()
-                                            }
                                             if (bean.allowInsecure) {
                                                 allowInsecure = true
                                             }
-                                            if (bean.echConfig.isNotEmpty()) {
-                                                echConfig = bean.echConfig
-                                            }
-                                            if (bean.echDohServer.isNotEmpty()) {
-                                                echDohServer = bean.echDohServer
+                                            if (bean.caText.isNotEmpty()) {
+                                                disableSystemRoot = true
+                                                certificates = listOf(TLSObject.CertificateObject().apply {
+                                                    usage = "verify"
+                                                    certificate = bean.caText.split("\n").filter { it.isNotEmpty() }
+                                                })
                                             }
                                         }
                                     }
-                                )
-                            }
-                            if (bean is StandardV2RayBean && bean.mux) {
-                                mux = OutboundObject.MuxObject().apply {
-                                    enabled = true
-                                    concurrency = bean.muxConcurrency
-                                    when (bean.muxPacketEncoding) {
-                                        "packet" -> {
-                                            packetEncoding = "packet"
+                                } else if (bean is Tuic5Bean) {
+                                    protocol = "tuic"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        V2RayConfig.TUICOutboundConfigurationObject().apply {
+                                            address = bean.serverAddress
+                                            port = bean.serverPort
+                                            uuid = bean.uuid
+                                            password = bean.password
+                                            congestionControl = bean.congestionControl
+                                            udpRelayMode = bean.udpRelayMode
+                                            if (bean.zeroRTTHandshake) zeroRTTHandshake = bean.zeroRTTHandshake
+                                            if (bean.sni.isNotEmpty()) serverName = bean.sni
+                                            if (bean.alpn.isNotEmpty())  alpn = bean.alpn.listByLineOrComma()
+                                            if (bean.caText.isNotEmpty()) {
+                                                certificate = bean.caText.split("\n").filter { it.isNotEmpty() }
+                                            }
+                                            if (bean.disableSNI) disableSNI = bean.disableSNI
+                                            if (bean.allowInsecure) allowInsecure = bean.allowInsecure
                                         }
-                                        "xudp" -> {
-                                            packetEncoding = "xudp"
+                                    )
+                                } else if (bean is Http3Bean) {
+                                    protocol = "http3"
+                                    settings = LazyOutboundConfigurationObject(this,
+                                        V2RayConfig.HTTP3OutboundConfigurationObject().apply {
+                                            address = bean.serverAddress
+                                            port = bean.serverPort
+                                            if (bean.username.isNotEmpty()) username = bean.username
+                                            if (bean.password.isNotEmpty()) password = bean.password
+                                            tlsSettings = TLSObject().apply {
+                                                if (bean.sni.isNotEmpty()) {
+                                                    serverName = bean.sni
+                                                }
+                                                if (bean.certificates.isNotEmpty()) {
+                                                    disableSystemRoot = true
+                                                    certificates = listOf(TLSObject.CertificateObject()
+                                                        .apply {
+                                                            usage = "verify"
+                                                            certificate = bean.certificates.split(
+                                                                "\n"
+                                                            ).filter { it.isNotEmpty() }
+                                                        })
+                                                }
+                                                if (bean.pinnedPeerCertificateChainSha256.isNotEmpty()) {
+                                                    pinnedPeerCertificateChainSha256 = bean.pinnedPeerCertificateChainSha256.listByLineOrComma()
+                                                }
+                                                if (bean.allowInsecure) {
+                                                    allowInsecure = true
+                                                }
+                                                if (bean.echConfig.isNotEmpty()) {
+                                                    echConfig = bean.echConfig
+                                                }
+                                                if (bean.echDohServer.isNotEmpty()) {
+                                                    echDohServer = bean.echDohServer
+                                                }
+                                            }
+                                        }
+                                    )
+                                }
+                                if (bean is StandardV2RayBean && bean.mux) {
+                                    mux = OutboundObject.MuxObject().apply {
+                                        enabled = true
+                                        concurrency = bean.muxConcurrency
+                                        when (bean.muxPacketEncoding) {
+                                            "packet" -> {
+                                                packetEncoding = "packet"
+                                            }
+                                            "xudp" -> {
+                                                packetEncoding = "xudp"
+                                            }
                                         }
                                     }
                                 }
+                                domainStrategy = currentDomainStrategy
                             }
                         }
+                        if (bean is StandardV2RayBean) {
+                            if (bean.type == "ws" && bean.wsUseBrowserForwarder) requireWs = true
+                            if (bean.type == "splithttp" && bean.shUseBrowserForwarder) requireSh = true
+                        }
                     }
 
-                    currentOutbound.domainStrategy = currentDomainStrategy
-
                     if (bean is JuicityBean && DataStore.enableFakeDns && currentOutbound.domainStrategy == "AsIs") {
                         currentOutbound.domainStrategy = "UseIP" // https://github.com/juicity/juicity/issues/140
                     }
@@ -1280,19 +1286,25 @@ fun buildV2RayConfig(
 
             if (isBalancer) {
                 val balancerBean = balancer()!!
-                val observatory = ObservatoryObject().apply {
-                    probeUrl = balancerBean.probeUrl.ifEmpty {
-                        DataStore.connectionTestURL
-                    }
-                    if (balancerBean.probeInterval > 0) {
-                        probeInterval = "${balancerBean.probeInterval}s"
+                val connectionTestURL = DataStore.connectionTestURL
+                val subjects = chainOutbounds.map { it.tag }
+                val balancerKey = listOf(tagOutbound, subjects, balancerBean.contentFingerprint(), connectionTestURL)
+                val observatoryItem = ConfigFragments.fragment(
+                    balancerKey, MultiObservatoryObject.MultiObservatoryItem::class.java
+                ) {
+                    MultiObservatoryObject.MultiObservatoryItem().apply {
+                        tag = "observer-$tagOutbound"
+                        settings = ObservatoryObject().apply {
+                            probeUrl = balancerBean.probeUrl.ifEmpty {
+                                connectionTestURL
+                            }
+                            if (balancerBean.probeInterval > 0) {
+                                probeInterval = "${balancerBean.probeInterval}s"
+                            }
+                            enableConcurrency = true
+                            subjectSelector = HashSet(subjects)
+                        }
                     }
-                    enableConcurrency = true
-                    subjectSelector = HashSet(chainOutbounds.map { it.tag })
-                }
-                val observatoryItem = MultiObservatoryObject.MultiObservatoryItem().apply {
-                    tag = "observer-$tagOutbound"
-                    settings = observatory
                 }
                 if (multiObservatory == null) multiObservatory = MultiObservatoryObject().apply {
                     observers = mutableListOf()
@@ -1300,33 +1312,30 @@ fun buildV2RayConfig(
                 multiObservatory.observers.add(observatoryItem)
 
                 if (routing.balancers == null) routing.balancers = ArrayList()
-                routing.balancers.add(RoutingObject.BalancerObject().apply {
-                    tag = "balancer-$tagOutbound"
-                    selector = chainOutbounds.map { it.tag }
-                    if (multiObservatory == null) {
-                        multiObservatory = MultiObservatoryObject().apply {
-                            observers = mutableListOf()
-                        }
-                    }
-                    strategy = StrategyObject().apply {
-                        type = balancerBean.strategy.takeIf { it.isNotEmpty() } ?: "random"
-                        when (type) {
-                            "leastPing", "leastLoad" -> {
-                                settings = StrategyObject.strategyConfig().apply {
-                                    observerTag = "observer-$tagOutbound"
+                routing.balancers.add(ConfigFragments.fragment(balancerKey, RoutingObject.BalancerObject::class.java) {
+                    RoutingObject.BalancerObject().apply {
+                        tag = "balancer-$tagOutbound"
+                        selector = subjects
+                        strategy = StrategyObject().apply {
+                            type = balancerBean.strategy.takeIf { it.isNotEmpty() } ?: "random"
+                            when (type) {
+                                "leastPing", "leastLoad" -> {
+                                    settings = StrategyObject.strategyConfig().apply {
+                                        observerTag = "observer-$tagOutbound"
+                                    }
                                 }
-                            }
-                            else -> {
-                                settings = StrategyObject.strategyConfig().apply {
-                                    observerTag = "observer-$tagOutbound"
-                                    aliveOnly = true
+                                else -> {
+                                    settings = StrategyObject.strategyConfig().apply {
+                                        observerTag = "observer-$tagOutbound"
+                                        aliveOnly = true
+                                    }
                                 }
                             }
                         }
                     }
                 })
                 if (tagOutbound == TAG_AGENT) {
-                    if (observatoryItem.settings.probeUrl == DataStore.connectionTestURL) {
+                    if (observatoryItem.settings.probeUrl == connectionTestURL) {
                         rootObserver = observatoryItem
                     }
                     // if all outbounds of a balancer are dead, the first (default) outbound will be used
@@ -1359,9 +1368,38 @@ fun buildV2RayConfig(
             }
         }
 
+        if (forTest && batchTest.isNotEmpty()) {
+            for (entity in (listOf(proxy) + batchTest).distinctBy { it.id }) {
+                val inboundTag = "$TAG_TEST-${entity.id}"
+                testInbounds[entity.id] = inboundTag
+                inbounds.add(InboundObject().apply {
+                    tag = inboundTag
+                    listen = LOCALHOST
+                    port = mkPort()
+                    protocol = "socks"
+                    settings = LazyInboundConfigurationObject(this,
+                        SocksInboundConfigurationObject().apply {
+                            auth = "noauth"
+                            udp = true
+                        })
+                })
+                routing.rules.add(RoutingObject.RuleObject().apply {
+                    type = "field"
+                    this.inboundTag = listOf(inboundTag)
+                    when {
+                        entity.id == proxy.id && mainIsBalancer -> balancerTag = "balancer-$TAG_AGENT"
+                        entity.id == proxy.id -> outboundTag = tagProxy
+                        balancerMap.containsKey(entity.id) -> balancerTag = balancerMap[entity.id]
+                        else -> outboundTag = tagMap[entity.id]
+                    }
+                })
+            }
+        }
+
         val isVpn = DataStore.serviceMode == Key.MODE_VPN
 
-        for (rule in extraRules) {
+        for (fragment in extraRules) {
+            val rule = fragment.rule
             if (rule.packages.isNotEmpty()) {
                 dumpUid = true
                 if (!isVpn) {
@@ -1409,10 +1447,10 @@ fun buildV2RayConfig(
                 }
 
                 if (rule.domains.isNotEmpty()) {
-                    domain = rule.domains.listByLineOrComma()
+                    domain = fragment.domains
                 }
                 if (rule.ip.isNotEmpty()) {
-                    ip = rule.ip.listByLineOrComma()
+                    ip = fragment.ip
                 }
                 if (rule.port.isNotEmpty()) {
                     port = rule.port
@@ -1424,16 +1462,16 @@ fun buildV2RayConfig(
                     network = rule.network
                 }
                 if (rule.source.isNotEmpty()) {
-                    source = rule.source.listByLineOrComma()
+                    source = fragment.source
                 }
                 if (rule.protocol.isNotEmpty()) {
-                    protocol = rule.protocol.listByLineOrComma()
+                    protocol = fragment.protocol
                 }
                 if (rule.attrs.isNotEmpty()) {
                     attrs = rule.attrs
                 }
                 if (rule.ssid.isNotEmpty()) {
-                    ssidList = rule.ssid.listByLineOrComma()
+                    ssidList = fragment.ssid
                 }
                 if (rule.networkType.isNotEmpty()) {
                     networkType = rule.networkType
@@ -1614,14 +1652,14 @@ fun buildV2RayConfig(
         }
 
         if (enableDnsRouting) {
-            for (bypassRule in extraRules.filter { it.isBypassRule() }) {
-                if (bypassRule.domains.isNotEmpty()) {
-                    bypassDomain.addAll(bypassRule.domains.listByLineOrComma())
+            for (bypassRule in extraRules.filter { it.rule.isBypassRule() }) {
+                if (bypassRule.rule.domains.isNotEmpty()) {
+                    bypassDomain.addAll(bypassRule.domains)
                 }
             }
-            for (proxyRule in extraRules.filter { it.isProxyRule() }) {
-                if (proxyRule.domains.isNotEmpty()) {
-                    proxyDomain.addAll(proxyRule.domains.listByLineOrComma())
+            for (proxyRule in extraRules.filter { it.rule.isProxyRule() }) {
+                if (proxyRule.rule.domains.isNotEmpty()) {
+                    proxyDomain.addAll(proxyRule.domains)
                 }
             }
         }
@@ -1644,139 +1682,162 @@ fun buildV2RayConfig(
             }
         }
 
-        var hasDnsTagDirect = false
-        if (bypassDomain.isNotEmpty() || bypassDomainSkipFakeDns.isNotEmpty() || bootstrapDomain.isNotEmpty()) {
-            dns.servers.addAll(remoteDns.map {
-                DnsObject.StringOrServerObject().apply {
-                    valueY = DnsObject.ServerObject().apply {
-                        address = it
-                        domains = proxyDomain.toList() // v2fly/v2ray-core#1558, v2fly/v2ray-core#1855
-                        queryStrategy = remoteDnsQueryStrategy
-                        if (DataStore.ednsClientIp.isNotEmpty()) {
-                            clientIp = DataStore.ednsClientIp
-                        }
-                        if (useFakeDns) {
-                            fakedns = mutableListOf()
-                            if (queryStrategy != "UseIPv6") {
-                                fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
-                                    valueY = FakeDnsObject().apply {
-                                        ipPool = "${VpnService.FAKEDNS_VLAN4_CLIENT}/15"
-                                        poolSize = 65535
+        val dnsHosts = DataStore.hosts
+        val ednsClientIp = DataStore.ednsClientIp
+        val dnsKey = listOf(
+            dnsHosts,
+            remoteDns,
+            directDNS,
+            bootstrapDNS,
+            proxyDomain.toSet(),
+            bypassDomain.toSet(),
+            bypassDomainSkipFakeDns.toSet(),
+            bootstrapDomain.toSet(),
+            remoteDnsQueryStrategy,
+            directDnsQueryStrategy,
+            ednsClientIp,
+            useFakeDns
+        )
+        dns = ConfigFragments.fragment(dnsKey, DnsObject::class.java) {
+            DnsObject().apply {
+                if (dnsHosts.isNotEmpty()) {
+                    hosts = ConfigFragments.hosts(dnsHosts)
+                }
+                servers = mutableListOf()
+                fallbackStrategy = "disabledIfAnyMatch"
+
+                if (bypassDomain.isNotEmpty() || bypassDomainSkipFakeDns.isNotEmpty() || bootstrapDomain.isNotEmpty()) {
+                    servers.addAll(remoteDns.map {
+                        DnsObject.StringOrServerObject().apply {
+                            valueY = DnsObject.ServerObject().apply {
+                                address = it
+                                domains = proxyDomain.toList() // v2fly/v2ray-core#1558, v2fly/v2ray-core#1855
+                                queryStrategy = remoteDnsQueryStrategy
+                                if (ednsClientIp.isNotEmpty()) {
+                                    clientIp = ednsClientIp
+                                }
+                                if (useFakeDns) {
+                                    fakedns = mutableListOf()
+                                    if (queryStrategy != "UseIPv6") {
+                                        fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
+                                            valueY = FakeDnsObject().apply {
+                                                ipPool = "${VpnService.FAKEDNS_VLAN4_CLIENT}/15"
+                                                poolSize = 65535
+                                            }
+                                        })
                                     }
-                                })
-                            }
-                            if (queryStrategy != "UseIPv4") {
-                                fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
-                                    valueY = FakeDnsObject().apply {
-                                        ipPool = "${VpnService.FAKEDNS_VLAN6_CLIENT}/18"
-                                        poolSize = 65535
+                                    if (queryStrategy != "UseIPv4") {
+                                        fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
+                                            valueY = FakeDnsObject().apply {
+                                                ipPool = "${VpnService.FAKEDNS_VLAN6_CLIENT}/18"
+                                                poolSize = 65535
+                                            }
+                                        })
                                     }
-                                })
+                                }
                             }
                         }
-                    }
-                }
-            })
-            if (bootstrapDomain.isNotEmpty()) {
-                dns.servers.addAll(bootstrapDNS.map {
-                    DnsObject.StringOrServerObject().apply {
-                        valueY = DnsObject.ServerObject().apply {
-                            address = it
-                            domains = bootstrapDomain.toList() // v2fly/v2ray-core#1558, v2fly/v2ray-core#1855
-                            queryStrategy = directDnsQueryStrategy
-                            if (!it.contains("+local://") && it != "localhost") {
-                                tag = TAG_DNS_DIRECT
-                                hasDnsTagDirect = true
+                    })
+                    if (bootstrapDomain.isNotEmpty()) {
+                        servers.addAll(bootstrapDNS.map {
+                            DnsObject.StringOrServerObject().apply {
+                                valueY = DnsObject.ServerObject().apply {
+                                    address = it
+                                    domains = bootstrapDomain.toList() // v2fly/v2ray-core#1558, v2fly/v2ray-core#1855
+                                    queryStrategy = directDnsQueryStrategy
+                                    if (!it.contains("+local://") && it != "localhost") {
+                                        tag = TAG_DNS_DIRECT
+                                    }
+                                }
                             }
-                        }
+                        })
                     }
-                })
-            }
-            if (bypassDomainSkipFakeDns.isNotEmpty()) {
-                dns.servers.addAll(directDNS.map {
-                    DnsObject.StringOrServerObject().apply {
-                        valueY = DnsObject.ServerObject().apply {
-                            address = it
-                            // skip fake DNS for server addresses and DNS server addresses
-                            domains = bypassDomainSkipFakeDns.toList()
-                            queryStrategy = directDnsQueryStrategy
-                            if (!it.contains("+local://") && it != "localhost") {
-                                tag = TAG_DNS_DIRECT
-                                hasDnsTagDirect = true
+                    if (bypassDomainSkipFakeDns.isNotEmpty()) {
+                        servers.addAll(directDNS.map {
+                            DnsObject.StringOrServerObject().apply {
+                                valueY = DnsObject.ServerObject().apply {
+                                    address = it
+                                    // skip fake DNS for server addresses and DNS server addresses
+                                    domains = bypassDomainSkipFakeDns.toList()
+                                    queryStrategy = directDnsQueryStrategy
+                                    if (!it.contains("+local://") && it != "localhost") {
+                                        tag = TAG_DNS_DIRECT
+                                    }
+                                    fallbackStrategy = "disabled"
+                                }
                             }
-                            fallbackStrategy = "disabled"
-                        }
+                        })
                     }
-                })
-            }
-            if (bypassDomain.isNotEmpty()) {
-                dns.servers.addAll(directDNS.map {
-                    DnsObject.StringOrServerObject().apply {
-                        valueY = DnsObject.ServerObject().apply {
-                            address = it
-                            //FIXME: This relies on the behavior of a bug.
-                            domains = bypassDomain.toList() // v2fly/v2ray-core#1558, v2fly/v2ray-core#1855
-                            queryStrategy = directDnsQueryStrategy
-                            if (!it.contains("+local://") && it != "localhost") {
-                                tag = TAG_DNS_DIRECT
-                                hasDnsTagDirect = true
-                            }
-                            if (useFakeDns) {
-                                fakedns = mutableListOf()
-                                if (queryStrategy != "UseIPv6") {
-                                    fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
-                                        valueY = FakeDnsObject().apply {
-                                            ipPool = "${VpnService.FAKEDNS_VLAN4_CLIENT}/15"
-                                            poolSize = 65535
+                    if (bypassDomain.isNotEmpty()) {
+                        servers.addAll(directDNS.map {
+                            DnsObject.StringOrServerObject().apply {
+                                valueY = DnsObject.ServerObject().apply {
+                                    address = it
+                                    //FIXME: This relies on the behavior of a bug.
+                                    domains = bypassDomain.toList() // v2fly/v2ray-core#1558, v2fly/v2ray-core#1855
+                                    queryStrategy = directDnsQueryStrategy
+                                    if (!it.contains("+local://") && it != "localhost") {
+                                        tag = TAG_DNS_DIRECT
+                                    }
+                                    if (useFakeDns) {
+                                        fakedns = mutableListOf()
+                                        if (queryStrategy != "UseIPv6") {
+                                            fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
+                                                valueY = FakeDnsObject().apply {
+                                                    ipPool = "${VpnService.FAKEDNS_VLAN4_CLIENT}/15"
+                                                    poolSize = 65535
+                                                }
+                                            })
                                         }
-                                    })
-                                }
-                                if (queryStrategy != "UseIPv4") {
-                                    fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
-                                        valueY = FakeDnsObject().apply {
-                                            ipPool = "${VpnService.FAKEDNS_VLAN6_CLIENT}/18"
-                                            poolSize = 65535
+                                        if (queryStrategy != "UseIPv4") {
+                                            fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
+                                                valueY = FakeDnsObject().apply {
+                                                    ipPool = "${VpnService.FAKEDNS_VLAN6_CLIENT}/18"
+                                                    poolSize = 65535
+                                                }
+                                            })
                                         }
-                                    })
+                                    }
+                                    fallbackStrategy = "disabled"
                                 }
                             }
-                            fallbackStrategy = "disabled"
-                        }
+                        })
                     }
-                })
-            }
-        } else {
-            dns.servers.addAll(remoteDns.map {
-                DnsObject.StringOrServerObject().apply {
-                    valueY = DnsObject.ServerObject().apply {
-                        address = it
-                        queryStrategy = remoteDnsQueryStrategy
-                        if (DataStore.ednsClientIp.isNotEmpty()) {
-                            clientIp = DataStore.ednsClientIp
-                        }
-                        if (useFakeDns) {
-                            fakedns = mutableListOf()
-                            if (queryStrategy != "UseIPv6") {
-                                fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
-                                    valueY = FakeDnsObject().apply {
-                                        ipPool = "${VpnService.FAKEDNS_VLAN4_CLIENT}/15"
-                                        poolSize = 65535
+                } else {
+                    servers.addAll(remoteDns.map {
+                        DnsObject.StringOrServerObject().apply {
+                            valueY = DnsObject.ServerObject().apply {
+                                address = it
+                                queryStrategy = remoteDnsQueryStrategy
+                                if (ednsClientIp.isNotEmpty()) {
+                                    clientIp = ednsClientIp
+                                }
+                                if (useFakeDns) {
+                                    fakedns = mutableListOf()
+                                    if (queryStrategy != "UseIPv6") {
+                                        fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
+                                            valueY = FakeDnsObject().apply {
+                                                ipPool = "${VpnService.FAKEDNS_VLAN4_CLIENT}/15"
+                                                poolSize = 65535
+                                            }
+                                        })
                                     }
-                                })
-                            }
-                            if (queryStrategy != "UseIPv4") {
-                                fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
-                                    valueY = FakeDnsObject().apply {
-                                        ipPool = "${VpnService.FAKEDNS_VLAN6_CLIENT}/18"
-                                        poolSize = 65535
+                                    if (queryStrategy != "UseIPv4") {
+                                        fakedns.add(DnsObject.ServerObject.StringOrFakeDnsObject().apply {
+                                            valueY = FakeDnsObject().apply {
+                                                ipPool = "${VpnService.FAKEDNS_VLAN6_CLIENT}/18"
+                                                poolSize = 65535
+                                            }
+                                        })
                                     }
-                                })
+                                }
                             }
                         }
-                    }
+                    })
                 }
-            })
+            }
         }
+        val hasDnsTagDirect = dns.servers.any { it.valueY?.tag == TAG_DNS_DIRECT }
 
         if (!forTest && hasDnsTagDirect) {
             routing.rules.add(0, RoutingObject.RuleObject().apply {
@@ -1828,7 +1889,8 @@ fun buildV2RayConfig(
             rootObserver?.tag ?: "",
             rootObserver?.settings?.subjectSelector ?: HashSet(),
             dumpUid,
-            alerts
+            alerts,
+            testInbounds
         )
     }
 
@@ -1842,10 +1904,11 @@ fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
     val trafficSniffing = DataStore.trafficSniffing
 
     val bean = proxy.configBean!!
-    val config = JSONObject(bean.content)
-    val inbounds = config.getJSONArray("inbounds")
-        ?.filterIsInstance<JSONObject>()
-        ?.map { gson.fromJson(it.toString(), InboundObject::class.java) }
+    // the user config is kept as a tree so that unknown fields survive, inbounds and
+    // outbounds are bound from and written back into it without going through strings
+    val config = JsonParser.parseString(bean.content).asJsonObject
+    val inbounds = config.jsonObjects("inbounds")
+        ?.map { gson.fromJson(it, InboundObject::class.java) }
         ?.toMutableList() ?: ArrayList()
 
     var socksInbound = inbounds.find { it.tag == TAG_SOCKS }?.apply {
@@ -1908,9 +1971,8 @@ fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
     } */
 
     val outbounds = try {
-        config.getJSONArray("outbounds")?.filterIsInstance<JSONObject>()?.map { it ->
-            gson.fromJson(it.toString().takeIf { it.isNotEmpty() } ?: "{}",
-                OutboundObject::class.java)
+        config.jsonObjects("outbounds")?.map {
+            gson.fromJson(it, OutboundObject::class.java)
         }?.toMutableList()
     } catch (e: JsonSyntaxException) {
         null
@@ -1950,15 +2012,15 @@ fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
     }
 
     inbounds.forEach { it.init() }
-    config["inbounds"] = JSONArray(inbounds.map { JSONObject(gson.toJson(it)) })
+    config.add("inbounds", gson.toJsonTree(inbounds))
     if (flushOutbounds) {
         outbounds!!.forEach { it.init() }
-        config["outbounds"] = JSONArray(outbounds.map { JSONObject(gson.toJson(it)) })
+        config.add("outbounds", gson.toJsonTree(outbounds))
     }
 
 
     return V2rayBuildResult(
-        config.toStringPretty(),
+        gson.toJson(config),
         emptyList(),
         false, // requireWs
         0, // wsPort
@@ -1975,3 +2037,8 @@ fun buildCustomConfig(proxy: ProxyEntity, port: Int): V2rayBuildResult {
     )
 
 }
+
+private fun JsonObject.jsonObjects(key: String): List<JsonObject>? {
+    val array = get(key)?.takeIf { it.isJsonArray } ?: return null
+    return array.asJsonArray.filter { it.isJsonObject }.map { it.asJsonObject }
+}
@@ -0,0 +1,205 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.fmt
+
+import androidx.room.InvalidationTracker
+import com.google.gson.JsonElement
+import io.nekohasekai.sagernet.aidl.TrafficStats
+import io.nekohasekai.sagernet.database.GroupManager
+import io.nekohasekai.sagernet.database.ProfileManager
+import io.nekohasekai.sagernet.database.ProxyEntity
+import io.nekohasekai.sagernet.database.ProxyGroup
+import io.nekohasekai.sagernet.database.RuleEntity
+import io.nekohasekai.sagernet.database.SagerDatabase
+import io.nekohasekai.sagernet.fmt.gson.gson
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.DnsObject
+import io.nekohasekai.sagernet.fmt.v2ray.V2RayConfig.OutboundObject
+import io.nekohasekai.sagernet.ktx.listByLine
+import io.nekohasekai.sagernet.ktx.listByLineOrComma
+
+/**
+ * Inputs of [buildV2RayConfig] that only change on user edits, kept across builds so that
+ * switching profiles does not query every group and re-split every rule again.
+ *
+ * Cached rows are dropped on [GroupManager] and [ProfileManager] rule events of this process,
+ * and through the invalidation tracker for writes made by other processes. Profile rows are
+ * not cached since traffic and latency updates rewrite them all the time; the config parts
+ * built from them are memoized by content instead, see [fragment].
+ */
+object ConfigFragments : GroupManager.Listener, ProfileManager.RuleListener {
+
+    /** An enabled routing rule with its list fields split once. */
+    class RuleFragment(val rule: RuleEntity) {
+        val domains by lazy { rule.domains.listByLineOrComma() }
+        val ip by lazy { rule.ip.listByLineOrComma() }
+        val source by lazy { rule.source.listByLineOrComma() }
+        val protocol by lazy { rule.protocol.listByLineOrComma() }
+        val ssid by lazy { rule.ssid.listByLineOrComma() }
+    }
+
+    @Volatile
+    private var groups: Map<Long, ProxyGroup>? = null
+
+    @Volatile
+    private var groupsVersion = 0
+
+    @Volatile
+    private var rules: List<RuleFragment>? = null
+
+    @Volatile
+    private var rulesVersion = 0
+
+    @Volatile
+    private var hosts: Pair<String, Map<String, DnsObject.StringOrListObject>>? = null
+
+    private const val MAX_FRAGMENTS = 256
+
+    private val fragments = object : LinkedHashMap<Pair<Class<*>, Any>, JsonElement>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Pair<Class<*>, Any>, JsonElement>?): Boolean {
+            return size > MAX_FRAGMENTS
+        }
+    }
+
+    @Volatile
+    private var fragmentsVersion = 0
+
+    init {
+        SagerDatabase.invalidationTracker.addObserver(object : InvalidationTracker.Observer("proxy_groups") {
+            override fun onInvalidated(tables: Set<String>) = invalidateGroups()
+        })
+        SagerDatabase.invalidationTracker.addObserver(object : InvalidationTracker.Observer("rules") {
+            override fun onInvalidated(tables: Set<String>) = invalidateRules()
+        })
+        GroupManager.addListener(this)
+        ProfileManager.addListener(this as ProfileManager.RuleListener)
+        ProfileManager.addListener(object : ProfileManager.Listener {
+            override suspend fun onAdd(profile: ProxyEntity) = Unit
+            override suspend fun onUpdated(profileId: Long, trafficStats: TrafficStats) = Unit
+            override suspend fun onUpdated(trafficStats: Map<Long, TrafficStats>) = Unit
+            override suspend fun onUpdated(profile: ProxyEntity) = invalidateFragments()
+            override suspend fun onUpdated(groupId: Long, profiles: List<ProxyEntity>) = invalidateFragments()
+            override suspend fun onRemoved(groupId: Long, profileId: Long) = invalidateFragments()
+        })
+    }
+
+    fun group(groupId: Long): ProxyGroup? {
+        groups?.let { return it[groupId] }
+        val loadVersion = groupsVersion
+        val loaded = SagerDatabase.groupDao.allGroups().associateBy { it.id }
+        synchronized(this) {
+            // an invalidation raced with the load, serve it once but don't keep it
+            if (groupsVersion == loadVersion) groups = loaded
+        }
+        return loaded[groupId]
+    }
+
+    fun enabledRules(): List<RuleFragment> {
+        rules?.let { return it }
+        val loadVersion = rulesVersion
+        val loaded = SagerDatabase.rulesDao.enabledRules().map { RuleFragment(it) }
+        synchronized(this) {
+            if (rulesVersion == loadVersion) rules = loaded
+        }
+        return loaded
+    }
+
+    /**
+     * The `hosts` block of the DNS object for the given setting value. The map is shared
+     * between builds and must not be modified.
+     */
+    fun hosts(value: String): Map<String, DnsObject.StringOrListObject> {
+        hosts?.takeIf { it.first == value }?.let { return it.second }
+        val hosts = LinkedHashMap<String, DnsObject.StringOrListObject>()
+        for (singleLine in value.listByLine()) {
+            val key = singleLine.substringBefore(" ")
+            val values = singleLine.substringAfter(" ").split("\\s+".toRegex()).toMutableList()
+            val existing = hosts[key]
+            if (existing != null) {
+                if (!existing.valueX.isNullOrEmpty()) {
+                    values.add(existing.valueX)
+                } else if (!existing.valueY.isNullOrEmpty()) {
+                    values.addAll(existing.valueY)
+                }
+            }
+            if (values.size > 1) {
+                hosts[key] = DnsObject.StringOrListObject().apply { valueY = values }
+            } else if (values.size == 1) {
+                hosts[key] = DnsObject.StringOrListObject().apply { valueX = values[0] }
+            }
+        }
+        this.hosts = value to hosts
+        return hosts
+    }
+
+    /**
+     * A part of the config built by [build], memoized under [key] and handed out as a fresh
+     * copy on every call, so the builder may set tags, proxy settings and the like on it.
+     *
+     * [key] must cover everything [build] reads: bean fingerprints, settings, tags. Entries
+     * are therefore never stale; profile and rule events only drop the ones that can no
+     * longer be hit. A null [key] builds without caching.
+     */
+    fun <T : Any> fragment(key: Any?, type: Class<T>, build: () -> T): T {
+        if (key == null) return build()
+        val cacheKey = type to key
+        val cached = synchronized(this) { fragments[cacheKey] }
+        if (cached != null) return gson.fromJson(cached, type)
+        val loadVersion = fragmentsVersion
+        val built = build()
+        val tree = gson.toJsonTree(built)
+        synchronized(this) {
+            if (fragmentsVersion == loadVersion) fragments[cacheKey] = tree
+        }
+        return built
+    }
+
+    /** [fragment] for outbounds, whose lazy settings need their context restored. */
+    fun outbound(key: Any?, build: () -> OutboundObject): OutboundObject {
+        return fragment(key, OutboundObject::class.java, build).apply { init() }
+    }
+
+    private fun invalidateGroups() = synchronized(this) {
+        groupsVersion++
+        groups = null
+    }
+
+    private fun invalidateRules() = synchronized(this) {
+        rulesVersion++
+        rules = null
+        fragmentsVersion++
+        fragments.clear()
+    }
+
+    private fun invalidateFragments() = synchronized(this) {
+        fragmentsVersion++
+        fragments.clear()
+    }
+
+    override suspend fun groupAdd(group: ProxyGroup) = invalidateGroups()
+    override suspend fun groupUpdated(group: ProxyGroup) = invalidateGroups()
+    override suspend fun groupRemoved(groupId: Long) = invalidateGroups()
+    override suspend fun groupUpdated(groupId: Long) = invalidateGroups()
+
+    override suspend fun onAdd(rule: RuleEntity) = invalidateRules()
+    override suspend fun onUpdated(rule: RuleEntity) = invalidateRules()
+    override suspend fun onRemoved(ruleId: Long) = invalidateRules()
+    override suspend fun onCleared() = invalidateRules()
+
+}
@@ -25,10 +25,8 @@ import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.ByteBufferOutput;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
-import cn.hutool.core.io.IoUtil;
 import cn.hutool.core.util.ArrayUtil;
 import io.nekohasekai.sagernet.database.SubscriptionBean;
 import io.nekohasekai.sagernet.fmt.brook.BrookBean;
@@ -54,37 +52,146 @@ import io.nekohasekai.sagernet.fmt.shadowtls.ShadowTLSBean;
 import io.nekohasekai.sagernet.fmt.v2ray.VLESSBean;
 import io.nekohasekai.sagernet.fmt.v2ray.VMessBean;
 import io.nekohasekai.sagernet.fmt.wireguard.WireGuardBean;
-import io.nekohasekai.sagernet.ktx.KryosKt;
 import io.nekohasekai.sagernet.ktx.Logs;
 
 public class KryoConverters {
 
     private static final byte[] NULL = new byte[0];
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    // buffers grown past this by an unusually large bean (e.g. a custom config) are dropped after use
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Per-thread reusable Kryo buffers, so that loading or saving thousands of profiles
+     * does not allocate a fresh stream and buffer pair for every bean.
+     */
+    private static final class Codec {
+        ByteBufferOutput output = new ByteBufferOutput(INITIAL_BUFFER_SIZE, -1);
+        final ByteBufferInput input = new ByteBufferInput();
+        boolean busy;
+    }
+
+    private static final ThreadLocal<Codec> CODEC = new ThreadLocal<Codec>() {
+        @Override
+        protected Codec initialValue() {
+            return new Codec();
+        }
+    };
+
+    private static Codec acquire() {
+        Codec codec = CODEC.get();
+        if (codec.busy) {
+            // re-entrant call from inside a bean's serializer, use a one-shot codec
+            return new Codec();
+        }
+        codec.busy = true;
+        return codec;
+    }
+
+    private static void release(Codec codec) {
+        if (codec.output.getByteBuffer().capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            codec.output = new ByteBufferOutput(INITIAL_BUFFER_SIZE, -1);
+        }
+        codec.input.setBuffer(EMPTY);
+        codec.busy = false;
+    }
 
     @TypeConverter
     public static byte[] serialize(Serializable bean) {
         if (bean == null) return NULL;
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteBufferOutput buffer = KryosKt.byteBuffer(out);
-        bean.serializeToBuffer(buffer);
-        IoUtil.flush(buffer);
-        IoUtil.close(buffer);
-        return out.toByteArray();
+        Codec codec = acquire();
+        try {
+            ByteBufferOutput buffer = codec.output;
+            buffer.reset();
+            bean.serializeToBuffer(buffer);
+            return buffer.toBytes();
+        } finally {
+            release(codec);
+        }
     }
 
     public static <T extends Serializable> T deserialize(T bean, byte[] bytes) {
         if (bytes == null) return bean;
-        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
-        ByteBufferInput buffer = KryosKt.byteBuffer(input);
+        Codec codec = acquire();
         try {
+            ByteBufferInput buffer = codec.input;
+            buffer.setBuffer(ByteBuffer.wrap(bytes));
             bean.deserializeFromBuffer(buffer);
         } catch (KryoException e) {
             Logs.INSTANCE.w(e);
+        } finally {
+            release(codec);
         }
         bean.initializeDefaultValues();
         return bean;
     }
 
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Hashes the bean content (everything except the name) straight out of the pooled
+     * buffer, so comparing profiles does not allocate a byte array per bean.
+     */
+    static long fingerprint(AbstractBean bean) {
+        Codec codec = acquire();
+        try {
+            ByteBufferOutput buffer = codec.output;
+            buffer.reset();
+            bean.serializeToBuffer(buffer, false);
+            ByteBuffer bytes = buffer.getByteBuffer();
+            int length = buffer.position();
+            long hash = FNV_OFFSET_BASIS;
+            for (int i = 0; i < length; i++) {
+                hash ^= bytes.get(i) & 0xff;
+                hash *= FNV_PRIME;
+            }
+            // fold in the length and finalize so that short inputs spread over all bits
+            hash ^= length;
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        } finally {
+            release(codec);
+        }
+    }
+
+    /**
+     * Compares the content (everything except the name) of two beans byte by byte, only
+     * the first one is copied out of the pooled buffer.
+     */
+    static boolean contentEquals(AbstractBean bean, AbstractBean other) {
+        byte[] content;
+        Codec codec = acquire();
+        try {
+            ByteBufferOutput buffer = codec.output;
+            buffer.reset();
+            bean.serializeToBuffer(buffer, false);
+            content = buffer.toBytes();
+        } finally {
+            release(codec);
+        }
+        codec = acquire();
+        try {
+            ByteBufferOutput buffer = codec.output;
+            buffer.reset();
+            other.serializeToBuffer(buffer, false);
+            if (buffer.position() != content.length) return false;
+            ByteBuffer bytes = buffer.getByteBuffer();
+            for (int i = 0; i < content.length; i++) {
+                if (bytes.get(i) != content[i]) return false;
+            }
+            return true;
+        } finally {
+            release(codec);
+        }
+    }
+
     @TypeConverter
     public static SOCKSBean socksDeserialize(byte[] bytes) {
         if (ArrayUtil.isEmpty(bytes)) return null;
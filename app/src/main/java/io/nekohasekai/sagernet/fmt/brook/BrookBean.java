@@ -188,8 +188,8 @@ public class BrookBean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
-        super.applyFeatureSettings(other);
+    protected void copyFeatureSettings(AbstractBean other) {
+        super.copyFeatureSettings(other);
         if (!(other instanceof BrookBean bean)) return;
         if (insecure) {
             bean.insecure = true;
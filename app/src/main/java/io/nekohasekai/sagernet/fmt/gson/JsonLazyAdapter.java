@@ -43,6 +43,9 @@ public class JsonLazyAdapter<T> extends TypeAdapter<JsonLazyInterface<T>> {
     public void write(JsonWriter out, JsonLazyInterface<T> value) throws IOException {
         if (value == null) {
             out.nullValue();
+        } else if (!value.isInitialized() && value.content != null) {
+            // never read back, write the parsed tree as is instead of binding it first
+            gson.getAdapter(JsonElement.class).write(out, value.content);
         } else {
             gson.getAdapter(value.type.getValue()).write(out, value.getValue());
         }
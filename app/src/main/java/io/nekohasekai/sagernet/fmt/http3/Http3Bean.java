@@ -87,7 +87,7 @@ public class Http3Bean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof Http3Bean bean)) return;
         if (allowInsecure) {
             bean.allowInsecure = true;
@@ -154,7 +154,7 @@ public class HysteriaBean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof HysteriaBean bean)) return;
         if (allowInsecure) {
             bean.allowInsecure = true;
@@ -125,7 +125,7 @@ public class Hysteria2Bean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof Hysteria2Bean bean)) return;
         if (allowInsecure) {
             bean.allowInsecure = true;
@@ -67,7 +67,7 @@ public class JuicityBean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof JuicityBean bean)) return;
         if (allowInsecure) {
             bean.allowInsecure = true;
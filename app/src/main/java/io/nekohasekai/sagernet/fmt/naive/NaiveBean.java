@@ -110,7 +110,7 @@ public class NaiveBean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof NaiveBean bean)) return;
         bean.noPostQuantum = noPostQuantum;
     }
@@ -81,8 +81,8 @@ public class ShadowsocksBean extends StandardV2RayBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
-        super.applyFeatureSettings(other);
+    protected void copyFeatureSettings(AbstractBean other) {
+        super.copyFeatureSettings(other);
         if (!(other instanceof ShadowsocksBean bean)) return;
         bean.experimentReducedIvHeadEntropy = experimentReducedIvHeadEntropy;
     }
@@ -121,7 +121,7 @@ public class TrojanGoBean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof TrojanGoBean bean)) return;
         if (allowInsecure) {
             bean.allowInsecure = true;
@@ -98,7 +98,7 @@ public class TuicBean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof TuicBean bean)) return;
         bean.caText = caText;
         bean.reduceRTT = reduceRTT;
@@ -105,7 +105,7 @@ public class Tuic5Bean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof Tuic5Bean bean)) return;
         bean.caText = caText;
         bean.zeroRTTHandshake = zeroRTTHandshake;
@@ -443,7 +443,7 @@ public abstract class StandardV2RayBean extends AbstractBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
+    protected void copyFeatureSettings(AbstractBean other) {
         if (!(other instanceof StandardV2RayBean bean)) return;
         if (allowInsecure) {
             bean.allowInsecure = true;
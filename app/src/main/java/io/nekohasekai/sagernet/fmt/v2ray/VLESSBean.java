@@ -40,8 +40,8 @@ public class VLESSBean extends StandardV2RayBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
-        super.applyFeatureSettings(other);
+    protected void copyFeatureSettings(AbstractBean other) {
+        super.copyFeatureSettings(other);
         if (!(other instanceof VLESSBean bean)) return;
         if (flow.equals("xtls-rprx-vision-udp443") && bean.flow.equals("xtls-rprx-vision")) {
             bean.flow = flow;
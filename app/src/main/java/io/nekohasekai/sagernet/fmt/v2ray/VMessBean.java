@@ -44,8 +44,8 @@ public class VMessBean extends StandardV2RayBean {
     }
 
     @Override
-    public void applyFeatureSettings(AbstractBean other) {
-        super.applyFeatureSettings(other);
+    protected void copyFeatureSettings(AbstractBean other) {
+        super.copyFeatureSettings(other);
         if (!(other instanceof VMessBean bean)) return;
         bean.experimentalAuthenticatedLength = experimentalAuthenticatedLength;
         bean.experimentalNoTerminationSignal = experimentalNoTerminationSignal;
@@ -19,6 +19,7 @@
 
 package io.nekohasekai.sagernet.group
 
+import android.os.SystemClock
 import io.nekohasekai.sagernet.IPv6Mode
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.SagerNet
@@ -26,6 +27,7 @@ import io.nekohasekai.sagernet.SubscriptionType
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.database.GroupManager
 import io.nekohasekai.sagernet.database.ProxyGroup
+import io.nekohasekai.sagernet.database.SagerDatabase
 import io.nekohasekai.sagernet.database.SubscriptionBean
 import io.nekohasekai.sagernet.fmt.AbstractBean
 import io.nekohasekai.sagernet.fmt.brook.BrookBean
@@ -39,11 +41,14 @@ import io.nekohasekai.sagernet.fmt.tuic5.Tuic5Bean
 import io.nekohasekai.sagernet.fmt.v2ray.StandardV2RayBean
 import io.nekohasekai.sagernet.ktx.*
 import kotlinx.coroutines.*
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import libcore.Libcore
 import java.net.Inet4Address
 import java.net.InetAddress
 import java.util.*
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 @Suppress("EXPERIMENTAL_API_USAGE")
 abstract class GroupUpdater {
@@ -91,62 +96,89 @@ abstract class GroupUpdater {
             "https://doh.pub/dns-query" // TODO: do not hardcode this
         }
 
-        val client = Libcore.newHttpClient().apply {
-            modernTLS()
-            keepAlive()
-            if (SagerNet.started && DataStore.startedProfile > 0) {
-                useSocks5(DataStore.socksPort)
-            }
-        }
-
-        Logs.d("Using doh url $dohHttpUrl")
-
         val ipv6Mode = DataStore.ipv6Mode
-        val lookupPool = newFixedThreadPoolContext(5, "DNS Lookup")
-        val lookupJobs = mutableListOf<Job>()
-        val progress = Progress(profiles.size)
+        val ipv6First = ipv6Mode >= IPv6Mode.PREFER
+        val hosts = profiles.filterNot { it.serverAddress.isIpAddress() }
+            .groupBy { it.serverAddress }
+        if (hosts.isEmpty()) return
+
+        val progress = Progress(hosts.values.sumOf { it.size })
         if (groupId != null) {
             GroupUpdater.progress[groupId] = progress
             GroupManager.postReload(groupId)
         }
-        val ipv6First = ipv6Mode >= IPv6Mode.PREFER
+        val lastReload = AtomicLong(SystemClock.elapsedRealtime())
+        suspend fun advance(count: Int) {
+            synchronized(progress) { progress.progress += count }
+            if (groupId == null) return
+            val now = SystemClock.elapsedRealtime()
+            val last = lastReload.get()
+            if (now - last >= RELOAD_INTERVAL && lastReload.compareAndSet(last, now)) {
+                GroupManager.postReload(groupId)
+            }
+        }
 
-        for (profile in profiles) {
-            if (profile.serverAddress.isIpAddress()) continue
+        val pending = ArrayList<String>()
+        for ((host, beans) in hosts) {
+            val addresses = cachedAddresses("$dohHttpUrl/$ipv6Mode/$host")
+            if (addresses == null) {
+                pending.add(host)
+                continue
+            }
+            for (bean in beans) rewriteAddress(bean, addresses, ipv6First)
+            advance(beans.size)
+        }
 
-            lookupJobs.add(GlobalScope.launch(lookupPool) {
-                try {
-                    val message = Libcore.encodeDomainNameSystemQuery(
-                        1, profile.serverAddress, ipv6Mode
-                    )
-                    val response = client.newRequest().apply {
-                        setMethod("POST")
-                        setURL(dohHttpUrl)
-                        setContent(message)
-                        setHeader("Accept", "application/dns-message")
-                        setHeader("Content-Type", "application/dns-message")
-                    }.execute()
-
-                    val results = Libcore.decodeContentDomainNameSystemResponse(response.content)
-                        .trimStart()
-                        .split(" ")
-                        .map { InetAddress.getByName(it) }
-
-                    if (results.isEmpty()) error("empty response")
-                    rewriteAddress(profile, results, ipv6First)
-                } catch (e: Exception) {
-                    Logs.d("Lookup ${profile.serverAddress} failed: ${e.readableMessage}",e)
+        Logs.d("Resolving ${pending.size} of ${hosts.size} hosts using doh url $dohHttpUrl")
+
+        if (pending.isNotEmpty()) {
+            val client = Libcore.newHttpClient().apply {
+                modernTLS()
+                keepAlive()
+                if (SagerNet.started && DataStore.startedProfile > 0) {
+                    useSocks5(DataStore.socksPort)
                 }
-                if (groupId != null) {
-                    progress.progress++
-                    GroupManager.postReload(groupId)
+            }
+            val lookups = Semaphore(LOOKUP_CONCURRENCY)
+            try {
+                coroutineScope {
+                    for (host in pending) launch(Dispatchers.IO) {
+                        val beans = hosts.getValue(host)
+                        lookups.withPermit {
+                            try {
+                                val message = Libcore.encodeDomainNameSystemQuery(
+                                    1, host, ipv6Mode
+                                )
+                                val response = client.newRequest().apply {
+                                    setMethod("POST")
+                                    setURL(dohHttpUrl)
+                                    setContent(message)
+                                    setHeader("Accept", "application/dns-message")
+                                    setHeader("Content-Type", "application/dns-message")
+                                }.execute()
+                                val content = response.content
+
+                                val results = Libcore.decodeContentDomainNameSystemResponse(content)
+                                    .trimStart()
+                                    .split(" ")
+                                    .map { InetAddress.getByName(it) }
+
+                                if (results.isEmpty()) error("empty response")
+                                cacheAddresses("$dohHttpUrl/$ipv6Mode/$host", results, dnsTtl(content))
+                                for (bean in beans) rewriteAddress(bean, results, ipv6First)
+                            } catch (e: Exception) {
+                                Logs.d("Lookup $host failed: ${e.readableMessage}", e)
+                            }
+                        }
+                        advance(beans.size)
+                    }
                 }
-            })
+            } finally {
+                client.close()
+            }
         }
 
-        client.close()
-        lookupJobs.joinAll()
-        lookupPool.close()
+        if (groupId != null) GroupManager.postReload(groupId)
     }
 
     protected fun rewriteAddress(
@@ -188,11 +220,41 @@ abstract class GroupUpdater {
             }
 
             bean.serverAddress = address
+            bean.invalidateContentFingerprint()
         }
     }
 
     companion object {
 
+        private const val LOOKUP_CONCURRENCY = 8
+        private const val RELOAD_INTERVAL = 500L
+        private const val MAX_CACHED_HOSTS = 1024
+
+        private class CachedAddresses(val addresses: List<InetAddress>, val expiresAt: Long)
+
+        /** DoH answers of earlier updates, keyed by server, IPv6 mode and host. */
+        private val addressCache = object : LinkedHashMap<String, CachedAddresses>(64, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, CachedAddresses>?): Boolean {
+                return size > MAX_CACHED_HOSTS
+            }
+        }
+
+        private fun cachedAddresses(key: String): List<InetAddress>? {
+            synchronized(addressCache) {
+                val cached = addressCache[key] ?: return null
+                if (cached.expiresAt > SystemClock.elapsedRealtime()) return cached.addresses
+                addressCache.remove(key)
+                return null
+            }
+        }
+
+        private fun cacheAddresses(key: String, addresses: List<InetAddress>, ttl: Long) {
+            if (ttl <= 0) return
+            synchronized(addressCache) {
+                addressCache[key] = CachedAddresses(addresses, SystemClock.elapsedRealtime() + ttl)
+            }
+        }
+
         val updating = Collections.synchronizedSet<Long>(mutableSetOf())
         val progress = Collections.synchronizedMap<Long, Progress>(mutableMapOf())
 
@@ -241,6 +303,7 @@ abstract class GroupUpdater {
         suspend fun finishUpdate(proxyGroup: ProxyGroup) {
             updating.remove(proxyGroup.id)
             progress.remove(proxyGroup.id)
+            SagerDatabase.latencyDao.prune()
             GroupManager.postUpdate(proxyGroup)
         }
 
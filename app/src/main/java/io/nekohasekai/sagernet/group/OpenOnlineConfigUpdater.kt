@@ -199,6 +199,7 @@ object OpenOnlineConfigUpdater : GroupUpdater() {
         Logs.d("toReplace profiles: ${toReplace.size}")
 
         val toUpdate = ArrayList<ProxyEntity>()
+        val toInsert = ArrayList<ProxyEntity>()
         val added = mutableListOf<String>()
         val updated = mutableMapOf<String, String>()
         val deleted = toDelete.map { it.displayName() }
@@ -233,7 +234,7 @@ object OpenOnlineConfigUpdater : GroupUpdater() {
                 }
             } else {
                 changed++
-                SagerDatabase.proxyDao.addProxy(ProxyEntity(
+                toInsert.add(ProxyEntity(
                     groupId = proxyGroup.id, userOrder = userOrder
                 ).apply {
                     putBean(bean)
@@ -244,12 +245,8 @@ object OpenOnlineConfigUpdater : GroupUpdater() {
             userOrder++
         }
 
-        SagerDatabase.proxyDao.updateProxy(toUpdate).also {
-            Logs.d("Updated profiles: $it")
-        }
-
-        SagerDatabase.proxyDao.deleteProxy(toDelete).also {
-            Logs.d("Deleted profiles: $it")
+        SagerDatabase.proxyDao.applyUpdate(toInsert, toUpdate, toDelete).also {
+            Logs.d("Applied profiles: $it (${toInsert.size} inserted, ${toUpdate.size} updated, ${toDelete.size} deleted)")
         }
 
         val existCount = SagerDatabase.proxyDao.countByGroup(proxyGroup.id).toInt()
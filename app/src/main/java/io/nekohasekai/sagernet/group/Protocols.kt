@@ -8,12 +8,12 @@ object Protocols {
         val bean: AbstractBean, val type: String
     ) {
 
-        fun hash(): String {
-            return bean.serverAddress + bean.serverPort + type
-        }
+        private val address: String? = bean.serverAddress
+        private val port: Int? = bean.serverPort
+        private val hash = (type.hashCode() * 31 + address.hashCode()) * 31 + port.hashCode()
 
         override fun hashCode(): Int {
-            return hash().toByteArray().contentHashCode()
+            return hash
         }
 
         override fun equals(other: Any?): Boolean {
@@ -22,9 +22,71 @@ object Protocols {
 
             other as Deduplication
 
-            return hash() == other.hash()
+            return hash == other.hash && port == other.port && address == other.address && type == other.type
+        }
+
+    }
+
+    class DeduplicationResult(
+        val proxies: List<AbstractBean>, val duplicate: List<String>
+    )
+
+    /**
+     * Keep the first profile of every (type, address, port), reporting the dropped ones as
+     * `name (index)` where index is the position of the kept profile.
+     */
+    fun deduplicate(
+        proxies: List<AbstractBean>, type: (AbstractBean) -> String
+    ): DeduplicationResult {
+        val indexes = HashMap<Deduplication, Int>(proxies.size * 2)
+        val unique = ArrayList<AbstractBean>(proxies.size)
+        val firstNames = ArrayList<String?>(proxies.size)
+        val duplicate = ArrayList<String>()
+        for (bean in proxies) {
+            val key = Deduplication(bean, type(bean))
+            val index = indexes[key]
+            if (index == null) {
+                indexes[key] = unique.size
+                unique.add(bean)
+                firstNames.add(bean.displayName())
+                continue
+            }
+            val firstName = firstNames[index]
+            if (firstName != null) {
+                val name = firstName.replace(" ($index)", "")
+                if (name.isNotEmpty()) {
+                    duplicate.add("$name ($index)")
+                    firstNames[index] = null
+                }
+            }
+            duplicate.add(bean.displayName() + " ($index)")
         }
+        return DeduplicationResult(unique, duplicate)
+    }
 
+    /**
+     * Rename profiles sharing a display name to `name (1)`, `name (2)`, ... in order.
+     *
+     * The candidate sequence of a name only depends on the name itself and taken names are
+     * never released, so the last assigned candidate is remembered to resume the search.
+     */
+    fun renameDuplicates(proxies: List<AbstractBean>): List<AbstractBean> {
+        val proxiesMap = LinkedHashMap<String, AbstractBean>(proxies.size * 2)
+        val lastCandidates = HashMap<String, Pair<Int, String>>()
+        for (proxy in proxies) {
+            val displayName = proxy.displayName()
+            var (index, name) = lastCandidates[displayName] ?: (0 to displayName)
+            if (proxiesMap.containsKey(name)) {
+                while (proxiesMap.containsKey(name)) {
+                    index++
+                    name = name.replace(" (${index - 1})", "") + " ($index)"
+                }
+                proxy.name = name
+            }
+            lastCandidates[displayName] = index to name
+            proxiesMap[proxy.displayName()] = proxy
+        }
+        return proxiesMap.values.toList()
     }
 
-}
\ No newline at end of file
+}
@@ -20,9 +20,14 @@
 package io.nekohasekai.sagernet.group
 
 import android.net.Uri
+import android.util.Base64InputStream
 import cn.hutool.core.codec.Base64
 import cn.hutool.json.*
 import com.github.shadowsocks.plugin.PluginOptions
+import com.google.gson.JsonElement
+import com.google.gson.JsonParseException
+import com.google.gson.JsonParser
+import com.google.gson.stream.JsonReader
 import io.nekohasekai.sagernet.R
 import io.nekohasekai.sagernet.SagerNet
 import io.nekohasekai.sagernet.database.*
@@ -47,10 +52,17 @@ import io.nekohasekai.sagernet.fmt.wireguard.WireGuardBean
 import io.nekohasekai.sagernet.ktx.*
 import libcore.Libcore
 import org.ini4j.Ini
+import org.yaml.snakeyaml.DumperOptions
 import org.yaml.snakeyaml.TypeDescription
 import org.yaml.snakeyaml.Yaml
 import org.yaml.snakeyaml.error.YAMLException
+import org.yaml.snakeyaml.events.*
+import java.io.File
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.io.Reader
 import java.io.StringReader
+import java.io.StringWriter
 import kotlin.time.Duration
 import kotlin.time.DurationUnit
 
@@ -67,12 +79,10 @@ object RawUpdater : GroupUpdater() {
         val link = subscription.link
         var proxies: List<AbstractBean>
         if (link.startsWith("content://")) {
-            val contentText = app.contentResolver.openInputStream(Uri.parse(link))
-                ?.bufferedReader()
-                ?.readText()
-
-            proxies = contentText?.let { parseRaw(contentText) }
-                ?: error(app.getString(R.string.no_proxies_found_in_subscription))
+            val missing = app.getString(R.string.no_proxies_found_in_subscription)
+            proxies = parseRaw {
+                app.contentResolver.openInputStream(Uri.parse(link)) ?: error(missing)
+            } ?: error(missing)
         } else {
 
             val response = Libcore.newHttpClient().apply {
@@ -88,8 +98,15 @@ object RawUpdater : GroupUpdater() {
                 }
             }.execute()
 
-            proxies = parseRaw(response.contentString)
-                ?: error(app.getString(R.string.no_proxies_found))
+            // spool the body to disk instead of copying it onto the heap as one string
+            val contentFile = File.createTempFile("subscription", ".tmp", app.cacheDir)
+            try {
+                response.writeTo(contentFile.canonicalPath)
+                proxies = parseRaw { contentFile.inputStream() }
+                    ?: error(app.getString(R.string.no_proxies_found))
+            } finally {
+                contentFile.delete()
+            }
 
             val subscriptionUserinfo = response.getHeader("Subscription-Userinfo")
             if (subscriptionUserinfo.isNotEmpty()) {
@@ -137,20 +154,7 @@ object RawUpdater : GroupUpdater() {
             proxies = proxies.filter { !pattern.containsMatchIn(it.name) }
         }
 
-        val proxiesMap = LinkedHashMap<String, AbstractBean>()
-        for (proxy in proxies) {
-            var index = 0
-            var name = proxy.displayName()
-            while (proxiesMap.containsKey(name)) {
-                println("Exists name: $name")
-                index++
-                name = name.replace(" (${index - 1})", "")
-                name = "$name ($index)"
-                proxy.name = name
-            }
-            proxiesMap[proxy.displayName()] = proxy
-        }
-        proxies = proxiesMap.values.toList()
+        proxies = Protocols.renameDuplicates(proxies)
 
         if (subscription.forceResolve) forceResolve(proxies, proxyGroup.id)
 
@@ -158,26 +162,9 @@ object RawUpdater : GroupUpdater() {
         val duplicate = ArrayList<String>()
         if (subscription.deduplication) {
             Logs.d("Before deduplication: ${proxies.size}")
-            val uniqueProxies = LinkedHashSet<Protocols.Deduplication>()
-            val uniqueNames = HashMap<Protocols.Deduplication, String>()
-            for (_proxy in proxies) {
-                val proxy = Protocols.Deduplication(_proxy, _proxy.javaClass.toString())
-                if (!uniqueProxies.add(proxy)) {
-                    val index = uniqueProxies.indexOf(proxy)
-                    if (uniqueNames.containsKey(proxy)) {
-                        val name = uniqueNames[proxy]!!.replace(" ($index)", "")
-                        if (name.isNotEmpty()) {
-                            duplicate.add("$name ($index)")
-                            uniqueNames[proxy] = ""
-                        }
-                    }
-                    duplicate.add(_proxy.displayName() + " ($index)")
-                } else {
-                    uniqueNames[proxy] = _proxy.displayName()
-                }
-            }
-            uniqueProxies.retainAll(uniqueNames.keys)
-            proxies = uniqueProxies.toList().map { it.bean }
+            val result = Protocols.deduplicate(proxies) { it.javaClass.toString() }
+            duplicate.addAll(result.duplicate)
+            proxies = result.proxies
         }
 
         Logs.d("New profiles: ${proxies.size}")
@@ -201,6 +188,7 @@ object RawUpdater : GroupUpdater() {
         Logs.d("toReplace profiles: ${toReplace.size}")
 
         val toUpdate = ArrayList<ProxyEntity>()
+        val toInsert = ArrayList<ProxyEntity>()
         val added = mutableListOf<String>()
         val updated = mutableMapOf<String, String>()
         val deleted = toDelete.map { it.displayName() }
@@ -234,7 +222,7 @@ object RawUpdater : GroupUpdater() {
                 }
             } else {
                 changed++
-                SagerDatabase.proxyDao.addProxy(ProxyEntity(
+                toInsert.add(ProxyEntity(
                     groupId = proxyGroup.id, userOrder = userOrder
                 ).apply {
                     putBean(bean)
@@ -245,12 +233,8 @@ object RawUpdater : GroupUpdater() {
             userOrder++
         }
 
-        SagerDatabase.proxyDao.updateProxy(toUpdate).also {
-            Logs.d("Updated profiles: $it")
-        }
-
-        SagerDatabase.proxyDao.deleteProxy(toDelete).also {
-            Logs.d("Deleted profiles: $it")
+        SagerDatabase.proxyDao.applyUpdate(toInsert, toUpdate, toDelete).also {
+            Logs.d("Applied profiles: $it (${toInsert.size} inserted, ${toUpdate.size} updated, ${toDelete.size} deleted)")
         }
 
         val existCount = SagerDatabase.proxyDao.countByGroup(proxyGroup.id).toInt()
@@ -268,17 +252,257 @@ object RawUpdater : GroupUpdater() {
         )
     }
 
+    enum class RawFormat {
+        LINKS, BASE64, OTHER
+    }
+
+    private const val SNIFF_SIZE = 4096
+    private val linkPrefix = Regex("^[A-Za-z][A-Za-z0-9+.\\-]*://")
+
+    /**
+     * Guess the format from the head of the content. Share links and base64 encoded share
+     * links can be parsed line by line, everything else needs the whole document.
+     */
+    fun sniffFormat(head: CharSequence): RawFormat {
+        val firstLine = head.lineSequence().map { it.trim() }.firstOrNull { it.isNotEmpty() }
+            ?.removePrefix("\uFEFF") ?: return RawFormat.OTHER
+        if (linkPrefix.containsMatchIn(firstLine)) return RawFormat.LINKS
+        if (head.all { it.isBase64Char() || it.isWhitespace() }) return RawFormat.BASE64
+        return RawFormat.OTHER
+    }
+
+    private fun Char.isBase64Char() = this in 'A'..'Z' || this in 'a'..'z' || this in '0'..'9' ||
+            this == '+' || this == '/' || this == '-' || this == '_' || this == '='
+
+    private fun readHead(input: InputStream): String {
+        val head = ByteArray(SNIFF_SIZE)
+        var length = 0
+        while (length < head.size) {
+            val read = input.read(head, length, head.size - length)
+            if (read < 0) break
+            length += read
+        }
+        return String(head, 0, length, Charsets.UTF_8)
+    }
+
+    /**
+     * Streaming variant of [parseRaw]. [open] is called again whenever a parser has to start
+     * over, only formats which cannot be parsed incrementally are read into memory as a whole.
+     */
+    suspend fun parseRaw(open: () -> InputStream): List<AbstractBean>? {
+        val head = open().use { readHead(it) }
+        when (sniffFormat(head)) {
+            RawFormat.LINKS -> return open().bufferedReader().use {
+                parseProxies(it)
+            }.takeIf { it.isNotEmpty() }
+            RawFormat.BASE64 -> {
+                try {
+                    open().use {
+                        parseProxies(
+                            Base64InputStream(UrlSafeBase64InputStream(it), android.util.Base64.URL_SAFE)
+                                .bufferedReader()
+                        )
+                    }.takeIf { it.isNotEmpty() }?.let { return it }
+                } catch (e: SubscriptionFoundException) {
+                    throw e
+                } catch (e: Exception) {
+                    Logs.w(e)
+                }
+                // looked like base64 but wasn't, read it as plain share links
+                return open().bufferedReader().use { parseProxies(it) }.takeIf { it.isNotEmpty() }
+            }
+            RawFormat.OTHER -> {}
+        }
+
+        val start = head.trimStart('\uFEFF', ' ', '\t', '\r', '\n').firstOrNull()
+        val isJSON = start == '{' || start == '['
+        val isWireGuard = head.contains("[Interface]")
+        if (isWireGuard) {
+            try {
+                open().bufferedReader().use { parseWireGuard(it) }.takeIf { it.isNotEmpty() }
+                    ?.let { return it }
+            } catch (e: Exception) {
+                Logs.w(e)
+            }
+        } else if (isJSON) {
+            try {
+                val json = open().bufferedReader().use { readJSON(it) }
+                // Clash documents in JSON syntax go through the Clash parsers below
+                if (json != null && !(json is JSONObject && json.containsKey("proxies"))) {
+                    return parseJSON(json)
+                }
+            } catch (e: JsonParseException) {
+                Logs.w(e)
+            } catch (e: JSONException) {
+                Logs.w(e)
+            }
+        }
+        if (isJSON || isWireGuard) {
+            // not understood while streaming, let the text parser try everything in order
+            return parseRaw(open().bufferedReader().use { it.readText() })
+        }
+
+        // Mihomo (f.k.a. Clash.Meta), Clash
+        var loadDocument = false
+        try {
+            open().bufferedReader().use { parseClashStream(it) }?.let { return it }
+        } catch (e: YAMLException) {
+            Logs.w(e)
+            loadDocument = true
+        }
+        return parseDocument(open().bufferedReader().use { it.readText() }, loadDocument)
+    }
+
+    /**
+     * Maps the standard base64 alphabet and stray spaces onto the URL safe one and drops
+     * padding, matching [decodeBase64UrlSafe].
+     */
+    private class UrlSafeBase64InputStream(input: InputStream) : FilterInputStream(input) {
+
+        override fun read(): Int {
+            while (true) {
+                val b = super.read()
+                if (b == '='.code) continue
+                return map(b)
+            }
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            while (true) {
+                val read = super.read(b, off, len)
+                if (read <= 0) return read
+                var count = 0
+                for (i in off until off + read) {
+                    if (b[i] == '='.code.toByte()) continue
+                    b[off + count++] = map(b[i].toInt()).toByte()
+                }
+                if (count > 0) return count
+            }
+        }
+
+        private fun map(b: Int) = when (b) {
+            ' '.code, '+'.code -> '-'.code
+            '/'.code -> '_'.code
+            else -> b
+        }
+
+    }
+
+    private const val CLASH_CHUNK_SIZE = 64
+
+    private fun newClashYaml() = Yaml(DumperOptions().apply {
+        splitLines = false
+    }).apply {
+        addTypeDescription(TypeDescription(String::class.java, "str"))
+    }
+
+    /**
+     * Extract the top level `proxies` sequence from the event stream without constructing the
+     * rest of the document, and stop reading once it ends. Every entry is re-emitted on its own
+     * and loaded with the same [Yaml] settings, so values get the exact types a full load would
+     * give them; entries are converted on the default dispatcher in document order.
+     *
+     * Returns null when there is no `proxies` sequence. Entries referring to anchors outside of
+     * themselves fail to load, in which case the caller falls back to loading the whole document.
+     */
     @Suppress("UNCHECKED_CAST")
-    fun parseRaw(text: String): List<AbstractBean>? {
+    suspend fun parseClashStream(reader: Reader): List<AbstractBean>? {
+        val events = newClashYaml().parse(reader).iterator()
 
-        val proxies = mutableListOf<AbstractBean>()
+        fun next(): Event = if (events.hasNext()) events.next() else throw YAMLException("Unexpected end of stream")
+
+        // collect the events of the node starting with first
+        fun node(first: Event, into: MutableList<Event>?) {
+            into?.add(first)
+            if (first !is CollectionStartEvent) return
+            var depth = 1
+            while (depth > 0) {
+                val event = next()
+                into?.add(event)
+                if (event is CollectionStartEvent) depth++
+                if (event is CollectionEndEvent) depth--
+            }
+        }
+
+        if (next() !is StreamStartEvent || next() !is DocumentStartEvent) return null
+        if (next() !is MappingStartEvent) return null
+
+        while (true) {
+            val key = next()
+            if (key is MappingEndEvent) return null
+            node(key, null)
+            val value = next()
+            if ((key as? ScalarEvent)?.value != "proxies" || value !is SequenceStartEvent) {
+                node(value, null)
+                continue
+            }
+            return generateSequence {
+                when (val event = next()) {
+                    is SequenceEndEvent -> null
+                    else -> ArrayList<Event>().also { node(event, it) }
+                }
+            }.mapChunksOrdered(CLASH_CHUNK_SIZE) { entries ->
+                val yaml = newClashYaml()
+                val writer = StringWriter()
+                entries.flatMap { entry ->
+                    writer.buffer.setLength(0)
+                    yaml.emit(listOf(
+                        StreamStartEvent(null, null),
+                        DocumentStartEvent(null, null, false, null, emptyMap()),
+                    ) + entry + listOf(
+                        DocumentEndEvent(null, null, false),
+                        StreamEndEvent(null, null),
+                    ), writer)
+                    val map = yaml.load<Any?>(writer.toString()) as? Map<String, Any?>
+                    map?.let { parseClashProxies(it) } ?: emptyList()
+                }.onEach { it.initializeDefaultValues() }
+            }
+        }
+    }
+
+    suspend fun parseRaw(text: String): List<AbstractBean>? {
+
+        when (sniffFormat(text.subSequence(0, minOf(text.length, SNIFF_SIZE)))) {
+            RawFormat.LINKS -> return parseProxies(text).takeIf { it.isNotEmpty() }
+            RawFormat.BASE64 -> {
+                try {
+                    parseProxies(text.decodeBase64UrlSafe()).takeIf { it.isNotEmpty() }
+                        ?.let { return it }
+                } catch (e: SubscriptionFoundException) {
+                    throw e
+                } catch (e: Exception) {
+                    Logs.w(e)
+                }
+                // looked like base64 but wasn't, read it as plain share links
+                return parseProxies(text).takeIf { it.isNotEmpty() }
+            }
+            RawFormat.OTHER -> {}
+        }
 
+        var loadDocument = false
         if (text.contains("proxies")) {
+            // Mihomo (f.k.a. Clash.Meta), Clash
             try {
-                // Mihomo (f.k.a. Clash.Meta), Clash
-                val yaml = Yaml().apply {
-                    addTypeDescription(TypeDescription(String::class.java, "str"))
-                }.loadAs(text, Map::class.java)["proxies"] as? List<Map<String, Any?>>
+                parseClashStream(StringReader(text))?.let { return it }
+            } catch (e: YAMLException) {
+                Logs.w(e)
+                loadDocument = true
+            }
+        }
+        return parseDocument(text, loadDocument)
+    }
+
+    /**
+     * Parse a document which is not made of share links, [loadClash] loads it as a whole when
+     * streaming its Clash proxies failed.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private suspend fun parseDocument(text: String, loadClash: Boolean): List<AbstractBean>? {
+        val proxies = mutableListOf<AbstractBean>()
+
+        if (loadClash) {
+            try {
+                val yaml = newClashYaml().loadAs(text, Map::class.java)["proxies"] as? List<Map<String, Any?>>
                 if (yaml != null) {
                     for (map in yaml) {
                         val p = parseClashProxies(map)
@@ -333,7 +557,11 @@ object RawUpdater : GroupUpdater() {
     }
 
     fun parseWireGuard(conf: String): List<WireGuardBean> {
-        val ini = Ini(StringReader(conf))
+        return parseWireGuard(StringReader(conf))
+    }
+
+    fun parseWireGuard(reader: Reader): List<WireGuardBean> {
+        val ini = Ini(reader)
         val iface = ini["Interface"] ?: error("Missing 'Interface' selection")
         val bean = WireGuardBean().applyDefaultValues()
         val localAddresses = iface.getAll("Address")
@@ -361,6 +589,29 @@ object RawUpdater : GroupUpdater() {
         return beans
     }
 
+    /**
+     * Read a JSON document, comments allowed, straight into the tree that
+     * `JSONUtil.parse(Libcore.stripJSON(text))` would build from the whole text.
+     */
+    private fun readJSON(reader: Reader): JSON? {
+        return JsonParser.parseReader(JsonReader(reader)).toHutool() as? JSON
+    }
+
+    private fun JsonElement.toHutool(): Any? = when {
+        isJsonObject -> JSONObject().also { json ->
+            for ((key, value) in asJsonObject.entrySet()) json.set(key, value.toHutool())
+        }
+        isJsonArray -> JSONArray().also { json ->
+            for (value in asJsonArray) json.add(value.toHutool())
+        }
+        isJsonNull -> null
+        asJsonPrimitive.isBoolean -> asBoolean
+        asJsonPrimitive.isNumber -> asString.let {
+            it.toIntOrNull() ?: it.toLongOrNull() ?: it.toBigDecimalOrNull() ?: it
+        }
+        else -> asString
+    }
+
     fun parseJSON(json: JSON): List<AbstractBean> {
         val proxies = ArrayList<AbstractBean>()
 
@@ -45,3 +45,33 @@ fun runOnMainDispatcher(block: suspend CoroutineScope.() -> Unit) =
 suspend fun <T> onMainDispatcher(block: suspend CoroutineScope.() -> T) =
     withContext(Dispatchers.Main.immediate, block = block)
 
+
+/**
+ * Transform a sequence chunk by chunk, keeping input order. A sequence that fits in a single
+ * chunk is transformed in the calling coroutine, longer ones on [Dispatchers.Default] with a
+ * bounded window of chunks in flight. Failures are rethrown in input order.
+ */
+suspend fun <T, R> Sequence<T>.mapChunksOrdered(
+    chunkSize: Int, transform: (List<T>) -> List<R>
+): List<R> = coroutineScope {
+    val results = ArrayList<R>()
+    val window = Runtime.getRuntime().availableProcessors().coerceAtLeast(2) * 2
+    val pending = ArrayDeque<Deferred<Result<List<R>>>>()
+    var parallel = false
+
+    val iterator = chunked(chunkSize).iterator()
+    while (iterator.hasNext()) {
+        val chunk = iterator.next()
+        if (!parallel && !iterator.hasNext()) return@coroutineScope transform(chunk)
+        parallel = true
+        // failures are carried as results so that a later chunk can't cancel an earlier one
+        pending.addLast(async(Dispatchers.Default) { runCatching { transform(chunk) } })
+        while (pending.size > window) {
+            results.addAll(pending.removeFirst().await().getOrThrow())
+        }
+    }
+    while (pending.isNotEmpty()) {
+        results.addAll(pending.removeFirst().await().getOrThrow())
+    }
+    results
+}
@@ -0,0 +1,134 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.ktx
+
+/** Used for negative answers without an SOA record. */
+private const val DNS_NEGATIVE_TTL = 10_000L
+private const val DNS_MAX_TTL = 3600_000L
+
+private const val TYPE_OPT = 41
+private const val TYPE_SOA = 6
+
+private fun ByteArray.u16(offset: Int) =
+    (this[offset].toInt() and 0xff shl 8) or (this[offset + 1].toInt() and 0xff)
+
+private fun ByteArray.u32(offset: Int) = (u16(offset).toLong() shl 16) or u16(offset + 2).toLong()
+
+/** Offset after the (possibly compressed) name at [offset], or -1 if it is truncated. */
+private fun ByteArray.skipName(offset: Int): Int {
+    var position = offset
+    while (position < size) {
+        val length = this[position].toInt() and 0xff
+        when {
+            length == 0 -> return position + 1
+            (length and 0xc0) == 0xc0 -> return if (position + 2 <= size) position + 2 else -1
+            else -> position += length + 1
+        }
+    }
+    return -1
+}
+
+/**
+ * Visit every record after the question section with its type and the offset of its TTL,
+ * returning false if the message is truncated.
+ */
+private inline fun ByteArray.forEachRecord(action: (type: Int, ttlOffset: Int) -> Unit): Boolean {
+    if (size < 12 || u16(4) != 1) return false
+    var position = skipName(12)
+    if (position < 0 || position + 4 > size) return false
+    position += 4
+    val records = u16(6) + u16(8) + u16(10)
+    repeat(records) {
+        position = skipName(position)
+        if (position < 0 || position + 10 > size) return false
+        action(u16(position), position + 4)
+        position += 10 + u16(position + 8)
+        if (position > size) return false
+    }
+    return true
+}
+
+/**
+ * The query without its ID and with the name lowercased,
+ * or null if it does not carry exactly one question.
+ */
+fun dnsCacheKey(message: ByteArray): String? {
+    if (message.size < 12 || message.u16(4) != 1) return null
+    val nameEnd = message.skipName(12)
+    if (nameEnd < 0 || nameEnd + 4 > message.size) return null
+    val key = CharArray(message.size - 2)
+    for (index in 2 until message.size) {
+        var char = (message[index].toInt() and 0xff).toChar()
+        if (index < nameEnd && char in 'A'..'Z') char += 'a' - 'A'
+        key[index - 2] = char
+    }
+    return String(key)
+}
+
+/**
+ * Time to live of [answer] in milliseconds: the lowest record TTL for answers, the SOA
+ * minimum for NXDOMAIN and empty answers, and 0 for failures which are not cached.
+ */
+fun dnsTtl(answer: ByteArray): Long {
+    if (answer.size < 12 || (answer[2].toInt() and 0x02) != 0) return 0L
+    val rcode = answer[3].toInt() and 0x0f
+    if (rcode != 0 && rcode != 3) return 0L
+    val answers = answer.u16(6)
+    var ttl = Long.MAX_VALUE
+    var soa = Long.MAX_VALUE
+    var index = 0
+    val complete = answer.forEachRecord { type, ttlOffset ->
+        if (index < answers) {
+            if (type != TYPE_OPT) ttl = minOf(ttl, answer.u32(ttlOffset))
+        } else if (type == TYPE_SOA) {
+            // the SOA minimum is the last field of its rdata
+            val length = answer.u16(ttlOffset + 4)
+            val rdataEnd = ttlOffset + 6 + length
+            if (length >= 22 && rdataEnd <= answer.size) {
+                soa = minOf(soa, answer.u32(ttlOffset), answer.u32(rdataEnd - 4))
+            }
+        }
+        index++
+    }
+    if (!complete) return 0L
+    return when {
+        answers > 0 && ttl != Long.MAX_VALUE -> minOf(ttl * 1000, DNS_MAX_TTL)
+        soa != Long.MAX_VALUE -> minOf(soa * 1000, DNS_MAX_TTL)
+        else -> DNS_NEGATIVE_TTL
+    }
+}
+
+/** Copy of the cached [answer] carrying the ID of [query] and TTLs reduced by [age]. */
+fun dnsReply(answer: ByteArray, query: ByteArray, age: Long): ByteArray {
+    val reply = answer.copyOf()
+    reply[0] = query[0]
+    reply[1] = query[1]
+    val elapsed = age / 1000
+    if (elapsed > 0) reply.forEachRecord { type, ttlOffset ->
+        if (type != TYPE_OPT) {
+            val ttl = maxOf(reply.u32(ttlOffset) - elapsed, 0L).toInt()
+            reply[ttlOffset] = (ttl ushr 24).toByte()
+            reply[ttlOffset + 1] = (ttl ushr 16).toByte()
+            reply[ttlOffset + 2] = (ttl ushr 8).toByte()
+            reply[ttlOffset + 3] = ttl.toByte()
+        }
+    }
+    return reply
+}
@@ -20,7 +20,6 @@
 package io.nekohasekai.sagernet.ktx
 
 import cn.hutool.core.codec.Base64
-import cn.hutool.json.JSONObject
 import io.nekohasekai.sagernet.fmt.AbstractBean
 import io.nekohasekai.sagernet.fmt.Serializable
 import io.nekohasekai.sagernet.fmt.brook.parseBrook
@@ -40,9 +39,11 @@ import io.nekohasekai.sagernet.fmt.trojan_go.parseTrojanGo
 import io.nekohasekai.sagernet.fmt.tuic5.parseTuic
 import io.nekohasekai.sagernet.fmt.v2ray.parseV2Ray
 import io.nekohasekai.sagernet.fmt.wireguard.parseV2rayNWireGuard
+import java.io.BufferedReader
+import java.io.IOException
 
 fun formatObject(obj: Any): String {
-    return gson.toJson(obj).let { JSONObject(it).toStringPretty() }
+    return gson.toJson(obj)
 }
 
 fun String.decodeBase64UrlSafe(): String {
@@ -53,151 +54,120 @@ fun String.decodeBase64UrlSafe(): String {
 
 class SubscriptionFoundException(val link: String) : RuntimeException()
 
-fun parseProxies(text: String): List<AbstractBean> {
-    val links = text.split('\n').flatMap { it.trim().split(' ') }
-    val linksByLine = text.split('\n').map { it.trim() }
+suspend fun parseProxies(text: String): List<AbstractBean> {
+    return parseProxies(text.reader().buffered())
+}
 
-    val entities = ArrayList<AbstractBean>()
-    val entitiesByLine = ArrayList<AbstractBean>()
+private class LinkParser(val name: String, val parse: (String) -> AbstractBean)
 
-    fun String.parseLink(entities: ArrayList<AbstractBean>) {
-        if (startsWith("yilink://subscription?") || startsWith("sn://subscription?")) {
-            throw SubscriptionFoundException(this)
-        }
+private val linkParsers: Map<String, LinkParser> = HashMap<String, LinkParser>().apply {
+    fun register(name: String, parse: (String) -> AbstractBean, vararg schemes: String) {
+        val parser = LinkParser(name, parse)
+        for (scheme in schemes) put(scheme, parser)
+    }
+    register("universal", ::parseBackupLink, "yilink")
+    register("socks", ::parseSOCKS, "socks", "socks4", "socks4a", "socks5", "socks5h")
+    register("http", ::parseHttp, "http", "https")
+    register("v2ray", ::parseV2Ray, "vmess", "vless", "trojan")
+    register("trojan-go", ::parseTrojanGo, "trojan-go")
+    register("shadowsocks", ::parseShadowsocks, "ss")
+    register("shadowsocksr", ::parseShadowsocksR, "ssr")
+    register("brook", ::parseBrook, "brook")
+    register("hysteria", ::parseHysteria, "hysteria")
+    register("hysteria 2", ::parseHysteria2, "hysteria2", "hy2")
+    register("juicity", ::parseJuicity, "juicity")
+    register("tuic", ::parseTuic, "tuic")
+    register("wireguard", ::parseV2rayNWireGuard, "wireguard")
+    register("mieru", ::parseMieru, "mierus")
+    register("http3", ::parseHttp3, "quic")
+}
 
-        if (startsWith("yilink://")) {
-            Logs.d("Try parse universal link: $this")
-            runCatching {
-                entities.add(parseBackupLink(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("socks://") || startsWith("socks4://") || startsWith("socks4a://") ||
-            startsWith("socks5://") || startsWith("socks5h://")) {
-            Logs.d("Try parse socks link: $this")
-            runCatching {
-                entities.add(parseSOCKS(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (matches("(http|https)://.*".toRegex())) {
-            Logs.d("Try parse http link: $this")
-            runCatching {
-                entities.add(parseHttp(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("vmess://") || startsWith("vless://") || startsWith("trojan://")) {
-            Logs.d("Try parse v2ray link: $this")
-            runCatching {
-                entities.add(parseV2Ray(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("trojan-go://")) {
-            Logs.d("Try parse trojan-go link: $this")
-            runCatching {
-                entities.add(parseTrojanGo(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("ss://")) {
-            Logs.d("Try parse shadowsocks link: $this")
-            runCatching {
-                entities.add(parseShadowsocks(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("ssr://")) {
-            Logs.d("Try parse shadowsocksr link: $this")
-            runCatching {
-                entities.add(parseShadowsocksR(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("naive+")) {
-            Logs.d("Try parse naive link: $this")
-            runCatching {
-                entities.add(parseNaive(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("brook://")) {
-            Logs.d("Try parse brook link: $this")
-            runCatching {
-                entities.add(parseBrook(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("hysteria://")) {
-            Logs.d("Try parse hysteria link: $this")
-            runCatching {
-                entities.add(parseHysteria(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("hysteria2://") || startsWith("hy2://")) {
-            Logs.d("Try parse hysteria 2 link: $this")
-            runCatching {
-                entities.add(parseHysteria2(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("juicity://")) {
-            Logs.d("Try parse juicity link: $this")
-            runCatching {
-                entities.add(parseJuicity(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("tuic://")) {
-            Logs.d("Try parse tuic link: $this")
-            runCatching {
-                entities.add(parseTuic(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("wireguard://")) {
-            Logs.d("Try parse wireguard link: $this")
-            runCatching {
-                entities.add(parseV2rayNWireGuard(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("mierus://")) {
-            Logs.d("Try parse mieru link: $this")
-            runCatching {
-                entities.add(parseMieru(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        } else if (startsWith("quic://")) {
-            Logs.d("Try parse http3 link: $this")
-            runCatching {
-                entities.add(parseHttp3(this))
-            }.onFailure {
-                Logs.w(it)
-            }
-        }
+private val naiveParser = LinkParser("naive", ::parseNaive)
+
+/**
+ * Look up the parser by the scheme in front of `://` instead of probing every prefix.
+ */
+private fun String.linkParser(): LinkParser? {
+    val end = indexOf("://")
+    if (end <= 0) return null
+    val scheme = substring(0, end)
+    return linkParsers[scheme] ?: naiveParser.takeIf { scheme.startsWith("naive+") }
+}
+
+private fun String.isSubscriptionLink() =
+    startsWith("yilink://subscription?") || startsWith("sn://subscription?")
+
+private fun String.parseLink(entities: MutableList<AbstractBean>): Boolean {
+    if (isSubscriptionLink()) {
+        throw SubscriptionFoundException(this)
     }
+    val parser = linkParser() ?: return false
+    Logs.d("Try parse ${parser.name} link: $this")
+    return runCatching {
+        entities.add(parser.parse(this))
+    }.onFailure {
+        Logs.w(it)
+    }.isSuccess
+}
 
-    for (link in links) {
-        link.parseLink(entities)
+/**
+ * A line is either one link (possibly with spaces in its fragment) or several space
+ * separated links, whichever yields more profiles. The whole line is only parsed when the
+ * tokens alone cannot decide.
+ */
+private fun parseLine(line: String, entities: MutableList<AbstractBean>) {
+    if (!line.contains(' ')) {
+        line.parseLink(entities)
+        return
+    }
+    val tokens = line.split(' ')
+    val linkTokens = tokens.count { it.linkParser() != null || it.isSubscriptionLink() }
+    if (linkTokens <= 1 && tokens[0].linkParser() != null) {
+        // the whole line parses to at most one profile, as do the tokens
+        if (line.parseLink(entities)) return
+        tokens[0].parseLink(entities)
+        return
     }
-    for (link in linksByLine) {
-        link.parseLink(entitiesByLine)
+    val splitEntities = ArrayList<AbstractBean>(linkTokens)
+    for (token in tokens) {
+        token.parseLink(splitEntities)
     }
-    var isBadLink = false
-    if (entities.onEach { it.initializeDefaultValues() }.size == entitiesByLine.onEach { it.initializeDefaultValues() }.size) run test@{
-        entities.forEachIndexed { index, bean ->
-            val lineBean = entitiesByLine[index]
-            if (bean == lineBean && bean.displayName() != lineBean.displayName()) {
-                isBadLink = true
-                return@test
-            }
+    if (splitEntities.size <= 1) {
+        val lineEntities = ArrayList<AbstractBean>(1)
+        line.parseLink(lineEntities)
+        if (lineEntities.size >= splitEntities.size) {
+            entities.addAll(lineEntities)
+            return
         }
     }
-    return if (entities.size > entitiesByLine.size) entities else entitiesByLine
+    entities.addAll(splitEntities)
+}
+
+private const val PARALLEL_CHUNK_LINES = 256
+
+private fun parseLines(lines: List<String>): List<AbstractBean> {
+    val entities = ArrayList<AbstractBean>(lines.size)
+    for (line in lines) {
+        parseLine(line, entities)
+    }
+    entities.forEach { it.initializeDefaultValues() }
+    return entities
+}
+
+/**
+ * Parse share links line by line, so a large subscription is never held as a whole.
+ * Inputs longer than one chunk of lines are parsed in parallel.
+ */
+suspend fun parseProxies(reader: BufferedReader): List<AbstractBean> {
+    return generateSequence {
+        try {
+            reader.readLine()
+        } catch (e: IOException) {
+            // truncated or malformed tail, keep what was parsed so far
+            Logs.w(e)
+            null
+        }
+    }.map { it.trim() }.filter { it.isNotEmpty() }.mapChunksOrdered(PARALLEL_CHUNK_LINES, ::parseLines)
 }
 
 fun <T : Serializable> T.applyDefaultValues(): T {
@@ -125,10 +125,10 @@ fun broadcastReceiver(callback: (Context, Intent) -> Unit): BroadcastReceiver =
         override fun onReceive(context: Context, intent: Intent) = callback(context, intent)
     }
 
-fun Context.listenForPackageChanges(onetime: Boolean = true, callback: () -> Unit) =
+fun Context.listenForPackageChanges(onetime: Boolean = true, callback: (Intent) -> Unit) =
     object : BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) {
-            callback()
+            callback(intent)
             if (onetime) context.unregisterReceiver(this)
         }
     }.apply {
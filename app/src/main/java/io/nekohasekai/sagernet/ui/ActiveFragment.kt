@@ -26,6 +26,7 @@ import android.view.ViewGroup
 import androidx.appcompat.widget.PopupMenu
 import androidx.core.view.isVisible
 import androidx.fragment.app.Fragment
+import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.RecyclerView
 import io.nekohasekai.sagernet.Key
 import io.nekohasekai.sagernet.R
@@ -66,8 +67,7 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
                 }
             }
             binding.trafficList.post {
-                adapter.data = emptyList()
-                adapter.notifyDataSetChanged()
+                adapter.submit(emptyList())
             }
         } else {
             runOnMainDispatcher {
@@ -94,8 +94,7 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
                 }
                 .toList()
             binding.trafficList.post {
-                adapter.data = list
-                adapter.notifyDataSetChanged()
+                adapter.submit(list)
             }
         }
     }
@@ -108,6 +107,12 @@ class ActiveFragment : Fragment(R.layout.layout_traffic_list) {
 
         lateinit var data: List<AppStats>
 
+        fun submit(list: List<AppStats>) {
+            val old = if (::data.isInitialized) data else emptyList()
+            data = list
+            DiffUtil.calculateDiff(AppStatsDiffCallback(old, list)).dispatchUpdatesTo(this)
+        }
+
         override fun getItemId(position: Int): Long {
             return data[position].uid.toLong()
         }
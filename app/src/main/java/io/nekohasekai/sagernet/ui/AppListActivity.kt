@@ -63,9 +63,7 @@ class AppListActivity : ThemedActivity() {
         private const val SWITCH = "switch"
 
         private val cachedApps
-            get() = PackageCache.installedPackages.toMutableMap().apply {
-                remove(BuildConfig.APPLICATION_ID)
-            }
+            get() = PackageCache.installedPackages - BuildConfig.APPLICATION_ID
     }
 
     private class ProxiedApp(
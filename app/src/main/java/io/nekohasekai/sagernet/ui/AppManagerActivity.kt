@@ -66,9 +66,7 @@ class AppManagerActivity : ThemedActivity() {
         private const val SWITCH = "switch"
 
         private val cachedApps
-            get() = PackageCache.installedPackages.toMutableMap().apply {
-                remove(BuildConfig.APPLICATION_ID)
-            }
+            get() = PackageCache.installedPackages - BuildConfig.APPLICATION_ID
     }
 
     private class ProxiedApp(
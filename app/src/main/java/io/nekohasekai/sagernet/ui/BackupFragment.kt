@@ -287,6 +287,7 @@ class BackupFragment : NamedFragment(R.layout.layout_backup) {
                 parcel.recycle()
             }
             SagerDatabase.proxyDao.reset()
+            SagerDatabase.latencyDao.reset()
             SagerDatabase.proxyDao.insert(profiles)
 
             val groups = mutableListOf<ProxyGroup>()
@@ -55,6 +55,8 @@ import cn.hutool.core.lang.Validator.isUrl
 import io.nekohasekai.sagernet.*
 import io.nekohasekai.sagernet.aidl.TrafficStats
 import io.nekohasekai.sagernet.bg.BaseService
+import io.nekohasekai.sagernet.bg.test.TcpPingEngine
+import io.nekohasekai.sagernet.bg.test.V2RayBatchTestInstance
 import io.nekohasekai.sagernet.bg.test.V2RayTestInstance
 import io.nekohasekai.sagernet.database.*
 import io.nekohasekai.sagernet.databinding.LayoutProfileBinding
@@ -74,17 +76,20 @@ import io.nekohasekai.sagernet.widget.QRCodeDialog
 import io.nekohasekai.sagernet.widget.UndoSnackbarManager
 import kotlinx.coroutines.*
 import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
 import kotlinx.coroutines.sync.withLock
 import libcore.Libcore
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.net.Socket
 import java.net.UnknownHostException
 import java.util.*
 import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.zip.ZipInputStream
 import kotlin.concurrent.timerTask
 
+private const val TCP_PING_SAMPLES = 3
+
 class ConfigurationFragment @JvmOverloads constructor(
     val select: Boolean = false, val selectedItem: ProxyEntity? = null, val titleRes: Int = 0
 ) : ToolbarFragment(R.layout.layout_group_list),
@@ -860,121 +865,147 @@ class ConfigurationFragment @JvmOverloads constructor(
                 }
             }
             stopService()
-            val profiles = ConcurrentLinkedQueue(profilesUnfiltered)
-            val testPool = newFixedThreadPoolContext(5, "Connection test pool")
-            repeat(6) {
-                testJobs.add(launch(testPool) {
-                    while (isActive) {
-                        val profile = profiles.poll() ?: break
-
-                        if (icmpPing) {
-                            if (!profile.requireBean().canICMPing()) {
-                                profile.status = -1
-                                profile.error = app.getString(R.string.connection_test_icmp_ping_unavailable)
-                                test.insert(profile)
-                                continue
-                            }
-                        } else {
-                            if (!profile.requireBean().canTCPing()) {
-                                profile.status = -1
-                                profile.error = app.getString(R.string.connection_test_tcp_ping_unavailable)
-                                test.insert(profile)
-                                continue
+            val timeout = DataStore.connectionTestTimeout.takeIf { it > 0 } ?: 5000
+            // ICMP pings block a thread each, TCP probes share one selector
+            val parallelism = if (icmpPing) {
+                DataStore.connectionTestConcurrency.coerceIn(1, 64)
+            } else {
+                DataStore.tcpPingConcurrency.coerceIn(1, 1024)
+            }
+            val limit = Semaphore(parallelism)
+            val engine = if (icmpPing) null else TcpPingEngine { protectFromVpn(it) }
+
+            // hostnames shared by several profiles are resolved once per run
+            val lookups = HashMap<String, Deferred<String?>>()
+            val lookupLock = Mutex()
+            suspend fun resolve(host: String): String? {
+                if (host.isIpAddress()) return host
+                return lookupLock.withLock {
+                    lookups.getOrPut(host) {
+                        async(Dispatchers.IO) {
+                            try {
+                                InetAddress.getAllByName(host).firstOrNull()?.hostAddress
+                            } catch (ignored: UnknownHostException) {
+                                null
                             }
                         }
+                    }
+                }.await()
+            }
 
-                        profile.status = 0
+            suspend fun CoroutineScope.probe(profile: ProxyEntity) {
+                if (icmpPing) {
+                    if (!profile.requireBean().canICMPing()) {
+                        profile.status = -1
+                        profile.error = app.getString(R.string.connection_test_icmp_ping_unavailable)
                         test.insert(profile)
-                        var address = profile.requireBean().serverAddress
-                        if (!address.isIpAddress()) {
-                            try {
-                                InetAddress.getAllByName(address).apply {
-                                    if (isNotEmpty()) {
-                                        address = this[0].hostAddress
-                                    }
-                                }
-                            } catch (ignored: UnknownHostException) {
-                            }
+                        return
+                    }
+                } else {
+                    if (!profile.requireBean().canTCPing()) {
+                        profile.status = -1
+                        profile.error = app.getString(R.string.connection_test_tcp_ping_unavailable)
+                        test.insert(profile)
+                        return
+                    }
+                }
+
+                profile.status = 0
+                test.insert(profile)
+                val address = resolve(profile.requireBean().serverAddress)
+                if (!isActive) return
+                if (address == null) {
+                    profile.status = 2
+                    profile.error = app.getString(R.string.connection_test_domain_not_found)
+                    test.update(profile)
+                    return
+                }
+                try {
+                    if (icmpPing) {
+                        val result = runInterruptible(Dispatchers.IO) {
+                            Libcore.icmpPing(address, timeout)
                         }
-                        if (!isActive) break
-                        if (!address.isIpAddress()) {
+                        if (!isActive) return
+                        if (result != -1) {
+                            profile.status = 1
+                            profile.ping = result
+                        } else {
                             profile.status = 2
-                            profile.error = app.getString(R.string.connection_test_domain_not_found)
-                            test.update(profile)
-                            continue
+                            profile.error = getString(R.string.connection_test_unreachable)
                         }
-                        try {
-                            if (icmpPing) {
-                                val result = Libcore.icmpPing(
-                                    address, 5000
-                                )
-                                if (!isActive) break
-                                if (result != -1) {
-                                    profile.status = 1
-                                    profile.ping = result
-                                } else {
-                                    profile.status = 2
-                                    profile.error = getString(R.string.connection_test_unreachable)
-                                }
-                                test.update(profile)
-                            } else {
-                                val socket = Socket()
-                                try {
-                                    socket.soTimeout = 5000
-                                    socket.bind(InetSocketAddress(0))
-                                    protectFromVpn(socket.fileDescriptor.int)
-                                    val start = SystemClock.elapsedRealtime()
-                                    socket.connect(
-                                        InetSocketAddress(
-                                            address, profile.requireBean().serverPort // hysteria(2) can not tcping, no need to handle serverPorts here
-                                        ), 5000
-                                    )
-                                    if (!isActive) break
-                                    profile.status = 1
-                                    profile.ping = (SystemClock.elapsedRealtime() - start).toInt()
-                                    test.update(profile)
-                                } finally {
-                                    runCatching {
-                                        socket.close()
-                                    }
-                                }
+                        test.update(profile)
+                    } else {
+                        // hysteria(2) can not tcping, no need to handle serverPorts here
+                        val target = InetSocketAddress(address, profile.requireBean().serverPort)
+                        val samples = ArrayList<Int>(TCP_PING_SAMPLES)
+                        // stop at the first failure so that a dead node costs a single timeout
+                        for (i in 0 until TCP_PING_SAMPLES) {
+                            try {
+                                samples.add(engine!!.ping(target, timeout))
+                            } catch (e: CancellationException) {
+                                throw e
+                            } catch (e: Exception) {
+                                if (samples.isEmpty()) throw e
+                                break
                             }
-                        } catch (e: Exception) {
-                            if (!isActive) break
-                            val message = e.readableMessage
+                        }
+                        if (!isActive) return
+                        samples.sort()
+                        profile.status = 1
+                        profile.ping = samples[samples.size / 2]
+                        Logs.d("TCPing ${profile.displayName()}: min ${samples.first()} ms, median ${profile.ping} ms")
+                        test.update(profile)
+                    }
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    if (!isActive) return
+                    val message = e.readableMessage
 
-                            if (icmpPing) {
-                                profile.status = 2
-                                profile.error = getString(R.string.connection_test_unreachable)
-                            } else {
-                                profile.status = 2
-                                when {
-                                    !message.contains("failed:") -> profile.error = getString(R.string.connection_test_timeout)
-                                    else -> when {
-                                        message.contains("ECONNREFUSED") -> {
-                                            profile.error = getString(R.string.connection_test_refused)
-                                        }
-                                        message.contains("ENETUNREACH") -> {
-                                            profile.error = getString(R.string.connection_test_unreachable)
-                                        }
-                                        else -> {
-                                            profile.status = 3
-                                            profile.error = message
-                                        }
-                                    }
+                    if (icmpPing) {
+                        profile.status = 2
+                        profile.error = getString(R.string.connection_test_unreachable)
+                    } else {
+                        profile.status = 2
+                        when {
+                            !message.contains("failed:") -> profile.error = getString(R.string.connection_test_timeout)
+                            else -> when {
+                                message.contains("ECONNREFUSED") -> {
+                                    profile.error = getString(R.string.connection_test_refused)
+                                }
+                                message.contains("ENETUNREACH") -> {
+                                    profile.error = getString(R.string.connection_test_unreachable)
+                                }
+                                else -> {
+                                    profile.status = 3
+                                    profile.error = message
                                 }
                             }
-                            test.update(profile)
                         }
                     }
-                })
+                    test.update(profile)
+                }
             }
 
-            testJobs.joinAll()
-            testPool.close()
+            try {
+                for (profile in profilesUnfiltered) {
+                    limit.acquire()
+                    testJobs.add(launch {
+                        try {
+                            probe(profile)
+                        } finally {
+                            limit.release()
+                        }
+                    })
+                }
+                testJobs.joinAll()
+            } finally {
+                engine?.close()
+            }
             test.close()
 
             ProfileManager.updateProfile(test.results.filter { it.status != 0 })
+            ProfileManager.recordLatency(test.results)
 
             onMainDispatcher {
                 test.binding.progressCircular.isGone = true
@@ -986,6 +1017,7 @@ class ConfigurationFragment @JvmOverloads constructor(
             testJobs.forEach { it.cancel() }
             runOnDefaultDispatcher {
                 ProfileManager.updateProfile(test.results.filter { it.status != 0 })
+                ProfileManager.recordLatency(test.results)
             }
         }
     }
@@ -1024,38 +1056,75 @@ class ConfigurationFragment @JvmOverloads constructor(
                     }
                 }
             }
-            val profiles = ConcurrentLinkedQueue(profilesUnfiltered)
             stopService()
 
             val link = DataStore.connectionTestURL
-            val timeout = 5000
+            val timeout = DataStore.connectionTestTimeout.takeIf { it > 0 } ?: 5000
+            val concurrency = DataStore.connectionTestConcurrency.coerceIn(1, 64)
 
-            repeat(6) {
-                testJobs.add(launch {
-                    while (isActive) {
-                        val profile = profiles.poll() ?: break
-                        profile.status = 0
-                        test.insert(profile)
+            suspend fun testSeparately(profile: ProxyEntity) {
+                try {
+                    val instance = V2RayTestInstance(profile, link, timeout)
+                    val result = instance.use {
+                        it.doTest()
+                    }
+                    profile.status = 1
+                    profile.ping = result
+                } catch (e: PluginManager.PluginNotFoundException) {
+                    profile.status = -1
+                    profile.error = e.readableMessage
+                } catch (e: Exception) {
+                    profile.status = 3
+                    profile.error = e.readableMessage
+                }
+            }
 
-                        try {
-                            val instance = V2RayTestInstance(profile, link, timeout)
-                            val result = instance.use {
-                                it.doTest()
-                            }
-                            profile.status = 1
-                            profile.ping = result
-                        } catch (e: PluginManager.PluginNotFoundException) {
-                            profile.status = -1
-                            profile.error = e.readableMessage
-                        } catch (e: Exception) {
-                            profile.status = 3
-                            profile.error = e.readableMessage
-                        }
+            fun testBatched(instance: V2RayBatchTestInstance, profile: ProxyEntity) {
+                try {
+                    profile.ping = instance.doTest(profile)
+                    profile.status = 1
+                } catch (e: Exception) {
+                    profile.status = 3
+                    profile.error = e.readableMessage
+                }
+            }
 
-                        test.update(profile)
-                        ProfileManager.updateProfile(profile)
+            // one core instance per batch of profiles instead of one per profile
+            for (batch in profilesUnfiltered.chunked(64)) {
+                if (!isActive) break
+                val instance = V2RayBatchTestInstance(batch, link, timeout)
+                val started = try {
+                    instance.start()
+                    true
+                } catch (e: Exception) {
+                    // some profile failed to build or start, test this batch one by one
+                    Logs.w(e)
+                    instance.close()
+                    false
+                }
+                val profiles = ConcurrentLinkedQueue(batch)
+                try {
+                    repeat(if (started) concurrency else concurrency.coerceAtMost(6)) {
+                        testJobs.add(launch(Dispatchers.IO) {
+                            while (isActive) {
+                                val profile = profiles.poll() ?: break
+                                profile.status = 0
+                                test.insert(profile)
+                                if (started) {
+                                    testBatched(instance, profile)
+                                } else {
+                                    testSeparately(profile)
+                                }
+                                test.update(profile)
+                            }
+                        })
                     }
-                })
+                    testJobs.joinAll()
+                } finally {
+                    if (started) instance.close()
+                }
+                ProfileManager.updateProfile(batch.filter { it.status != 0 })
+                ProfileManager.recordLatency(batch)
             }
 
             testJobs.joinAll()
@@ -1200,8 +1269,12 @@ class ConfigurationFragment @JvmOverloads constructor(
 
         override suspend fun onUpdated(profileId: Long, trafficStats: TrafficStats) = Unit
 
+        override suspend fun onUpdated(trafficStats: Map<Long, TrafficStats>) = Unit
+
         override suspend fun onUpdated(profile: ProxyEntity) = Unit
 
+        override suspend fun onUpdated(groupId: Long, profiles: List<ProxyEntity>) = Unit
+
         override suspend fun onRemoved(groupId: Long, profileId: Long) {
             val group = groupList.find { it.id == groupId } ?: return
             if (group.ungrouped && SagerDatabase.proxyDao.countByGroup(groupId) == 0L) {
@@ -1373,10 +1446,9 @@ class ConfigurationFragment @JvmOverloads constructor(
                         recyclerView: RecyclerView,
                         viewHolder: RecyclerView.ViewHolder, target: RecyclerView.ViewHolder,
                     ): Boolean {
-                        adapter.move(
+                        return adapter.move(
                             viewHolder.adapterPosition, target.adapterPosition
                         )
-                        return true
                     }
 
                     override fun clearView(
@@ -1415,19 +1487,69 @@ class ConfigurationFragment @JvmOverloads constructor(
 
             var configurationIdList: MutableList<Long> = mutableListOf()
             val configurationList = HashMap<Long, ProxyEntity>()
-
-            private fun getItem(profileId: Long): ProxyEntity {
-                var profile = configurationList[profileId]
-                if (profile == null) {
-                    profile = ProfileManager.getProfile(profileId)
-                    if (profile != null) {
-                        configurationList[profileId] = profile
+            private val summaries = HashMap<Long, ProxyEntity.Summary>()
+            private val loading = HashSet<Long>()
+            private val pageSize = 64
+            private val summaryPageSize = 512
+
+            // bumped by every reload, results of older loads are dropped
+            private val reloads = AtomicInteger()
+            private var reloadJob: Job? = null
+
+            /**
+             * Returns the loaded profile at [index], or null after scheduling a background
+             * load of its page, the rows are rebound once it completes.
+             */
+            private fun getItemAt(index: Int): ProxyEntity? {
+                val profileId = configurationIdList[index]
+                configurationList[profileId]?.let { return it }
+                val from = index - index % pageSize
+                val to = minOf(from + pageSize, configurationIdList.size)
+                val missing = configurationIdList.subList(from, to).filter {
+                    !configurationList.containsKey(it) && loading.add(it)
+                }
+                if (missing.isEmpty()) return null
+                val generation = reloads.get()
+                runOnDefaultDispatcher {
+                    val profiles = ProfileManager.getProfiles(missing)
+                    onMainDispatcher {
+                        if (generation != reloads.get()) return@onMainDispatcher
+                        loading.removeAll(missing.toSet())
+                        for (profile in profiles) {
+                            // rows loaded by a move or an update meanwhile are newer
+                            configurationList.putIfAbsent(profile.id, profile)
+                        }
+                        notifyProfilesChanged(profiles)
                     }
                 }
-                return profile!!
+                return null
+            }
+
+            /**
+             * Loads the profiles of the rows in [range] that are not loaded yet, on the
+             * calling thread.
+             */
+            private fun loadItems(range: IntRange) {
+                val missing = range.map { configurationIdList[it] }.filter {
+                    !configurationList.containsKey(it)
+                }
+                for (profile in ProfileManager.getProfiles(missing)) {
+                    configurationList[profile.id] = profile
+                }
             }
 
-            private fun getItemAt(index: Int) = getItem(configurationIdList[index])
+            private fun notifyProfilesChanged(profiles: List<ProxyEntity>) {
+                val indexes = HashMap<Long, Int>(configurationIdList.size)
+                configurationIdList.forEachIndexed { index, id -> indexes[id] = index }
+                val changed = profiles.mapNotNull { indexes[it.id] }.sorted()
+                var start = 0
+                while (start < changed.size) {
+                    var end = start
+                    while (end + 1 < changed.size && changed[end + 1] == changed[end] + 1) end++
+                    notifyItemRangeChanged(changed[start], end - start + 1)
+                    start = end + 1
+                }
+            }
 
             override fun onCreateViewHolder(
                 parent: ViewGroup,
@@ -1444,8 +1566,13 @@ class ConfigurationFragment @JvmOverloads constructor(
             }
 
             override fun onBindViewHolder(holder: ConfigurationHolder, position: Int) {
+                val profile = getItemAt(position)
+                if (profile == null) {
+                    holder.bindSummary(summaries[configurationIdList[position]])
+                    return
+                }
                 try {
-                    holder.bind(getItemAt(position))
+                    holder.bind(profile)
                 } catch (ignored: NullPointerException) { // when group deleted
                 }
             }
@@ -1456,29 +1583,29 @@ class ConfigurationFragment @JvmOverloads constructor(
 
             private val updated = HashSet<ProxyEntity>()
 
+            private var searchQuery = ""
+
             fun filter(name: String) {
-                if (name.isEmpty()) {
+                searchQuery = name
+                reloadJob?.cancel()
+                reloadJob = runOnDefaultDispatcher {
                     reloadProfiles()
-                    return
                 }
-                configurationIdList.clear()
-                val lower = name.lowercase()
-                configurationIdList.addAll(configurationList.filter {
-                    it.value.displayName().lowercase().contains(lower) ||
-                            it.value.displayType().lowercase().contains(lower) ||
-                            it.value.displayAddress().lowercase().contains(lower)
-                }.keys)
-                notifyDataSetChanged()
             }
 
-            fun move(from: Int, to: Int) {
-                val first = getItemAt(from)
+            fun move(from: Int, to: Int): Boolean {
+                // a fast drag can pass rows that were never bound, their order is needed below
+                val range = minOf(from, to)..maxOf(from, to)
+                loadItems(range)
+                // only rows deleted in the meantime are still missing
+                if (range.any { getItemAt(it) == null }) return false
+                val first = getItemAt(from)!!
                 var previousOrder = first.userOrder
                 val (step, range) = if (from < to) Pair(1, from until to) else Pair(
                     -1, to + 1 downTo from
                 )
                 for (i in range) {
-                    val next = getItemAt(i + step)
+                    val next = getItemAt(i + step)!!
                     val order = next.userOrder
                     next.userOrder = previousOrder
                     previousOrder = order
@@ -1489,6 +1616,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                 configurationIdList[to] = first.id
                 updated.add(first)
                 notifyItemMoved(from, to)
+                return true
             }
 
             fun commitMove() = runOnDefaultDispatcher {
@@ -1547,20 +1675,56 @@ class ConfigurationFragment @JvmOverloads constructor(
                 }
             }
 
+            override suspend fun onUpdated(groupId: Long, profiles: List<ProxyEntity>) {
+                if (groupId != proxyGroup.id) return
+                configurationListView.post {
+                    if (::undoManager.isInitialized) {
+                        undoManager.flush()
+                    }
+                    val ids = HashSet<Long>(configurationIdList)
+                    val changed = profiles.filter { it.id in ids }
+                    for (profile in changed) {
+                        configurationList[profile.id] = profile
+                    }
+                    notifyProfilesChanged(changed)
+                }
+            }
+
             override suspend fun onUpdated(profileId: Long, trafficStats: TrafficStats) {
                 val index = configurationIdList.indexOf(profileId)
                 if (index != -1) {
                     val holder = layoutManager.findViewByPosition(index)
                         ?.let { configurationListView.getChildViewHolder(it) } as ConfigurationHolder?
-                    if (holder != null) {
-                        holder.entity.stats = trafficStats
+                    val profile = configurationList[profileId]
+                    if (holder != null && profile != null) {
+                        profile.stats = trafficStats
                         onMainDispatcher {
-                            holder.bind(holder.entity)
+                            holder.bind(profile)
                         }
                     }
                 }
             }
 
+            override suspend fun onUpdated(trafficStats: Map<Long, TrafficStats>) {
+                configurationListView.post {
+                    for ((profileId, stats) in trafficStats) {
+                        configurationList[profileId]?.stats = stats
+                    }
+                    val first = layoutManager.findFirstVisibleItemPosition()
+                    val last = layoutManager.findLastVisibleItemPosition()
+                    if (first < 0) return@post
+                    for (index in first..minOf(last, configurationIdList.lastIndex)) {
+                        val profileId = configurationIdList[index]
+                        if (!trafficStats.containsKey(profileId)) continue
+                        val profile = configurationList[profileId] ?: continue
+                        val holder = configurationListView.findViewHolderForAdapterPosition(
+                            index
+                        ) as ConfigurationHolder? ?: continue
+                        holder.bind(profile)
+                    }
+                }
+            }
+
             override suspend fun onRemoved(groupId: Long, profileId: Long) {
                 if (groupId != proxyGroup.id) return
                 val index = configurationIdList.indexOf(profileId)
@@ -1569,6 +1733,7 @@ class ConfigurationFragment @JvmOverloads constructor(
                 configurationListView.post {
                     configurationIdList.removeAt(index)
                     configurationList.remove(profileId)
+                    summaries.remove(profileId)
                     notifyItemRemoved(index)
                 }
             }
@@ -1588,63 +1753,83 @@ class ConfigurationFragment @JvmOverloads constructor(
                 reloadProfiles()
             }
 
-            fun reloadProfiles() {
+            suspend fun reloadProfiles() {
                 val selectedItem = try {
                     requirePrent().selectedItem
                 } catch (ignored: IllegalStateException) {
                     return
                 }
 
-
-                var newProfiles = SagerDatabase.proxyDao.getByGroup(proxyGroup.id)
-                val subscription = proxyGroup.subscription
-                if (subscription != null) {
-                    if (subscription.selectedGroups.isNotEmpty()) {
-                        newProfiles = newProfiles.filter { it.requireBean().group in subscription.selectedGroups }
-                    }
-                    if (subscription.selectedOwners.isNotEmpty()) {
-                        newProfiles = newProfiles.filter { it.requireBean().owner in subscription.selectedOwners }
-                    }
-                    if (subscription.selectedTags.isNotEmpty()) {
-                        newProfiles = newProfiles.filter { profile ->
-                            profile.requireBean().tags.containsAll(
-                                subscription.selectedTags
-                            )
-                        }
-                    }
-                }
-                when (proxyGroup.order) {
-                    GroupOrder.BY_NAME -> {
-                        newProfiles = newProfiles.sortedBy { it.displayName() }
-
-                    }
-                    GroupOrder.BY_DELAY -> {
-                        newProfiles = newProfiles.sortedBy { if (it.status == 1) it.ping else 114514 }
-                    }
+                val generation = reloads.incrementAndGet()
+                val selectedProxy = if (selected) selectedItem?.id ?: DataStore.selectedProxy else -1L
+                val subscription = proxyGroup.subscription?.takeIf {
+                    it.selectedGroups.isNotEmpty() || it.selectedOwners.isNotEmpty() || it.selectedTags.isNotEmpty()
                 }
 
-                configurationList.clear()
-                configurationList.putAll(newProfiles.associateBy { it.id })
-                val newProfileIds = newProfiles.map { it.id }
-
-                var selectedProfileIndex = -1
-
-                if (selected) {
-                    val selectedProxy = selectedItem?.id ?: DataStore.selectedProxy
-                    selectedProfileIndex = newProfileIds.indexOf(selectedProxy)
+                // the whole order is read at once: pings and traffic rewrite the sort keys all
+                // the time, so reading it in pages would duplicate or skip rows. Profiles are
+                // loaded later, a page at a time as their rows are bound.
+                val rowsInOrder = ProfileManager.getProfileSummaries(
+                    proxyGroup.id, proxyGroup.order, searchQuery
+                )
+                // group, owner and tags only live in the bean, those are decoded a page at a time
+                val pages = if (subscription != null && rowsInOrder.isNotEmpty()) {
+                    rowsInOrder.chunked(summaryPageSize)
+                } else {
+                    listOf(rowsInOrder)
                 }
+                pages.forEachIndexed { index, page ->
+                    currentCoroutineContext().ensureActive()
+                    if (generation != reloads.get()) return
+                    val first = index == 0
+
+                    var rows = page
+                    val profiles = if (subscription != null) {
+                        ProfileManager.getProfiles(page.map { it.id }).filter { profile ->
+                            val bean = profile.requireBean()
+                            (subscription.selectedGroups.isEmpty() || bean.group in subscription.selectedGroups) &&
+                                    (subscription.selectedOwners.isEmpty() || bean.owner in subscription.selectedOwners) &&
+                                    bean.tags.containsAll(subscription.selectedTags)
+                        }.also { selectedProfiles ->
+                            val selectedIds = selectedProfiles.mapTo(HashSet()) { it.id }
+                            rows = page.filter { it.id in selectedIds }
+                        }
+                    } else if (first) {
+                        ProfileManager.getProfiles(page.take(pageSize).map { it.id })
+                    } else {
+                        listOf()
+                    }
 
-                configurationListView.post {
-                    configurationIdList.clear()
-                    configurationIdList.addAll(newProfileIds)
-                    notifyDataSetChanged()
+                    currentCoroutineContext().ensureActive()
+                    onMainDispatcher {
+                        if (generation != reloads.get()) return@onMainDispatcher
+                        if (first) {
+                            configurationList.clear()
+                            configurationIdList.clear()
+                            summaries.clear()
+                            loading.clear()
+                        }
+                        val start = configurationIdList.size
+                        for (row in rows) {
+                            summaries[row.id] = row
+                            configurationIdList.add(row.id)
+                        }
+                        for (profile in profiles) {
+                            configurationList[profile.id] = profile
+                        }
+                        if (first) {
+                            notifyDataSetChanged()
+                        } else {
+                            notifyItemRangeInserted(start, rows.size)
+                        }
 
-                    if (selectedProfileIndex != -1) {
-                        configurationListView.scrollTo(selectedProfileIndex, true)
-                    } else if (newProfiles.isNotEmpty()) {
-                        configurationListView.scrollTo(0, true)
+                        val selectedProfileIndex = configurationIdList.indexOf(selectedProxy)
+                        if (selectedProfileIndex >= start) {
+                            configurationListView.scrollTo(selectedProfileIndex, true)
+                        } else if (first && rows.isNotEmpty()) {
+                            configurationListView.scrollTo(0, true)
+                        }
                     }
-
                 }
             }
 
@@ -1671,6 +1856,24 @@ class ConfigurationFragment @JvmOverloads constructor(
             val shareButton: ImageView = view.findViewById(R.id.shareIcon)
             val deleteButton: ImageView = view.findViewById(R.id.deleteIcon)
 
+            /**
+             * Placeholder shown while the row's profile is loaded, without any actions.
+             */
+            fun bindSummary(summary: ProxyEntity.Summary?) {
+                view.setOnClickListener(null)
+                profileName.text = summary?.name ?: ""
+                profileType.text = ""
+                profileAddress.text = ""
+                trafficText.isVisible = false
+                (trafficText.parent as View).isGone = true
+                profileStatus.text = ""
+                profileStatus.setOnClickListener(null)
+                editButton.isEnabled = false
+                deleteButton.isEnabled = false
+                shareLayout.setOnClickListener(null)
+                selectedView.visibility = View.INVISIBLE
+            }
+
             fun bind(proxyEntity: ProxyEntity) {
                 val parent = parent ?: return
 
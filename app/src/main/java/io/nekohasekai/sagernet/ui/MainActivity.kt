@@ -386,9 +386,9 @@ class MainActivity : ThemedActivity(),
         changeState(state, msg, true)
     }
 
-    override fun statsUpdated(stats: List<AppStats>) {
+    override fun statsUpdated(stats: List<AppStats>, reset: Boolean) {
         (supportFragmentManager.findFragmentById(R.id.fragment_holder) as? TrafficFragment)?.emitStats(
-            stats
+            stats, reset
         )
     }
 
@@ -504,6 +504,20 @@ class MainActivity : ThemedActivity(),
         }
     }
 
+    override fun trafficUpdatedBatch(
+        profileIds: LongArray, txTotal: LongArray, rxTotal: LongArray
+    ) {
+        val stats = HashMap<Long, TrafficStats>(profileIds.size * 2)
+        for (index in profileIds.indices) {
+            stats[profileIds[index]] = TrafficStats(
+                txTotal = txTotal[index], rxTotal = rxTotal[index]
+            )
+        }
+        runOnDefaultDispatcher {
+            ProfileManager.postTrafficUpdated(stats)
+        }
+    }
+
     override fun profilePersisted(profileId: Long) {
         runOnDefaultDispatcher {
             ProfileManager.postUpdate(profileId)
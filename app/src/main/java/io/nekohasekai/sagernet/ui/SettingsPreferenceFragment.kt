@@ -271,6 +271,9 @@ class SettingsPreferenceFragment : PreferenceFragmentCompat() {
 
         val mtu = findPreference<EditTextPreference>(Key.MTU)!!
         mtu.setOnBindEditTextListener(EditTextPreferenceModifiers.Number)
+        findPreference<EditTextPreference>(Key.CONNECTION_TEST_CONCURRENCY)!!.setOnBindEditTextListener(EditTextPreferenceModifiers.Number)
+        findPreference<EditTextPreference>(Key.CONNECTION_TEST_TIMEOUT)!!.setOnBindEditTextListener(EditTextPreferenceModifiers.Number)
+        findPreference<EditTextPreference>(Key.TCP_PING_CONCURRENCY)!!.setOnBindEditTextListener(EditTextPreferenceModifiers.Number)
         val allowAppsBypassVpn = findPreference<SwitchPreference>(Key.ALLOW_APPS_BYPASS_VPN)!!
 
         val rulesProvider = findPreference<SimpleMenuPreference>(Key.RULES_PROVIDER)!!
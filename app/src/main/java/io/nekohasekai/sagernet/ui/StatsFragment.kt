@@ -26,6 +26,7 @@ import android.view.ViewGroup
 import androidx.appcompat.widget.PopupMenu
 import androidx.core.view.isVisible
 import androidx.fragment.app.Fragment
+import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.RecyclerView
 import io.nekohasekai.sagernet.Key
 import io.nekohasekai.sagernet.R
@@ -57,7 +58,15 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
     }
 
     fun emitStats(statsList: List<AppStats>) {
-        var data = statsList.associate { it.packageName to it.copy() }.toMutableMap()
+        // the part of the session the service has checkpointed is already in the table
+        var data = statsList.associate {
+            it.packageName to it.copy(
+                tcpConnectionsTotal = it.tcpConnectionsTotal - it.tcpConnectionsPersisted,
+                udpConnectionsTotal = it.udpConnectionsTotal - it.udpConnectionsPersisted,
+                uplinkTotal = it.uplinkTotal - it.uplinkPersisted,
+                downlinkTotal = it.downlinkTotal - it.downlinkPersisted
+            )
+        }.toMutableMap()
         for (stats in SagerDatabase.statsDao.all()) {
             if (data.containsKey(stats.packageName)) {
                 data[stats.packageName]!! += stats
@@ -85,8 +94,7 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
                 }
             }
             binding.trafficList.post {
-                adapter.data = emptyList()
-                adapter.notifyDataSetChanged()
+                adapter.submit(emptyList())
             }
         } else {
             runOnMainDispatcher {
@@ -111,8 +119,7 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
                 }
             }
             binding.trafficList.post {
-                adapter.data = data.values.toList()
-                adapter.notifyDataSetChanged()
+                adapter.submit(data.values.toList())
             }
         }
     }
@@ -125,6 +132,12 @@ class StatsFragment : Fragment(R.layout.layout_traffic_list) {
 
         lateinit var data: List<AppStats>
 
+        fun submit(list: List<AppStats>) {
+            val old = if (::data.isInitialized) data else emptyList()
+            data = list
+            DiffUtil.calculateDiff(AppStatsDiffCallback(old, list)).dispatchUpdatesTo(this)
+        }
+
         override fun getItemId(position: Int): Long {
             return data[position].uid.toLong()
         }
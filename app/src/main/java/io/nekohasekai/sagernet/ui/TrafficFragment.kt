@@ -25,6 +25,7 @@ import android.content.Intent
 import android.net.Uri
 import android.os.Bundle
 import android.provider.Settings
+import android.util.SparseArray
 import android.view.MenuItem
 import android.view.View
 import androidx.activity.result.contract.ActivityResultContracts
@@ -34,6 +35,7 @@ import androidx.core.view.ViewCompat
 import androidx.core.view.WindowInsetsCompat
 import androidx.core.view.updatePadding
 import androidx.fragment.app.Fragment
+import androidx.recyclerview.widget.DiffUtil
 import androidx.viewpager2.adapter.FragmentStateAdapter
 import com.google.android.material.tabs.TabLayoutMediator
 import io.nekohasekai.sagernet.R
@@ -137,9 +139,17 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
 
     val listeners = mutableListOf<(List<AppStats>) -> Unit>()
 
-    fun emitStats(statsList: List<AppStats>) {
+    // rows by UID, merged from the partial lists sent by the service
+    private val appStats = SparseArray<AppStats>()
+
+    fun emitStats(statsList: List<AppStats>, reset: Boolean = true) {
+        val merged = synchronized(appStats) {
+            if (reset) appStats.clear()
+            for (stats in statsList) appStats.put(stats.uid, stats)
+            List(appStats.size()) { appStats.valueAt(it) }
+        }
         runOnDefaultDispatcher {
-            for (listener in listeners) listener(statsList)
+            for (listener in listeners) listener(merged)
         }
     }
 
@@ -228,4 +238,24 @@ class TrafficFragment : ToolbarFragment(R.layout.layout_traffic),
 
     }
 
-}
\ No newline at end of file
+}
+
+/** Rows are the same app when UID and package match, and unchanged when every field is equal. */
+class AppStatsDiffCallback(
+    private val oldList: List<AppStats>, private val newList: List<AppStats>
+) : DiffUtil.Callback() {
+
+    override fun getOldListSize() = oldList.size
+    override fun getNewListSize() = newList.size
+
+    override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+        val old = oldList[oldItemPosition]
+        val new = newList[newItemPosition]
+        return old.uid == new.uid && old.packageName == new.packageName
+    }
+
+    override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+        return oldList[oldItemPosition] == newList[newItemPosition]
+    }
+
+}
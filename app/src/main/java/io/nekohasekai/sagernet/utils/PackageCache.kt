@@ -21,58 +21,156 @@ package io.nekohasekai.sagernet.utils
 
 import android.Manifest
 import android.annotation.SuppressLint
+import android.content.Intent
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
+import android.util.SparseArray
 import io.nekohasekai.sagernet.ktx.app
 import io.nekohasekai.sagernet.ktx.listenForPackageChanges
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
 
+/**
+ * Installed packages, shared by the UI and the service.
+ *
+ * Readers get an immutable [Snapshot]. Package broadcasts only query the changed package and
+ * publish a copy with it added or removed, so PackageManager is enumerated once per process.
+ */
 object PackageCache {
 
-    lateinit var installedPackages: Map<String, PackageInfo>
-    lateinit var installedApps: Map<String, ApplicationInfo>
-    lateinit var packageMap: Map<String, Int>
-    val uidMap = HashMap<Int, HashSet<String>>()
+    class Snapshot(
+        /** Packages allowed to use the network, by name. */
+        val installedPackages: Map<String, PackageInfo>,
+        val installedApps: Map<String, ApplicationInfo>,
+        val packageMap: Map<String, Int>,
+        val uidMap: SparseArray<Set<String>>
+    )
+
+    @Volatile
+    private var snapshot: Snapshot? = null
     val loaded = Mutex(true)
 
+    private val emptyUidMap = SparseArray<Set<String>>(0)
+
+    val isLoaded get() = snapshot != null
+    val current get() = snapshot ?: error("package cache not loaded")
+    val installedPackages get() = current.installedPackages
+    val installedApps get() = current.installedApps
+    val packageMap get() = current.packageMap
+
+    /** Empty until the first load, UID lookups come from native callbacks which must not throw. */
+    val uidMap get() = snapshot?.uidMap ?: emptyUidMap
+
+    /** Bumped on every change of the snapshot, for caches derived from it. */
+    @Volatile
+    var generation = 0
+        private set
+
     fun register() {
         reload()
-        app.listenForPackageChanges(false) {
-            reload()
-            labelMap.clear()
+        app.listenForPackageChanges(false) { intent ->
+            val packageName = intent.data?.schemeSpecificPart
+            if (packageName == null) {
+                reload()
+                labelMap.clear()
+            } else if (intent.action == Intent.ACTION_PACKAGE_ADDED) {
+                update(packageName)
+            } else if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // replaced packages are updated by the following ACTION_PACKAGE_ADDED
+                update(packageName)
+            }
         }
         loaded.unlock()
     }
 
+    private fun PackageInfo.usesNetwork() = when (packageName) {
+        "android" -> true
+        else -> requestedPermissions?.contains(Manifest.permission.INTERNET) == true
+    }
+
     @SuppressLint("InlinedApi")
+    @Synchronized
     fun reload() {
-        installedPackages = app.packageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS)
-            .filter {
-                when (it.packageName) {
-                    "android" -> true
-                    else -> it.requestedPermissions?.contains(Manifest.permission.INTERNET) == true
-                }
-            }
+        val installedPackages = app.packageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS)
+            .filter { it.usesNetwork() }
             .associateBy { it.packageName }
 
         val installed = app.packageManager.getInstalledApplications(PackageManager.GET_META_DATA)
-        installedApps = installed.associateBy { it.packageName }
-        packageMap = installed.associate { it.packageName to it.uid }
-        uidMap.clear()
+        val installedApps = HashMap<String, ApplicationInfo>(installed.size * 2)
+        val packageMap = HashMap<String, Int>(installed.size * 2)
+        val uids = SparseArray<HashSet<String>>()
         for (info in installed) {
-            val uid = info.uid
-            uidMap.getOrPut(uid) { HashSet() }.add(info.packageName)
+            installedApps[info.packageName] = info
+            packageMap[info.packageName] = info.uid
+            (uids[info.uid] ?: HashSet<String>().also { uids.put(info.uid, it) }).add(info.packageName)
+        }
+        val uidMap = SparseArray<Set<String>>(uids.size())
+        for (index in 0 until uids.size()) {
+            uidMap.append(uids.keyAt(index), uids.valueAt(index))
         }
+        snapshot = Snapshot(installedPackages, installedApps, packageMap, uidMap)
+        generation++
+    }
+
+    /** Apply an install, update or removal of [packageName] to the current snapshot. */
+    @Synchronized
+    fun update(packageName: String) {
+        val previous = snapshot ?: return reload()
+        val packageInfo: PackageInfo?
+        val appInfo: ApplicationInfo?
+        try {
+            packageInfo = app.packageManager.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS)
+            appInfo = app.packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA)
+        } catch (e: PackageManager.NameNotFoundException) {
+            return remove(previous, packageName)
+        }
+
+        val installedPackages = HashMap(previous.installedPackages)
+        if (packageInfo.usesNetwork()) {
+            installedPackages[packageName] = packageInfo
+        } else {
+            installedPackages.remove(packageName)
+        }
+        val installedApps = HashMap(previous.installedApps)
+        installedApps[packageName] = appInfo
+        val packageMap = HashMap(previous.packageMap)
+        val oldUid = packageMap.put(packageName, appInfo.uid)
+        val uidMap = previous.uidMap.clone()
+        if (oldUid != null && oldUid != appInfo.uid) uidMap.removePackage(oldUid, packageName)
+        uidMap.put(appInfo.uid, (uidMap[appInfo.uid] ?: emptySet()) + packageName)
+
+        snapshot = Snapshot(installedPackages, installedApps, packageMap, uidMap)
+        labelMap.remove(packageName)
+        generation++
+    }
+
+    private fun remove(previous: Snapshot, packageName: String) {
+        val uid = previous.packageMap[packageName] ?: return
+        val uidMap = previous.uidMap.clone()
+        uidMap.removePackage(uid, packageName)
+        snapshot = Snapshot(
+            previous.installedPackages - packageName,
+            previous.installedApps - packageName,
+            previous.packageMap - packageName,
+            uidMap
+        )
+        labelMap.remove(packageName)
+        generation++
+    }
+
+    private fun SparseArray<Set<String>>.removePackage(uid: Int, packageName: String) {
+        val packages = (this[uid] ?: return) - packageName
+        if (packages.isEmpty()) remove(uid) else put(uid, packages)
     }
 
-    operator fun get(uid: Int) = uidMap[uid]
-    operator fun get(packageName: String) = packageMap[packageName]
+    operator fun get(uid: Int): Set<String>? = uidMap[uid]
+    operator fun get(packageName: String) = snapshot?.packageMap?.get(packageName)
 
     suspend fun awaitLoad() {
-        if (::packageMap.isInitialized) {
+        if (snapshot != null) {
             return
         }
         loaded.withLock {
@@ -81,7 +179,7 @@ object PackageCache {
     }
 
     fun awaitLoadSync() {
-        if (::packageMap.isInitialized) {
+        if (snapshot != null) {
             return
         }
         runBlocking {
@@ -91,11 +189,11 @@ object PackageCache {
         }
     }
 
-    private val labelMap = mutableMapOf<String, String>()
+    private val labelMap = ConcurrentHashMap<String, String>()
     fun loadLabel(packageName: String): String {
         var label = labelMap[packageName]
         if (label != null) return label
-        val info = installedApps[packageName] ?: return packageName
+        val info = snapshot?.installedApps?.get(packageName) ?: return packageName
         label = info.loadLabel(app.packageManager).toString()
         labelMap[packageName] = label
         return label
@@ -0,0 +1,123 @@
+/******************************************************************************
+ *                                                                            *
+ * Copyright (C) 2025 by lingyicute <li@92li.us.kg>             *
+ *                                                                            *
+ * This program is free software: you can redistribute it and/or modify       *
+ * it under the terms of the GNU General Public License as published by       *
+ * the Free Software Foundation, either version 3 of the License, or          *
+ *  (at your option) any later version.                                       *
+ *                                                                            *
+ * This program is distributed in the hope that it will be useful,            *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of             *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the              *
+ * GNU General Public License for more details.                               *
+ *                                                                            *
+ * You should have received a copy of the GNU General Public License          *
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.       *
+ *                                                                            *
+ ******************************************************************************/
+
+package io.nekohasekai.sagernet.utils
+
+import android.os.Build
+import android.os.SystemClock
+import android.util.SparseArray
+import androidx.annotation.RequiresApi
+import io.nekohasekai.sagernet.SagerNet
+import io.nekohasekai.sagernet.ktx.Logs
+import libcore.UidInfo
+import java.net.InetSocketAddress
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Connection owners and UID descriptions asked for by the core.
+ *
+ * Owners are kept for [OWNER_TTL] by 5-tuple, so retries and bursts of a connection skip the
+ * binder call. UID descriptions are built once per UID and dropped when [PackageCache]
+ * reloads after a package change.
+ */
+object UidCache {
+
+    private const val OWNER_TTL = 5000L
+    private const val MAX_OWNERS = 512
+    private const val STATS_INTERVAL = 1024L
+
+    private class Owner(val uid: Int, val expiresAt: Long)
+
+    private val owners = object : LinkedHashMap<String, Owner>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Owner>?): Boolean {
+            return size > MAX_OWNERS
+        }
+    }
+    private val uidInfos = SparseArray<UidInfo>()
+    private var uidInfosGeneration = -1
+
+    private val ownerHits = AtomicLong()
+    private val ownerMisses = AtomicLong()
+    private val infoHits = AtomicLong()
+    private val infoMisses = AtomicLong()
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    fun connectionOwner(
+        ipProto: Int, srcIp: String, srcPort: Int, destIp: String, destPort: Int
+    ): Int {
+        val key = "$ipProto $srcIp $srcPort $destIp $destPort"
+        val now = SystemClock.elapsedRealtime()
+        synchronized(owners) {
+            val owner = owners[key]
+            if (owner != null && owner.expiresAt > now) {
+                ownerHits.incrementAndGet()
+                return owner.uid
+            }
+        }
+        val uid = SagerNet.connectivity.getConnectionOwnerUid(
+            ipProto, InetSocketAddress(srcIp, srcPort), InetSocketAddress(destIp, destPort)
+        )
+        // the socket may not be visible yet, so unknown owners are asked again
+        if (uid != -1) synchronized(owners) {
+            owners[key] = Owner(uid, now + OWNER_TTL)
+        }
+        if (ownerMisses.incrementAndGet() % STATS_INTERVAL == 0L) Logs.d(stats())
+        return uid
+    }
+
+    fun uidInfo(uid: Int): UidInfo {
+        PackageCache.awaitLoadSync()
+
+        synchronized(uidInfos) {
+            if (uidInfosGeneration != PackageCache.generation) {
+                uidInfos.clear()
+                uidInfosGeneration = PackageCache.generation
+            }
+            val uidInfo = uidInfos[uid]
+            if (uidInfo != null) {
+                infoHits.incrementAndGet()
+                return uidInfo
+            }
+        }
+        infoMisses.incrementAndGet()
+
+        val packageName = if (uid <= 1000) {
+            "android"
+        } else {
+            PackageCache.uidMap[uid]?.firstOrNull() ?: error("unknown uid $uid")
+        }
+        val uidInfo = UidInfo()
+        uidInfo.label = PackageCache.loadLabel(packageName)
+        uidInfo.packageName = packageName
+        synchronized(uidInfos) {
+            uidInfos.put(uid, uidInfo)
+        }
+        return uidInfo
+    }
+
+    fun stats(): String {
+        val ownerHits = ownerHits.get()
+        val ownerMisses = ownerMisses.get()
+        val infoHits = infoHits.get()
+        val infoMisses = infoMisses.get()
+        return "uid cache: owners $ownerHits hits / $ownerMisses lookups, " +
+                "uid infos $infoHits hits / $infoMisses loads"
+    }
+
+}
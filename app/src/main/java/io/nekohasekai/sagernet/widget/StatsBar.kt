@@ -23,6 +23,7 @@ package io.nekohasekai.sagernet.widget
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.os.RemoteException
 import android.text.format.Formatter
 import android.util.AttributeSet
 import android.view.View
@@ -36,6 +37,8 @@ import io.nekohasekai.sagernet.bg.BaseService
 import io.nekohasekai.sagernet.database.DataStore
 import io.nekohasekai.sagernet.ktx.*
 import io.nekohasekai.sagernet.ui.MainActivity
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.isActive
 
 class StatsBar @JvmOverloads constructor(
     context: Context, attrs: AttributeSet? = null,
@@ -89,18 +92,39 @@ class StatsBar @JvmOverloads constructor(
         super.setOnClickListener(l)
     }
 
+    // startup trace of the connected service, shown below the status in the tooltip
+    private var startupTrace: String? = null
+    private var traceJob: Job? = null
+
     private fun setStatus(text: CharSequence) {
         statusText.text = text
-        TooltipCompat.setTooltipText(this, text)
+        val trace = startupTrace
+        TooltipCompat.setTooltipText(this, if (trace.isNullOrEmpty()) text else "$text\n$trace")
     }
 
     fun changeState(state: BaseService.State) {
         val activity = context as MainActivity
+        traceJob?.cancel()
+        startupTrace = null
         if ((state == BaseService.State.Connected).also { hideOnScroll = it }) {
             doOnPreDraw {
                 if (allowShow) performShow()
                 setStatus(app.getText(R.string.vpn_connected))
             }
+            val service = activity.connection.service
+            if (service != null) traceJob = runOnDefaultDispatcher {
+                val trace = try {
+                    service.startupTrace
+                } catch (e: RemoteException) {
+                    Logs.w(e)
+                    return@runOnDefaultDispatcher
+                }
+                onMainDispatcher {
+                    if (!isActive) return@onMainDispatcher
+                    startupTrace = trace
+                    setStatus(statusText.text)
+                }
+            }
         } else {
             doOnPreDraw {
                 performHide()